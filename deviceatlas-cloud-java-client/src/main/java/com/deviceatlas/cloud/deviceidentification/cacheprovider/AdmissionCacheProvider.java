@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission filter in front of any cache provider.
+ *
+ * Every lookup is recorded in a frequency sketch and an entry is only
+ * written to the underlying provider when its key was looked up at least
+ * a minimum number of times in the recent window. User-agents seen once
+ * (random bot strings, malformed clients...) are therefore never written,
+ * sparing a disk or network write and keeping the useful entries in place.
+ *
+ * <pre>
+ * Client client = Client.getInstance(new AdmissionCacheProvider(new MemcachedCacheProvider(), 2));
+ * </pre>
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class AdmissionCacheProvider implements ScannableCacheProvider {
+    private static final int    DEFAULT_MIN_FREQUENCY   = 2;
+    private static final int    DEFAULT_EXPECTED_KEYS   = 65536;
+    private final CacheProvider     cacheProvider;
+    private final FrequencySketch   sketch;
+    private final int               minFrequency;
+    private final AtomicLong        admitted                = new AtomicLong();
+    private final AtomicLong        rejected                = new AtomicLong();
+
+    /**
+     * Creates an admission filter
+     *
+     * @param cacheProvider the provider storing the admitted entries
+     * @param minFrequency number of lookups of a key before it is stored
+     * @param expectedKeys number of distinct keys expected in the window
+     */
+
+    public AdmissionCacheProvider(CacheProvider cacheProvider, int minFrequency, int expectedKeys) {
+        this.cacheProvider = cacheProvider;
+        this.minFrequency = minFrequency;
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    public AdmissionCacheProvider(CacheProvider cacheProvider, int minFrequency) {
+        this(cacheProvider, minFrequency, DEFAULT_EXPECTED_KEYS);
+    }
+
+    public AdmissionCacheProvider(CacheProvider cacheProvider) {
+        this(cacheProvider, DEFAULT_MIN_FREQUENCY, DEFAULT_EXPECTED_KEYS);
+    }
+
+    /**
+     * Returns the underlying cache provider
+     *
+     * @return cacheProvider
+     */
+
+    public CacheProvider getCacheProvider() {
+        return cacheProvider;
+    }
+
+    /**
+     * Returns the number of entries written to the underlying provider
+     *
+     * @return long
+     */
+
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * Returns the number of entries not written because their key was not
+     * looked up often enough
+     *
+     * @return long
+     */
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the ratio of admitted entries, 1 when nothing was written yet
+     *
+     * @return double
+     */
+
+    public double getAdmissionRatio() {
+        long admittedCount = admitted.get();
+        long total = admittedCount + rejected.get();
+        return total == 0 ? 1.0d : (double)admittedCount / total;
+    }
+
+    @Override
+    public <T> T get(String key) throws CacheException {
+        sketch.increment(key);
+        return cacheProvider.get(key);
+    }
+
+    @Override
+    public <T> void set(String key, T entry) throws CacheException {
+        if (sketch.frequency(key) < minFrequency) {
+            rejected.incrementAndGet();
+            return;
+        }
+
+        admitted.incrementAndGet();
+        cacheProvider.set(key, entry);
+    }
+
+    @Override
+    public void remove(String key) throws CacheException {
+        cacheProvider.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        cacheProvider.clear();
+    }
+
+    @Override
+    public void shutdown() {
+        cacheProvider.shutdown();
+    }
+
+    @Override
+    public List<String> getKeys() {
+        return cacheProvider.getKeys();
+    }
+
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        return KeyCursors.scan(cacheProvider, prefix, limit, batchSize);
+    }
+
+    @Override
+    public void setExpiry(int expiry) {
+        cacheProvider.setExpiry(expiry);
+    }
+}
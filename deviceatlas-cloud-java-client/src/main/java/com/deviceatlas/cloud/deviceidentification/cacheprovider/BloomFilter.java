@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of cache keys.
+ *
+ * mightContain() never returns false for a key which was put, it may return
+ * true for a key which was not (false positive) with about the configured
+ * probability as long as the number of keys stays under the expected one.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class BloomFilter {
+    private final AtomicLongArray   bits;
+    private final long              numBits;
+    private final int               numHashes;
+    private final AtomicLong        insertions  = new AtomicLong();
+
+    /**
+     * Creates a bloom filter
+     *
+     * @param expectedKeys number of keys the filter is sized for
+     * @param falsePositiveRate wanted false positive probability, for instance 0.01
+     */
+
+    public BloomFilter(long expectedKeys, double falsePositiveRate) {
+        long keys = Math.max(1, expectedKeys);
+        long m = (long)Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int)Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+
+        bits = new AtomicLongArray(words);
+        numBits = words * 64L;
+        numHashes = Math.max(1, (int)Math.round((double)numBits / keys * Math.log(2)));
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the key characters
+     *
+     * @param key
+     * @return long
+     */
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // final mix so both halves are usable as independent hashes
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    /**
+     * Adds a key
+     *
+     * @param key
+     */
+
+    public void put(String key) {
+        long h = hash(key);
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32);
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+
+        insertions.incrementAndGet();
+    }
+
+    /**
+     * Checks if a key may have been added
+     *
+     * @param key
+     * @return false if the key was certainly never added
+     */
+
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int)h;
+        int h2 = (int)(h >>> 32);
+
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of keys added since the last clear
+     *
+     * @return long
+     */
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * Removes all the keys
+     */
+
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0L);
+        }
+        insertions.set(0);
+    }
+}
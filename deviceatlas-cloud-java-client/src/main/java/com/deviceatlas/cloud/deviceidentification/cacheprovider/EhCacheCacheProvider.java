@@ -38,7 +38,7 @@ import net.sf.ehcache.Element;
  *
  * @author Afilias Technologies Ltd
  */
-public class EhCacheCacheProvider implements CacheProvider {
+public class EhCacheCacheProvider implements ScannableCacheProvider {
     private static final String SETTING_FILE        = "/deviceatlas-ehcache.xml";
     private static final String CACHE_MANAGER_NAME  = "deviceAtlasCloudCacheManager";
     private CacheManager       cacheManager;
@@ -80,7 +80,8 @@ public class EhCacheCacheProvider implements CacheProvider {
         try {
             Element elt = new Element(key, entry);
             cache.put(elt);
-        } catch (net.sf.ehcache.CacheException ex) {
+        } catch (RuntimeException ex) {
+            // the Ehcache errors, and the heap sizing failing on the closed JDK modules
             throw new CacheException(
                     "Failed to put cache entry in " + key, ex
                     );
@@ -113,6 +114,17 @@ public class EhCacheCacheProvider implements CacheProvider {
         return cache.getKeys();
     }
 
+    /**
+     * Scans the keys. Ehcache 2 has no key iterator, the key list of the
+     * cache is walked without being copied
+     *
+     */
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        List<String> keys = cache.getKeys();
+        return new IteratorKeyCursor(keys.iterator(), prefix, limit, batchSize);
+    }
+
     @Override
     public void setExpiry(int expiry) {
         cache.getCacheConfiguration().setTimeToLiveSeconds((long)expiry);
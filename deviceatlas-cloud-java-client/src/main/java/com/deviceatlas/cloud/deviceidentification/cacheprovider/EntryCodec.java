@@ -0,0 +1,571 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.deviceatlas.cloud.deviceidentification.utils.InternPool;
+import com.deviceatlas.cloud.deviceidentification.utils.ProfileStore;
+
+/**
+ * Binary encoding of the cache entries.
+ *
+ * Device property maps (String keys to String, Boolean, Integer, Long or
+ * Double values) are written in a compact tagged form, any other entry falls
+ * back to the Java serialisation. The first byte is a magic number and the
+ * second one the format flags.
+ *
+ * Entries larger than the compression threshold can be deflated at the
+ * fastest level, optionally with a preset dictionary of common profile
+ * content so even small profiles shrink. Plain Java serialised data, as
+ * written by the earlier versions, is still decoded.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class EntryCodec {
+    private static final byte   MAGIC               = (byte)0xDA;
+    private static final byte   FORMAT_MAP          = 0x01;
+    private static final byte   FORMAT_SERIALIZED   = 0x02;
+    private static final byte   FORMAT_MASK         = 0x0F;
+    private static final byte   FLAG_COMPRESSED     = 0x10;
+    // first bytes of a Java serialisation stream
+    private static final byte   STREAM_MAGIC_0      = (byte)0xAC;
+    private static final byte   STREAM_MAGIC_1      = (byte)0xED;
+    private static final int    HEADER_SIZE         = 2;
+    private static final byte   TYPE_NULL           = 0;
+    private static final byte   TYPE_STRING         = 1;
+    private static final byte   TYPE_TRUE           = 2;
+    private static final byte   TYPE_FALSE          = 3;
+    private static final byte   TYPE_INTEGER        = 4;
+    private static final byte   TYPE_LONG           = 5;
+    private static final byte   TYPE_DOUBLE         = 6;
+    private static final String CHARSET             = "UTF-8";
+    private static final int    DEFAULT_DICTIONARY_SIZE = 4096;
+    // most frequent property names and values, the zlib window favours the end of the dictionary
+    private static final String [][] COMMON_PROPERTIES = {
+        {"cookieSupport", null}, {"jsSupportBasicJavaScript", null}, {"https", null},
+        {"isSetTopBox", null}, {"isTV", null}, {"isGamesConsole", null}, {"isEReader", null},
+        {"isMediaPlayer", null}, {"isRobot", null}, {"isChecker", null}, {"isDownloader", null},
+        {"isFilter", null}, {"isFeedReader", null}, {"isSpam", null}, {"isTablet", null},
+        {"isBrowser", null}, {"isMobilePhone", null}, {"mobileDevice", null}, {"touchScreen", null},
+        {"osAndroid", null}, {"osiOs", null}, {"osWindows", null}, {"osLinux", null},
+        {"markup.xhtmlMp10", null}, {"markup.xhtmlBasic10", null}, {"html.audio", null},
+        {"html.video", null}, {"html.canvas", null}, {"html.svg", null}, {"js.webSockets", null},
+        {"js.webWorkers", null}, {"js.localStorage", null}, {"js.sessionStorage", null},
+        {"js.geoLocation", null}, {"js.touchEvents", null}, {"css.transforms", null},
+        {"css.animations", null}, {"css.transitions", null}, {"displayColorDepth", null},
+        {"displayPpi", null}, {"devicePixelRatio", null}, {"displayWidth", null}, {"displayHeight", null},
+        {"usableDisplayWidth", null}, {"usableDisplayHeight", null}, {"yearReleased", null},
+        {"browserName", "Chrome"}, {"browserName", "Safari"}, {"browserVersion", null},
+        {"browserRenderingEngine", "Blink"}, {"browserRenderingEngine", "WebKit"},
+        {"osName", "Android"}, {"osName", "iOS"}, {"osName", "Windows"}, {"osVersion", null},
+        {"primaryHardwareType", "Mobile Phone"}, {"primaryHardwareType", "Tablet"},
+        {"primaryHardwareType", "Desktop"}, {"manufacturer", "Samsung"}, {"vendor", "Samsung"},
+        {"manufacturer", "Apple"}, {"vendor", "Apple"}, {"model", "iPhone"}, {"marketingName", null},
+    };
+    private static final byte[] DEFAULT_DICTIONARY  = buildDefaultDictionary();
+    // the zlib streams hold native memory, the ones not pooled are ended
+    private static final int                MAX_POOLED          = 16;
+    private static final Queue<Deflater>    DEFLATERS           = new ConcurrentLinkedQueue<Deflater>();
+    private static final Queue<Inflater>    INFLATERS           = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger      DEFLATERS_POOLED    = new AtomicInteger();
+    private static final AtomicInteger      INFLATERS_POOLED    = new AtomicInteger();
+    private final int                       compressionThreshold;
+    private final byte[]                    dictionary;
+
+    /**
+     * Creates a codec without compression
+     */
+
+    public EntryCodec() {
+        this(-1, null);
+    }
+
+    /**
+     * Creates a codec compressing the entries from a given size
+     *
+     * @param compressionThreshold minimum encoded size to compress, negative to never compress
+     * @param dictionary preset dictionary, null for none. The same one must be used to decode
+     */
+
+    public EntryCodec(int compressionThreshold, byte[] dictionary) {
+        this.compressionThreshold = compressionThreshold;
+        this.dictionary = dictionary != null ? dictionary.clone() : null;
+    }
+
+    /**
+     * Returns the built-in dictionary made of the most common property
+     * names and values
+     *
+     * @return byte[]
+     */
+
+    public static byte[] getDefaultDictionary() {
+        return DEFAULT_DICTIONARY.clone();
+    }
+
+    /**
+     * Builds a preset dictionary from sample profiles, encoded the way the
+     * entries are
+     *
+     * @param profiles common device property maps
+     * @param maxSize maximum dictionary size, zlib uses up to 32KB
+     * @return byte[]
+     */
+
+    public static byte[] buildDictionary(List<Map<String, Object>> profiles, int maxSize) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(maxSize);
+        DataOutputStream dos = new DataOutputStream(bos);
+        EntryCodec codec = new EntryCodec();
+
+        try {
+            for (Map<String, Object> profile : profiles) {
+                codec.writeMap(dos, profile);
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid profile", ex);
+        }
+
+        byte[] all = bos.toByteArray();
+        // the last bytes are the cheapest to reference
+        return all.length <= maxSize ? all : Arrays.copyOfRange(all, all.length - maxSize, all.length);
+    }
+
+    private static byte[] buildDefaultDictionary() {
+        // property names with their usual values
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(DEFAULT_DICTIONARY_SIZE);
+        DataOutputStream dos = new DataOutputStream(bos);
+        EntryCodec codec = new EntryCodec();
+        try {
+            for (String [] property : COMMON_PROPERTIES) {
+                codec.writeString(dos, property[0]);
+                if (property[1] == null) {
+                    dos.writeByte(TYPE_TRUE);
+                    codec.writeString(dos, property[0]);
+                    dos.writeByte(TYPE_FALSE);
+                } else {
+                    dos.writeByte(TYPE_STRING);
+                    codec.writeString(dos, property[1]);
+                }
+            }
+            dos.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        byte[] all = bos.toByteArray();
+        return all.length <= DEFAULT_DICTIONARY_SIZE ? all
+            : Arrays.copyOfRange(all, all.length - DEFAULT_DICTIONARY_SIZE, all.length);
+    }
+
+    /**
+     * Encodes an entry
+     *
+     * @param entry
+     * @return byte[]
+     * @throws CacheException when the entry cannot be encoded
+     */
+
+    public byte[] encode(Object entry) throws CacheException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+
+        try {
+            bos.write(MAGIC);
+            if (isPropertyMap(entry)) {
+                bos.write(FORMAT_MAP);
+                writeMap(new DataOutputStream(bos), (Map<?, ?>)entry);
+            } else {
+                bos.write(FORMAT_SERIALIZED);
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                oos.writeObject(entry);
+                oos.close();
+            }
+        } catch (IOException ex) {
+            throw new CacheException("Failed to encode cache entry", ex);
+        }
+
+        byte[] data = bos.toByteArray();
+        if (compressionThreshold >= 0 && data.length - HEADER_SIZE >= compressionThreshold) {
+            byte[] compressed = compress(data);
+            if (compressed.length < data.length) {
+                return compressed;
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Deflates the body of an encoded entry
+     *
+     * @param data
+     * @return byte[] entry with the compressed flag
+     */
+
+    private byte[] compress(byte[] data) {
+        Deflater deflater = acquireDeflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+            deflater.finish();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + HEADER_SIZE);
+            bos.write(data[0]);
+            bos.write(data[1] | FLAG_COMPRESSED);
+            byte[] buf = new byte[Math.min(data.length, 8192)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                bos.write(buf, 0, n);
+            }
+
+            return bos.toByteArray();
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * Inflates the body of a compressed entry
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return byte[] uncompressed body
+     */
+
+    private byte[] decompress(byte[] data, int offset, int length) throws CacheException {
+        Inflater inflater = acquireInflater();
+        inflater.setInput(data, offset, length);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length * 4);
+        byte[] buf = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n > 0) {
+                    bos.write(buf, 0, n);
+                } else if (inflater.needsDictionary()) {
+                    if (dictionary == null) {
+                        throw new CacheException("Cache entry compressed with a preset dictionary");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new CacheException("Truncated compressed cache entry");
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new CacheException("Failed to decompress cache entry", ex);
+        } catch (IllegalArgumentException ex) {
+            // dictionary other than the one used to compress
+            throw new CacheException("Failed to decompress cache entry", ex);
+        } finally {
+            releaseInflater(inflater);
+        }
+
+        return bos.toByteArray();
+    }
+
+    private static Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater != null) {
+            DEFLATERS_POOLED.decrementAndGet();
+            return deflater;
+        }
+
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    private static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (DEFLATERS_POOLED.incrementAndGet() > MAX_POOLED) {
+            DEFLATERS_POOLED.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        DEFLATERS.offer(deflater);
+    }
+
+    private static Inflater acquireInflater() {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater != null) {
+            INFLATERS_POOLED.decrementAndGet();
+            return inflater;
+        }
+
+        return new Inflater();
+    }
+
+    private static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (INFLATERS_POOLED.incrementAndGet() > MAX_POOLED) {
+            INFLATERS_POOLED.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        INFLATERS.offer(inflater);
+    }
+
+    /**
+     * Decodes an entry
+     *
+     * @param data
+     * @return Object
+     * @throws CacheException when the data is not a valid entry
+     */
+
+    public Object decode(byte[] data) throws CacheException {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes an entry from a part of a byte array
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return Object
+     * @throws CacheException when the data is not a valid entry
+     */
+
+    public Object decode(byte[] data, int offset, int length) throws CacheException {
+        return decode(data, offset, length, true);
+    }
+
+    /**
+     * Decodes a property map entry only. The Java serialisation, plain or
+     * in the serialised format, is refused so data from the network never
+     * instantiates arbitrary classes
+     *
+     * @param data
+     * @return Map
+     * @throws CacheException when the data is not a valid property map entry
+     */
+
+    public Map<String, Object> decodeMap(byte[] data) throws CacheException {
+        return (Map<String, Object>)decode(data, 0, data.length, false);
+    }
+
+    private Object decode(byte[] data, int offset, int length, boolean serialized) throws CacheException {
+        if (length >= HEADER_SIZE && data[offset] == STREAM_MAGIC_0 && data[offset + 1] == STREAM_MAGIC_1) {
+            if (!serialized) {
+                throw new CacheException("Serialised cache entry refused");
+            }
+            return readSerialized(new ByteArrayInputStream(data, offset, length));
+        }
+
+        if (length < HEADER_SIZE || data[offset] != MAGIC) {
+            throw new CacheException("Invalid cache entry encoding");
+        }
+
+        byte format = data[offset + 1];
+        ByteArrayInputStream bis;
+
+        if ((format & FLAG_COMPRESSED) != 0) {
+            byte[] body = decompress(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+            bis = new ByteArrayInputStream(body);
+            format &= FORMAT_MASK;
+        } else {
+            bis = new ByteArrayInputStream(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+        }
+
+        if (format == FORMAT_SERIALIZED) {
+            if (!serialized) {
+                throw new CacheException("Serialised cache entry refused");
+            }
+            return readSerialized(bis);
+        }
+
+        try {
+            if (format == FORMAT_MAP) {
+                return readMap(new DataInputStream(bis));
+            }
+        } catch (IOException ex) {
+            throw new CacheException("Failed to decode cache entry", ex);
+        }
+
+        throw new CacheException("Unknown cache entry format " + format);
+    }
+
+    private Object readSerialized(ByteArrayInputStream bis) throws CacheException {
+        try {
+            return new ObjectInputStream(bis).readObject();
+        } catch (IOException ex) {
+            throw new CacheException("Failed to decode cache entry", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new CacheException("Failed to decode cache entry", ex);
+        }
+    }
+
+    /**
+     * Checks if an entry can use the compact map format. The map is decoded
+     * as a HashMap, the other map classes, subclasses included, keep the
+     * Java serialisation so their type survives
+     *
+     * @param entry
+     * @return boolean
+     */
+
+    private boolean isPropertyMap(Object entry) {
+        if ((entry == null || entry.getClass() != HashMap.class) && !ProfileStore.isShared(entry)) {
+            return false;
+        }
+
+        for (Map.Entry<?, ?> property : ((Map<?, ?>)entry).entrySet()) {
+            Object value = property.getValue();
+            if (!(property.getKey() instanceof String) ||
+                    !(value == null || value instanceof String || value instanceof Boolean ||
+                        value instanceof Integer || value instanceof Long || value instanceof Double)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void writeMap(DataOutputStream dos, Map<?, ?> map) throws IOException {
+        writeVarInt(dos, map.size());
+
+        for (Map.Entry<?, ?> property : map.entrySet()) {
+            writeString(dos, (String)property.getKey());
+            Object value = property.getValue();
+
+            if (value == null) {
+                dos.writeByte(TYPE_NULL);
+            } else if (value instanceof String) {
+                dos.writeByte(TYPE_STRING);
+                writeString(dos, (String)value);
+            } else if (value instanceof Boolean) {
+                dos.writeByte((Boolean)value ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Integer) {
+                dos.writeByte(TYPE_INTEGER);
+                dos.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                dos.writeByte(TYPE_LONG);
+                dos.writeLong((Long)value);
+            } else {
+                dos.writeByte(TYPE_DOUBLE);
+                dos.writeDouble((Double)value);
+            }
+        }
+
+        dos.flush();
+    }
+
+    private Map<String, Object> readMap(DataInputStream dis) throws IOException {
+        int size = readVarInt(dis);
+        Map<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+        InternPool pool = InternPool.getDefault();
+
+        for (int i = 0; i < size; i++) {
+            String key = pool.intern(readString(dis));
+            byte type = dis.readByte();
+
+            switch (type) {
+                case TYPE_NULL:
+                    map.put(key, null);
+                    break;
+                case TYPE_STRING:
+                    map.put(key, pool.intern(readString(dis)));
+                    break;
+                case TYPE_TRUE:
+                    map.put(key, Boolean.TRUE);
+                    break;
+                case TYPE_FALSE:
+                    map.put(key, Boolean.FALSE);
+                    break;
+                case TYPE_INTEGER:
+                    map.put(key, dis.readInt());
+                    break;
+                case TYPE_LONG:
+                    map.put(key, dis.readLong());
+                    break;
+                case TYPE_DOUBLE:
+                    map.put(key, dis.readDouble());
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+
+        return map;
+    }
+
+    private void writeString(DataOutputStream dos, String str) throws IOException {
+        byte[] bytes = str.getBytes(CHARSET);
+        writeVarInt(dos, bytes.length);
+        dos.write(bytes);
+    }
+
+    private String readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[readVarInt(dis)];
+        dis.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private void writeVarInt(DataOutputStream dos, int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            dos.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte(v);
+    }
+
+    private int readVarInt(DataInputStream dis) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            if (shift > 28) {
+                throw new IOException("Malformed length");
+            }
+            b = dis.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memcached transcoder writing the entries with an EntryCodec. Values
+ * stored by the default spymemcached transcoder are still read.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class EntryCodecTranscoder implements Transcoder<Object> {
+    // above the flags used by SerializingTranscoder
+    private static final int    FLAGS       = 0x4000;
+    private static final Logger LOGGER      = LoggerFactory.getLogger(EntryCodecTranscoder.class);
+    private final EntryCodec            codec;
+    private final Transcoder<Object>    legacy = new SerializingTranscoder();
+
+    public EntryCodecTranscoder(EntryCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public boolean asyncDecode(CachedData data) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(Object entry) {
+        try {
+            return new CachedData(FLAGS, codec.encode(entry), getMaxSize());
+        } catch (CacheException ex) {
+            throw new IllegalArgumentException("Failed to encode cache entry", ex);
+        }
+    }
+
+    @Override
+    public Object decode(CachedData data) {
+        if (data.getFlags() != FLAGS) {
+            return legacy.decode(data);
+        }
+
+        try {
+            return codec.decode(data.getData());
+        } catch (CacheException ex) {
+            LOGGER.error("decode", ex);
+        }
+
+        return null;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
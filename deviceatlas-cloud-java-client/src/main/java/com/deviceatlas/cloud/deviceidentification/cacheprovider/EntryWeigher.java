@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.deviceatlas.cloud.deviceidentification.client.Property;
+
+/**
+ * Estimates the heap retained by a cache entry.
+ *
+ * The figures are those of a 64 bits JVM with compressed references, they
+ * are meant to keep a cache within a memory budget, not to be exact.
+ * Objects reachable more than once from the entry are counted once.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class EntryWeigher {
+    private static final int OBJECT_HEADER  = 16;
+    private static final int ARRAY_HEADER   = 16;
+    private static final int REFERENCE      = 4;
+    private static final int STRING         = 24;
+    private static final int MAP            = 48;
+    private static final int MAP_ENTRY      = 32;
+    private static final int COLLECTION     = 40;
+    private static final int PROPERTY       = 24;
+    private static final int BOXED          = 16;
+    private static final int BOXED_WIDE     = 24;
+
+    /**
+     * Returns the estimated size of a cache entry and its key
+     *
+     * @param key
+     * @param entry
+     * @return number of bytes
+     */
+
+    public long weigh(String key, Object entry) {
+        return weigh(key) + weigh(entry);
+    }
+
+    /**
+     * Returns the estimated size of an object graph
+     *
+     * @param value
+     * @return number of bytes
+     */
+
+    public long weigh(Object value) {
+        return weigh(value, new IdentityHashMap<Object, Boolean>());
+    }
+
+    private long weigh(Object value, IdentityHashMap<Object, Boolean> seen) {
+        if (value == null || value instanceof Boolean) {
+            // Boolean.TRUE and Boolean.FALSE are shared
+            return 0;
+        }
+
+        if (seen.put(value, Boolean.TRUE) != null) {
+            return 0;
+        }
+
+        if (value instanceof String) {
+            return STRING + align(ARRAY_HEADER + 2L * ((String)value).length());
+        }
+
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof Character || value instanceof Float) {
+            return BOXED;
+        }
+
+        if (value instanceof Long || value instanceof Double) {
+            return BOXED_WIDE;
+        }
+
+        if (value instanceof byte[]) {
+            return align(ARRAY_HEADER + ((byte[])value).length);
+        }
+
+        if (value instanceof Property) {
+            return PROPERTY + weigh(((Property)value).value(), seen);
+        }
+
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)value;
+            // entries plus a table sized for the default load factor
+            long size = MAP + align(ARRAY_HEADER + (long)REFERENCE * tableSize(map.size()));
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                size += MAP_ENTRY + weigh(e.getKey(), seen) + weigh(e.getValue(), seen);
+            }
+
+            return size;
+        }
+
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>)value;
+            long size = COLLECTION + align(ARRAY_HEADER + (long)REFERENCE * collection.size());
+            for (Object item : collection) {
+                size += MAP_ENTRY + weigh(item, seen);
+            }
+
+            return size;
+        }
+
+        return OBJECT_HEADER;
+    }
+
+    private static int tableSize(int entries) {
+        int size = 16;
+        while (size * 3 / 4 < entries) {
+            size <<= 1;
+        }
+
+        return size;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background evictor of the file cache entries.
+ *
+ * Keeps an in-memory index of the size and last access of each cache file.
+ * A daemon thread walks the cache directories periodically, removing the
+ * expired entries, the orphan temporary files and the empty directories,
+ * and correcting the index for the files written or removed by other
+ * processes. When the files exceed the configured size or count, the least
+ * recently used ones are removed until 90% of the cap is reached.
+ *
+ * @author Afilias Technologies Ltd
+ */
+class FileCacheEvictor implements Runnable {
+    private static final String THREAD_NAME         = "DeviceAtlasCloud-FileCacheEvictor";
+    private static final double LOW_WATERMARK       = 0.9;
+    private static final long   TMP_FILE_LIFETIME   = 3600000L;
+    private static final int    DIRECTORY_LEVELS    = 2;
+    private static final Logger LOGGER              = LoggerFactory.getLogger(FileCacheEvictor.class);
+    private final FileCacheProvider                 provider;
+    private final Path                              root;
+    private final String                            fileExt;
+    private final String                            tmpExt;
+    private volatile long                           maxBytes;
+    private volatile long                           maxEntries;
+    private final long                              sweepInterval;
+    private final ConcurrentMap<String, Entry>      index       = new ConcurrentHashMap<String, Entry>(1024);
+    private final AtomicLong                        bytes       = new AtomicLong();
+    private final AtomicLong                        evictions   = new AtomicLong();
+    private final Object                            signal      = new Object();
+    private boolean                                 signalled   = false;
+    private volatile boolean                        running     = true;
+    private long                                    sweeps      = 0;
+    private Thread                                  thread;
+
+    /**
+     * Size and recency of a cache file
+     */
+    private static final class Entry {
+        private volatile long size;
+        private volatile long lastAccess;
+        private volatile long sweep;
+
+        Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    FileCacheEvictor(FileCacheProvider provider, Path root, String fileExt, String tmpExt,
+            long maxBytes, long maxEntries, long sweepInterval) {
+        this.provider = provider;
+        this.root = root;
+        this.fileExt = fileExt;
+        this.tmpExt = tmpExt;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.sweepInterval = sweepInterval;
+    }
+
+    /**
+     * Starts the evictor thread, which first indexes the existing files
+     */
+
+    public void start() {
+        thread = new Thread(this, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the evictor thread
+     */
+
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Records a cache file written
+     *
+     * @param key
+     * @param size file size in bytes
+     */
+
+    public void recordWrite(String key, long size) {
+        long now = System.currentTimeMillis();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            Entry created = new Entry(0, now);
+            entry = index.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+
+        // the writes are serialised by the provider
+        bytes.addAndGet(size - entry.size);
+        entry.size = size;
+        entry.lastAccess = now;
+
+        if (isOverCap()) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Records a cache hit
+     *
+     * @param key
+     */
+
+    public void recordAccess(String key) {
+        Entry entry = index.get(key);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records a cache file removed
+     *
+     * @param key
+     */
+
+    public void recordRemove(String key) {
+        Entry entry = index.remove(key);
+        if (entry != null) {
+            bytes.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     * Changes the caps, evicting at once if needed
+     *
+     * @param maxBytes 0 for no cap
+     * @param maxEntries 0 for no cap
+     */
+
+    public void setCaps(long maxBytes, long maxEntries) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        wakeUp();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getEntries() {
+        return index.size();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = 0;
+
+        while (running) {
+            try {
+                if (System.currentTimeMillis() >= nextSweep) {
+                    sweep();
+                    nextSweep = System.currentTimeMillis() + sweepInterval;
+                } else {
+                    evict();
+                }
+
+                synchronized (signal) {
+                    long wait = nextSweep - System.currentTimeMillis();
+                    if (!signalled && wait > 0) {
+                        signal.wait(wait);
+                    }
+                    if (signalled) {
+                        signalled = false;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                break;
+            } catch (RuntimeException ex) {
+                LOGGER.error("file cache eviction", ex);
+            }
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    private boolean isOverCap() {
+        return (maxBytes > 0 && bytes.get() > maxBytes) || (maxEntries > 0 && index.size() > maxEntries);
+    }
+
+    /**
+     * Removes the least recently used entries until the files are back
+     * under the low watermark of the caps
+     */
+
+    void evict() {
+        if (!isOverCap()) {
+            return;
+        }
+
+        long targetBytes = (long)(maxBytes * LOW_WATERMARK);
+        long targetEntries = (long)(maxEntries * LOW_WATERMARK);
+        List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+        final Map<String, Long> accesses = new HashMap<String, Long>(entries.size() * 2);
+        for (Map.Entry<String, Entry> entry : entries) {
+            // the access times keep changing, the sort needs a stable copy
+            accesses.put(entry.getKey(), entry.getValue().lastAccess);
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                long diff = accesses.get(a.getKey()) - accesses.get(b.getKey());
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (Map.Entry<String, Entry> entry : entries) {
+            boolean overBytes = maxBytes > 0 && bytes.get() > targetBytes;
+            boolean overEntries = maxEntries > 0 && index.size() > targetEntries;
+            if (!running || (!overBytes && !overEntries)) {
+                break;
+            }
+
+            try {
+                provider.remove(entry.getKey());
+                evictions.incrementAndGet();
+            } catch (CacheException ex) {
+                LOGGER.error("file cache eviction of " + entry.getKey(), ex);
+                recordRemove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Walks the cache directories, then evicts
+     */
+
+    void sweep() {
+        final long sweepId = ++sweeps;
+        final long started = System.currentTimeMillis();
+        final long lifetime = provider.getExpiry() * 1000L;
+
+        try {
+            Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), DIRECTORY_LEVELS + 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    Path relative = root.relativize(file);
+                    String name = file.getFileName().toString();
+                    long modified = attrs.lastModifiedTime().toMillis();
+
+                    if (name.endsWith(tmpExt)) {
+                        if (started - modified > TMP_FILE_LIFETIME) {
+                            delete(file);
+                        }
+                    } else if (relative.getNameCount() == DIRECTORY_LEVELS + 1 && name.endsWith(fileExt)) {
+                        String key = relative.getName(0).toString() + relative.getName(1).toString()
+                            + name.substring(0, name.length() - fileExt.length());
+                        if (started - modified >= lifetime) {
+                            expire(key);
+                        } else {
+                            index(key, attrs.size(), modified, sweepId);
+                        }
+                    }
+
+                    return running ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    // removed in the meantime
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                    if (!dir.equals(root)) {
+                        removeIfEmpty(dir);
+                    }
+
+                    return running ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+            });
+        } catch (IOException ex) {
+            LOGGER.error("file cache sweep", ex);
+        }
+
+        // the files gone since, unless written during the walk
+        long total = 0;
+        for (Map.Entry<String, Entry> entry : index.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.sweep != sweepId && value.lastAccess < started) {
+                index.remove(entry.getKey(), value);
+            } else {
+                total += value.size;
+            }
+        }
+        bytes.set(total);
+
+        evict();
+    }
+
+    private void index(String key, long size, long modified, long sweepId) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            entry = new Entry(size, modified);
+            Entry previous = index.putIfAbsent(key, entry);
+            if (previous != null) {
+                entry = previous;
+            }
+        }
+
+        entry.size = size;
+        if (modified > entry.lastAccess) {
+            entry.lastAccess = modified;
+        }
+        entry.sweep = sweepId;
+    }
+
+    private void expire(String key) {
+        try {
+            provider.remove(key);
+        } catch (CacheException ex) {
+            LOGGER.error("file cache expiry of " + key, ex);
+        }
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.debug("file cache temporary file {} not removed", file);
+        }
+    }
+
+    /**
+     * Removes an empty directory, serialised with the writes which create them
+     */
+
+    private void removeIfEmpty(Path dir) {
+        Lock lock = provider.getDirectoryLock();
+        lock.lock();
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = Files.newDirectoryStream(dir);
+            if (!stream.iterator().hasNext()) {
+                stream.close();
+                stream = null;
+                Files.delete(dir);
+            }
+        } catch (IOException ex) {
+            // in use by another process
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+            }
+            lock.unlock();
+        }
+    }
+}
@@ -32,25 +32,27 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.FileInputStream;
-import java.io.ObjectOutputStream;
 import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.channels.OverlappingFileLockException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,21 +62,64 @@ import org.slf4j.LoggerFactory;
  *
  * @author Afilias Technologies Ltd
  */
-public class FileCacheProvider implements CacheProvider {
+public class FileCacheProvider implements ScannableCacheProvider {
     private static final String SETTING_FILE        = "/deviceatlas-filecache.ini";
     private static final String TMP_DIR             = System.getProperty("java.io.tmpdir");
     private static final String CACHE_FILE_EXT      = ".dat";
+    private static final String CACHE_TMP_EXT       = ".tmp";
+    private static final AtomicLong TMP_SUFFIX      = new AtomicLong(System.nanoTime());
     private static final String ROOT_NAME           = "DeviceAtlasCloud_" + FileCacheProvider.class.getSimpleName();
     private static final int    DEFAULT_EXPIRY      = 3600;
+    private static final int    DEFAULT_QUEUE_SIZE  = 10000;
+    private static final int    DEFAULT_BATCH_SIZE  = 64;
+    private static final int    DEFAULT_COMPRESSION_THRESHOLD = 256;
+    private static final int    DEFAULT_EVICTION_INTERVAL = 60;
+    private static final int    KEY_LOCKS           = 64;
     private static final Logger LOGGER              = LoggerFactory.getLogger(FileCacheProvider.class);
     private Map<String, Object> cache               = new ConcurrentHashMap<String, Object>(1024);    
+    // time each in-memory copy was set or read, a newer cache file was rewritten by another process
+    private Map<String, Long>   loaded              = new ConcurrentHashMap<String, Long>(1024);
     private int                 expiry              = DEFAULT_EXPIRY;
     private boolean             set                 = false;
     private String              directory           = TMP_DIR;
+    private boolean             writeBehind         = true;
+    private int                 writeQueueSize      = DEFAULT_QUEUE_SIZE;
+    private int                 writeBatchSize      = DEFAULT_BATCH_SIZE;
+    private boolean             compression         = false;
+    private int                 compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean             compressionDictionary = true;
+    private long                maxBytes            = 0;
+    private long                maxEntries          = 0;
+    private int                 evictionInterval    = DEFAULT_EVICTION_INTERVAL;
+    private EntryCodec          codec;
+    private final boolean       background;
+    private volatile FileCacheWriter writer;
+    private volatile FileCacheEvictor evictor;
+    // serialise the file writes and removals of a key, the other keys are written in parallel
+    private final Object[]      keyLocks            = new Object[KEY_LOCKS];
+    // shared by the writes, the evictor removes an empty directory exclusively
+    private final ReentrantReadWriteLock directories = new ReentrantReadWriteLock();
     private Path                rootPath;
     private File                rootFile;
 
     public FileCacheProvider() {
+        this(true);
+    }
+
+    /**
+     * Creates a provider over the directory of the config file
+     *
+     * @param background false for a provider without background writer nor
+     *        evictor, its entries are written at the root of the directory on
+     *        the caller thread and are never evicted. For the small entries
+     *        sharing the directory of a data cache (server lists, counters)
+     */
+
+    public FileCacheProvider(boolean background) {
+        this.background = background;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
         InputStream is = getClass().getResourceAsStream(SETTING_FILE);
         BufferedReader br = null;
         InputStreamReader isr = null;
@@ -101,7 +146,23 @@ public class FileCacheProvider implements CacheProvider {
             }
         }
 
+        // without compression the entries keep the plain serialised format of the earlier versions
+        codec = compression
+            ? new EntryCodec(compressionThreshold, compressionDictionary ? EntryCodec.getDefaultDictionary() : null)
+            : new EntryCodec();
         definePaths();
+
+        if (set && background && writeBehind) {
+            writer = new FileCacheWriter(this, writeQueueSize, writeBatchSize);
+            writer.start();
+        }
+
+        if (set && background) {
+            // a single evictor per directory tree, the one of the data cache
+            evictor = new FileCacheEvictor(this, rootPath, CACHE_FILE_EXT, CACHE_TMP_EXT,
+                    maxBytes, maxEntries, evictionInterval * 1000L);
+            evictor.start();
+        }
     }
 
     /**
@@ -115,9 +176,32 @@ public class FileCacheProvider implements CacheProvider {
 
         while ((line = br.readLine()) != null) {
             String [] config = line.split("=");
-            if (config.length == 2 &&
-                    "directory".equalsIgnoreCase(config[0].trim())) {
-                directory = config[1].trim();
+            if (config.length != 2) {
+                continue;
+            }
+
+            String configkey = config[0].trim();
+            String configval = config[1].trim();
+            if ("directory".equalsIgnoreCase(configkey)) {
+                directory = configval;
+            } else if ("writebehind".equalsIgnoreCase(configkey)) {
+                writeBehind = Boolean.parseBoolean(configval);
+            } else if ("writequeuesize".equalsIgnoreCase(configkey)) {
+                writeQueueSize = Integer.parseInt(configval);
+            } else if ("writebatchsize".equalsIgnoreCase(configkey)) {
+                writeBatchSize = Integer.parseInt(configval);
+            } else if ("compression".equalsIgnoreCase(configkey)) {
+                compression = Boolean.parseBoolean(configval);
+            } else if ("compressionthreshold".equalsIgnoreCase(configkey)) {
+                compressionThreshold = Integer.parseInt(configval);
+            } else if ("compressiondictionary".equalsIgnoreCase(configkey)) {
+                compressionDictionary = Boolean.parseBoolean(configval);
+            } else if ("maxbytes".equalsIgnoreCase(configkey)) {
+                maxBytes = Long.parseLong(configval);
+            } else if ("maxentries".equalsIgnoreCase(configkey)) {
+                maxEntries = Long.parseLong(configval);
+            } else if ("evictioninterval".equalsIgnoreCase(configkey)) {
+                evictionInterval = Integer.parseInt(configval);
             }
         }
     }
@@ -153,9 +237,6 @@ public class FileCacheProvider implements CacheProvider {
      */
 
     public void setCacheFileEntry(File current, Path path) {
-        final String setCacheFileEntryError = "get cache file entries";
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
         String pathPrefix = path.toString();
         int pathIndex = pathPrefix.indexOf(CACHE_FILE_EXT);
 
@@ -165,34 +246,37 @@ public class FileCacheProvider implements CacheProvider {
             return;
         }
 
-        try {
-            fis = new FileInputStream(current);
-            ois = new ObjectInputStream(fis);
+        Object entry = readCacheFile(current);
+        if (entry != null) {
+            cache.put(pathPrefix, entry);
+        }
+    }
+
+    /**
+     * Reads an entry from a cache file, possibly written by another process
+     *
+     * @param current
+     * @return Object or null if the file cannot be read
+     */
+
+    public Object readCacheFile(File current) {
+        final String readCacheFileError = "read cache file";
 
-            cache.put(pathPrefix, ois.readObject());
+        try {
+            // encoded entries and plain serialised ones of the earlier versions
+            return codec.decode(Files.readAllBytes(current.toPath()));
+        } catch (NoSuchFileException ex) {
+            // removed by another process in the meantime
+            return null;
         } catch (IOException ex) {
-            LOGGER.error(setCacheFileEntryError, ex);
-        } catch (ClassNotFoundException ex) {
-            LOGGER.error(setCacheFileEntryError, ex);
+            LOGGER.error(readCacheFileError, ex);
+        } catch (CacheException ex) {
+            LOGGER.error(readCacheFileError, ex);
         } catch (Exception ex) {
-            LOGGER.error(setCacheFileEntryError, ex);
-        } finally {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException ex) {
-                    LOGGER.error("object input stream", ex);
-                }
-            }
-
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException ex) {
-                    LOGGER.error("file input stream", ex);
-                }
-            }
+            LOGGER.error(readCacheFileError, ex);
         }
+
+        return null;
     }
 
     /**
@@ -216,33 +300,46 @@ public class FileCacheProvider implements CacheProvider {
     }
 
     /**
-     * Returns the path from the given key
+     * Returns the path from the given key. The directories are only
+     * created when the entry is written
      *
      * @param key
      * @return Path
      */
 
     public Path getCachePath(String key) throws IOException {
-        Path cachePath;
-        File dir;
-
-        if (!key.equals(ClientConstants.CACHE_NAME_SERVERS_AUTO.toString()) &&
-                !key.equals(ClientConstants.CACHE_NAME_SERVERS_MANUAL.toString())) {
-            cachePath = Paths.get(rootPath.toString(), key.substring(0, 2), key.substring(2, 4));
-            key = key.substring(4);
-        } else {
-            cachePath = rootPath;
+        if (!background || isServersKey(key)) {
+            return Paths.get(rootPath.toString(), key + CACHE_FILE_EXT);
         }
 
-        dir = new File(cachePath.toString());
-        if (!dir.exists() && !dir.mkdirs()) {
-            throw new IOException("Failed to create " + cachePath + " directory");
+        return Paths.get(rootPath.toString(), key.substring(0, 2), key.substring(2, 4), key.substring(4) + CACHE_FILE_EXT);
+    }
+
+    /**
+     * Returns the path from the given key, creating its directories
+     *
+     * @param key
+     * @return Path
+     */
+
+    private Path createCachePath(String key) throws IOException {
+        Path cachePath = getCachePath(key);
+        File dir = cachePath.getParent().toFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir + " directory");
         }
-        cachePath = Paths.get(cachePath.toString(), key + CACHE_FILE_EXT);
 
         return cachePath;
     }
 
+    /**
+     * The server lists live at the root and are never evicted
+     */
+    private static boolean isServersKey(String key) {
+        return key.equals(ClientConstants.CACHE_NAME_SERVERS_AUTO.toString()) ||
+            key.equals(ClientConstants.CACHE_NAME_SERVERS_MANUAL.toString());
+    }
+
     @Override
     public <T> T get(String key) throws CacheException {
         if (!set) {
@@ -252,19 +349,44 @@ public class FileCacheProvider implements CacheProvider {
                     );
         }
 
+        // entry not written to the disk yet
+        FileCacheWriter currentWriter = writer;
+        Object pending = currentWriter != null ? currentWriter.getPending(key) : null;
+        if (pending != null) {
+            return (T)pending;
+        }
+
         try {
             Path cachePath = getCachePath(key);
             File f = new File(cachePath.toString());
-            if (!f.exists()) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(cachePath, BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
                 return null;
             }
 
-            BasicFileAttributes attrs = Files.readAttributes(cachePath, BasicFileAttributes.class);
             FileTime time = attrs.lastModifiedTime();
             Date now = new Date();
 
             if ((now.getTime() - time.toMillis()) < (this.expiry * 1000)) {
-                return (T)cache.get(key);
+                FileCacheEvictor currentEvictor = evictor;
+                if (currentEvictor != null) {
+                    currentEvictor.recordAccess(key);
+                }
+
+                Object entry = cache.get(key);
+                Long loadedAt = loaded.get(key);
+                if (entry == null || loadedAt == null || time.toMillis() > loadedAt) {
+                    // written or rewritten by another process sharing the directory
+                    Object read = readCacheFile(f);
+                    if (read != null) {
+                        entry = read;
+                        cache.put(key, entry);
+                        loaded.put(key, time.toMillis());
+                    }
+                }
+                return (T)entry;
             } else {
                 remove(key);
             }
@@ -276,55 +398,129 @@ public class FileCacheProvider implements CacheProvider {
     }
 
     /**
-     * Applies a lock to a cache's file
+     * Writes a cache's file. The entry is written to a temporary file which
+     * then replaces the cache file, so other processes reading the directory
+     * never see a partly written entry. Only the writes of the same key
+     * wait for each other
      *
      * @param key
      * @param entry
      */
 
-    public synchronized <T> void lockAndSet(String key, T entry) throws CacheException {
-        final String lockAndSetError = "Failed to put cache entry in ";
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
+    public <T> void lockAndSet(String key, T entry) throws CacheException {
+        synchronized (lockFor(key)) {
+            final String lockAndSetError = "Failed to put cache entry in ";
+            FileOutputStream fos = null;
+            Path tmpPath = null;
 
-        try {
-            Path cachePath = getCachePath(key);
+            directories.readLock().lock();
+            try {
+                byte[] data = compression ? codec.encode(entry) : serialize(entry);
+                Path cachePath = createCachePath(key);
+                tmpPath = Paths.get(cachePath.toString() + "." + TMP_SUFFIX.incrementAndGet() + CACHE_TMP_EXT);
+
+                fos = new FileOutputStream(tmpPath.toString());
+                fos.write(data);
+                fos.close();
+                fos = null;
+
+                moveCacheFile(tmpPath, cachePath);
+                tmpPath = null;
+                loaded.put(key, Files.getLastModifiedTime(cachePath).toMillis());
+
+                FileCacheEvictor currentEvictor = evictor;
+                if (currentEvictor != null && !isServersKey(key)) {
+                    currentEvictor.recordWrite(key, data.length);
+                }
+            } catch (IOException ex) {
+                throw new CacheException(
+                        lockAndSetError + key, ex
+                        );
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException ex) {
+                        LOGGER.error("file output stream", ex);
+                    }
+                }
 
-            fos = new FileOutputStream(cachePath.toString());
-            FileChannel fch = fos.getChannel();
-            FileLock flk = fch.lock();
-            oos = new ObjectOutputStream(fos);
+                if (tmpPath != null && !new File(tmpPath.toString()).delete()) {
+                    LOGGER.debug("temporary cache file {} not removed", tmpPath);
+                }
+                directories.readLock().unlock();
+            }
+        }
+    }
 
-            oos.writeObject(entry);
+    /**
+     * Serialises an entry
+     *
+     * @param entry
+     * @return byte[]
+     */
 
-            flk.release();
-        } catch (IOException ex) {
-            throw new CacheException(
-                    lockAndSetError + key, ex
-                    );
-        } catch (OverlappingFileLockException ex) {
-            throw new CacheException(
-                    lockAndSetError + key, ex
-                    );
-        } finally {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException ex) {
-                    LOGGER.error("object output stream", ex);
-                }
+    private byte[] serialize(Object entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(entry);
+        oos.close();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Replaces a cache file by a freshly written one
+     *
+     * @param source
+     * @param target
+     */
+
+    private void moveCacheFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes an entry queued by the background writer, unless it was
+     * removed or replaced in the meantime
+     *
+     * @param key
+     * @param entry
+     */
+
+    void persist(String key, Object entry) {
+        synchronized (lockFor(key)) {
+            if (cache.get(key) != entry) {
+                return;
             }
 
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException ex) {
-                    LOGGER.error("file output stream", ex);
-                }
+            try {
+                lockAndSet(key, entry);
+            } catch (CacheException ex) {
+                LOGGER.error("persist", ex);
             }
         }
     }
 
+    /**
+     * Returns the lock to hold while removing or moving the cache
+     * directories, no entry is written to the disk meanwhile
+     *
+     * @return Lock
+     */
+
+    public Lock getDirectoryLock() {
+        return directories.writeLock();
+    }
+
+    private Object lockFor(String key) {
+        return keyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCKS];
+    }
+
     @Override
     public <T> void set(String key, T entry) throws CacheException {
         if (!set) {
@@ -334,8 +530,13 @@ public class FileCacheProvider implements CacheProvider {
                     );
         }
 
+        loaded.put(key, System.currentTimeMillis());
         cache.put(key, entry);
-        lockAndSet(key, entry);
+        FileCacheWriter currentWriter = writer;
+        if (currentWriter == null || !currentWriter.enqueue(key, entry)) {
+            // the reads go through the file, a full write queue falls back to a synchronous write
+            lockAndSet(key, entry);
+        }
     }
 
     @Override
@@ -347,17 +548,29 @@ public class FileCacheProvider implements CacheProvider {
                     );
         }
         cache.remove(key);
+        loaded.remove(key);
+        FileCacheWriter currentWriter = writer;
+        if (currentWriter != null) {
+            currentWriter.cancel(key);
+        }
+        FileCacheEvictor currentEvictor = evictor;
+        if (currentEvictor != null) {
+            currentEvictor.recordRemove(key);
+        }
 
-        try {
-            Path cachePath = getCachePath(key);
-            File cacheFile = new File(cachePath.toString());
-            if (cacheFile.exists() && !cacheFile.delete()) {
-                throw new CacheException(
-                        "Failed to remove entry " + key
-                        );
+        // serialised with the background writer so a queued write cannot recreate the file
+        synchronized (lockFor(key)) {
+            try {
+                Path cachePath = getCachePath(key);
+                File cacheFile = new File(cachePath.toString());
+                if (cacheFile.exists() && !cacheFile.delete()) {
+                    throw new CacheException(
+                            "Failed to remove entry " + key
+                            );
+                }
+            } catch (IOException ex) {
+                LOGGER.error("remove", ex);
             }
-        } catch (IOException ex) {
-            LOGGER.error("remove", ex);
         }
     }
 
@@ -373,12 +586,121 @@ public class FileCacheProvider implements CacheProvider {
     }
 
     /**
-     * No shutdown operation for this class
+     * Stops the background writer and writes the pending entries to the disk
      *
      */
     @Override
     public void shutdown() {
-        return;
+        FileCacheWriter currentWriter = writer;
+        if (currentWriter != null) {
+            writer = null;
+            currentWriter.shutdown();
+        }
+
+        FileCacheEvictor currentEvictor = evictor;
+        if (currentEvictor != null) {
+            evictor = null;
+            currentEvictor.shutdown();
+        }
+    }
+
+    /**
+     * Sets the background writing of the entries. Overrides the config file,
+     * the entries already queued are written first
+     *
+     * @param writeBehind false to write the entries on the caller thread
+     * @param queueSize number of keys waiting to be written, beyond it the
+     *        entries are written on the caller thread
+     */
+
+    public void setWriteBehind(boolean writeBehind, int queueSize) {
+        this.writeBehind = writeBehind;
+        this.writeQueueSize = queueSize;
+
+        FileCacheWriter currentWriter = writer;
+        if (currentWriter != null) {
+            writer = null;
+            currentWriter.shutdown();
+        }
+
+        if (set && background && writeBehind) {
+            FileCacheWriter newWriter = new FileCacheWriter(this, writeQueueSize, writeBatchSize);
+            newWriter.start();
+            writer = newWriter;
+        }
+    }
+
+    /**
+     * Sets the disk cap, the least recently used entries are removed in the
+     * background beyond it. Overrides the config file
+     *
+     * @param maxBytes total size of the cache files, 0 for no cap
+     * @param maxEntries number of cache files, 0 for no cap
+     */
+
+    public void setDiskCap(long maxBytes, long maxEntries) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+
+        FileCacheEvictor currentEvictor = evictor;
+        if (currentEvictor != null) {
+            currentEvictor.setCaps(maxBytes, maxEntries);
+        }
+    }
+
+    /**
+     * Returns the total size of the indexed cache files
+     *
+     * @return long
+     */
+
+    public long getDiskBytes() {
+        FileCacheEvictor currentEvictor = evictor;
+        return currentEvictor != null ? currentEvictor.getBytes() : 0;
+    }
+
+    /**
+     * Returns the number of indexed cache files
+     *
+     * @return long
+     */
+
+    public long getDiskEntries() {
+        FileCacheEvictor currentEvictor = evictor;
+        return currentEvictor != null ? currentEvictor.getEntries() : 0;
+    }
+
+    /**
+     * Returns the number of entries removed to stay under the disk cap
+     *
+     * @return long
+     */
+
+    public long getEvictions() {
+        FileCacheEvictor currentEvictor = evictor;
+        return currentEvictor != null ? currentEvictor.getEvictions() : 0;
+    }
+
+    /**
+     * Returns the entries lifetime
+     *
+     * @return seconds
+     */
+
+    int getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Returns the number of entries written on the caller thread because the
+     * write queue was full
+     *
+     * @return long
+     */
+
+    public long getFullQueueWrites() {
+        FileCacheWriter currentWriter = writer;
+        return currentWriter != null ? currentWriter.getFullQueueWrites() : 0;
     }
 
     @Override
@@ -391,6 +713,21 @@ public class FileCacheProvider implements CacheProvider {
         return keys;
     }
 
+    /**
+     * Scans the keys of the entries written to the disk, walking the cache
+     * directories lazily
+     *
+     */
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        if (!set) {
+            return new IteratorKeyCursor(new ArrayList<String>().iterator(), prefix, limit, batchSize);
+        }
+
+        FileKeyIterator keys = new FileKeyIterator(rootPath, CACHE_FILE_EXT, prefix);
+        return new IteratorKeyCursor(keys, keys, prefix, limit, batchSize);
+    }
+
     @Override
     public void setExpiry(int expiry) {
         this.expiry = expiry;
@@ -0,0 +1,217 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background writer of the file cache entries (write-behind).
+ *
+ * The request threads only record the latest entry for a key and queue the
+ * key, the disk write is done later by a single daemon thread. Several writes
+ * of the same key before the writer reaches it are collapsed into one. When
+ * the queue is full the entry is not queued, the provider then writes it on
+ * the request thread.
+ *
+ * @author Afilias Technologies Ltd
+ */
+class FileCacheWriter implements Runnable {
+    private static final String THREAD_NAME         = "DeviceAtlasCloud-FileCacheWriter";
+    private static final long   POLL_TIMEOUT        = 500;
+    private static final long   SHUTDOWN_TIMEOUT    = 5000;
+    private static final Logger LOGGER              = LoggerFactory.getLogger(FileCacheWriter.class);
+    private final FileCacheProvider             provider;
+    private final BlockingQueue<String>         queue;
+    private final ConcurrentMap<String, Object> pending = new ConcurrentHashMap<String, Object>();
+    private final int                           batchSize;
+    private final AtomicLong                    fullQueueWrites = new AtomicLong();
+    private volatile boolean                    running = true;
+    private Thread                              thread;
+
+    FileCacheWriter(FileCacheProvider provider, int queueSize, int batchSize) {
+        this.provider = provider;
+        this.queue = new LinkedBlockingQueue<String>(queueSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts the writer thread
+     */
+
+    public void start() {
+        thread = new Thread(this, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the disk write of an entry, never blocks
+     *
+     * @param key
+     * @param entry
+     * @return false if the entry was not queued, the caller has to write it
+     */
+
+    public boolean enqueue(String key, Object entry) {
+        if (!running) {
+            return false;
+        }
+
+        if (pending.put(key, entry) != null) {
+            // a write of this key is already queued, it will pick the new entry
+            return true;
+        }
+
+        if (queue.offer(key)) {
+            return true;
+        }
+
+        fullQueueWrites.incrementAndGet();
+        LOGGER.debug("file cache write queue full, writing {} on the caller thread", key);
+        if (pending.remove(key, entry)) {
+            return false;
+        }
+
+        // a newer entry was given meanwhile and counts on this write, write it here
+        write(key);
+        return true;
+    }
+
+    /**
+     * Returns an entry waiting to be written, if any
+     *
+     * @param key
+     * @return Object
+     */
+
+    public Object getPending(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * Cancels the pending write of a key
+     *
+     * @param key
+     */
+
+    public void cancel(String key) {
+        pending.remove(key);
+    }
+
+    /**
+     * Returns the number of entries not queued because of a full queue
+     *
+     * @return long
+     */
+
+    public long getFullQueueWrites() {
+        return fullQueueWrites.get();
+    }
+
+    @Override
+    public void run() {
+        List<String> batch = new ArrayList<String>(batchSize);
+
+        while (running) {
+            try {
+                String key = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+
+                batch.add(key);
+                queue.drainTo(batch, batchSize - 1);
+                for (String batchKey : batch) {
+                    write(batchKey);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException ex) {
+                LOGGER.error("file cache writer", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the latest entry of a key to the disk
+     *
+     * @param key
+     */
+
+    private void write(String key) {
+        Object entry;
+
+        while ((entry = pending.get(key)) != null) {
+            provider.persist(key, entry);
+            if (pending.remove(key, entry)) {
+                return;
+            }
+            // the entry was replaced while being written, write the new one
+        }
+    }
+
+    /**
+     * Writes all the queued entries on the caller thread
+     */
+
+    public void flush() {
+        String key;
+        while ((key = queue.poll()) != null) {
+            write(key);
+        }
+    }
+
+    /**
+     * Stops the writer thread and flushes the remaining entries
+     */
+
+    public void shutdown() {
+        running = false;
+
+        if (thread != null) {
+            try {
+                thread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lazy walk of the FileCacheProvider directories, returning the key of
+ * each cache file. Only one directory listing per level is open at a time.
+ *
+ * @author Afilias Technologies Ltd
+ */
+class FileKeyIterator implements Iterator<String>, Closeable {
+    private static final Logger LOGGER  = LoggerFactory.getLogger(FileKeyIterator.class);
+    private static final int    LEVELS  = 2;
+    private final String            fileExt;
+    private final String            prefix;
+    private final Deque<Level>      levels  = new ArrayDeque<Level>();
+    private String                  nextKey;
+
+    /**
+     * Directory being listed
+     */
+    private static class Level {
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path>        paths;
+        private final String                keyPrefix;
+
+        Level(DirectoryStream<Path> stream, String keyPrefix) {
+            this.stream = stream;
+            this.paths = stream.iterator();
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    FileKeyIterator(Path root, String fileExt, String prefix) {
+        this.fileExt = fileExt;
+        this.prefix = prefix;
+        open(root, "");
+    }
+
+    private void open(Path dir, String keyPrefix) {
+        try {
+            levels.push(new Level(Files.newDirectoryStream(dir), keyPrefix));
+        } catch (IOException ex) {
+            LOGGER.error("file cache directory listing", ex);
+        }
+    }
+
+    /**
+     * Checks if keys starting with the given prefix can match the scan prefix
+     *
+     * @param keyPrefix
+     * @return boolean
+     */
+
+    private boolean matches(String keyPrefix) {
+        if (prefix == null) {
+            return true;
+        }
+
+        return keyPrefix.length() >= prefix.length() ? keyPrefix.startsWith(prefix) : prefix.startsWith(keyPrefix);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextKey == null && !levels.isEmpty()) {
+            Level level = levels.peek();
+            if (!level.paths.hasNext()) {
+                closeLevel(levels.pop());
+                continue;
+            }
+
+            Path path = level.paths.next();
+            String name = path.getFileName().toString();
+            int depth = levels.size() - 1;
+
+            if (Files.isDirectory(path)) {
+                if (depth < LEVELS && matches(level.keyPrefix + name)) {
+                    open(path, level.keyPrefix + name);
+                }
+            } else if ((depth == 0 || depth == LEVELS) && name.endsWith(fileExt)) {
+                // the server lists are at the root, the entries two levels down
+                nextKey = level.keyPrefix + name.substring(0, name.length() - fileExt.length());
+            }
+        }
+
+        return nextKey != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String key = nextKey;
+        nextKey = null;
+
+        return key;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void closeLevel(Level level) {
+        try {
+            level.stream.close();
+        } catch (IOException ex) {
+            LOGGER.error("file cache directory listing close", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        while (!levels.isEmpty()) {
+            closeLevel(levels.pop());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-min sketch estimating how often keys were seen.
+ *
+ * The counters saturate at 15 and are all halved once the number of
+ * recorded keys reaches the sample size, so the estimates reflect a sliding
+ * window of the recent traffic. Estimates are never lower than the real
+ * count within the window, they may be higher on hash collisions. Each row
+ * combines String.hashCode with a second hash of the characters, so keys
+ * sharing a hash code do not collide in every row.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class FrequencySketch {
+    private static final int    DEPTH           = 4;
+    private static final int    MAX_COUNT       = 15;
+    private static final int[]  SEEDS           = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private final AtomicIntegerArray counters;
+    private final int           mask;
+    private final long          sampleSize;
+    private final AtomicLong    additions       = new AtomicLong();
+
+    /**
+     * Creates a sketch
+     *
+     * @param expectedKeys number of distinct keys expected in a window
+     */
+
+    public FrequencySketch(int expectedKeys) {
+        int width = 16;
+        while (width < expectedKeys && width < (1 << 24)) {
+            width <<= 1;
+        }
+
+        counters = new AtomicIntegerArray(width * DEPTH);
+        mask = width - 1;
+        sampleSize = 10L * width;
+    }
+
+    /**
+     * Returns a hash of the key independent of String.hashCode (FNV-1a)
+     */
+    private static int secondaryHash(String key) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+
+        // odd, so the rows never share the same offset
+        return h | 1;
+    }
+
+    private int index(int hash, int secondary, int row) {
+        int h = (hash + row * secondary) * SEEDS[row];
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    /**
+     * Records an occurrence of a key
+     *
+     * @param key
+     */
+
+    public void increment(String key) {
+        int hash = key.hashCode();
+        int secondary = secondaryHash(key);
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, secondary, row);
+            int count;
+            do {
+                count = counters.get(i);
+            } while (count < MAX_COUNT && !counters.compareAndSet(i, count, count + 1));
+        }
+
+        long n = additions.incrementAndGet();
+        // a single thread ages the window, the others keep counting in the new one
+        if (n >= sampleSize && additions.compareAndSet(n, 0)) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of occurrences of a key in the window
+     *
+     * @param key
+     * @return int
+     */
+
+    public int frequency(String key) {
+        int hash = key.hashCode();
+        int secondary = secondaryHash(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters.get(index(hash, secondary, row)));
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Halves all the counters, the ageing of the window
+     */
+
+    private void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            int count;
+            do {
+                count = counters.get(i);
+            } while (!counters.compareAndSet(i, count, count >>> 1));
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import com.deviceatlas.cloud.deviceidentification.utils.CircuitBreaker;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency guard and circuit breaker in front of any cache provider.
+ *
+ * Each get, set and remove of the underlying provider runs on a small pool
+ * and is given a time budget. An operation which fails or runs over its
+ * budget is abandoned and counted as a failure; after repeated failures the
+ * breaker opens and the provider is bypassed, the lookups then being served
+ * by the optional local fallback or by the cloud service. After a while a
+ * probe operation is let through to detect the recovery. A sick cache tier
+ * thus costs at most the budget per operation, and nothing once open.
+ *
+ * <pre>
+ * Client client = Client.getInstance(new GuardedCacheProvider(new MemcachedCacheProvider(), new SimpleCacheProvider(10000)));
+ * </pre>
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class GuardedCacheProvider implements ScannableCacheProvider {
+    private static final long   DEFAULT_TIMEOUT     = 50;
+    private static final int    DEFAULT_THREADS     = 16;
+    private static final int    DEFAULT_QUEUE_SIZE  = 256;
+    private static final Logger LOGGER              = LoggerFactory.getLogger(GuardedCacheProvider.class);
+    private final CacheProvider         cacheProvider;
+    private final CacheProvider         fallback;
+    private final CircuitBreaker        breaker;
+    private final ThreadPoolExecutor    executor;
+    private volatile long               timeout;
+    private final AtomicLong            timeouts        = new AtomicLong();
+    private final AtomicLong            failures        = new AtomicLong();
+    private final AtomicLong            bypassed        = new AtomicLong();
+
+    /**
+     * Creates a guard
+     *
+     * @param cacheProvider the guarded provider
+     * @param fallback local provider serving while the guarded one is bypassed, may be null
+     * @param timeout time budget of an operation in milliseconds
+     * @param breaker breaker of the guarded provider
+     */
+
+    public GuardedCacheProvider(CacheProvider cacheProvider, CacheProvider fallback, long timeout, CircuitBreaker breaker) {
+        this.cacheProvider = cacheProvider;
+        this.fallback = fallback;
+        this.timeout = timeout;
+        this.breaker = breaker;
+        this.executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DeviceAtlasCloud-CacheGuard");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public GuardedCacheProvider(CacheProvider cacheProvider, CacheProvider fallback) {
+        this(cacheProvider, fallback, DEFAULT_TIMEOUT, new CircuitBreaker());
+    }
+
+    public GuardedCacheProvider(CacheProvider cacheProvider) {
+        this(cacheProvider, null);
+    }
+
+    /**
+     * Returns the guarded cache provider
+     *
+     * @return cacheProvider
+     */
+
+    public CacheProvider getCacheProvider() {
+        return cacheProvider;
+    }
+
+    /**
+     * Returns the state of the breaker
+     *
+     * @return State
+     */
+
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Sets the time budget of an operation
+     *
+     * @param timeout milliseconds
+     */
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the number of operations abandoned over their budget
+     *
+     * @return long
+     */
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of operations which failed
+     *
+     * @return long
+     */
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of operations not sent to the guarded provider,
+     * the breaker being open or the pool full
+     *
+     * @return long
+     */
+
+    public long getBypassed() {
+        return bypassed.get();
+    }
+
+    @Override
+    public <T> T get(final String key) throws CacheException {
+        T entry = guard(new Callable<T>() {
+            @Override
+            public T call() throws CacheException {
+                return cacheProvider.<T>get(key);
+            }
+        }, "get");
+
+        if (fallback == null) {
+            return entry;
+        }
+
+        if (entry != null) {
+            // the local copy serves the lookups while the guarded provider is
+            // bypassed, the entries set here are held already
+            if (fallback.get(key) == null) {
+                fallback.set(key, entry);
+            }
+            return entry;
+        }
+
+        return fallback.<T>get(key);
+    }
+
+    @Override
+    public <T> void set(final String key, final T entry) throws CacheException {
+        if (fallback != null) {
+            fallback.set(key, entry);
+        }
+
+        guard(new Callable<Void>() {
+            @Override
+            public Void call() throws CacheException {
+                cacheProvider.set(key, entry);
+                return null;
+            }
+        }, "set");
+    }
+
+    @Override
+    public void remove(final String key) throws CacheException {
+        if (fallback != null) {
+            fallback.remove(key);
+        }
+
+        guard(new Callable<Void>() {
+            @Override
+            public Void call() throws CacheException {
+                cacheProvider.remove(key);
+                return null;
+            }
+        }, "remove");
+    }
+
+    /**
+     * Runs an operation of the guarded provider within the budget
+     *
+     * @return the result, or null when the operation was bypassed, failed
+     * or timed out
+     */
+
+    private <T> T guard(Callable<T> operation, String name) {
+        if (!breaker.allowRequest()) {
+            bypassed.incrementAndGet();
+            return null;
+        }
+
+        Future<T> future;
+        try {
+            future = executor.submit(operation);
+        } catch (RejectedExecutionException ex) {
+            // the pool is saturated by slow operations already counted, the
+            // provider was not reached: bypassed only, a probe is given back
+            bypassed.incrementAndGet();
+            breaker.releaseRequest();
+            return null;
+        }
+
+        try {
+            T result = future.get(timeout, TimeUnit.MILLISECONDS);
+            breaker.recordSuccess();
+            return result;
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            timeouts.incrementAndGet();
+            breaker.recordFailure();
+        } catch (ExecutionException ex) {
+            failures.incrementAndGet();
+            breaker.recordFailure();
+            LOGGER.error(name, ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            // neither a success nor a failure of the provider, gives the probe back
+            breaker.releaseRequest();
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        if (fallback != null) {
+            fallback.clear();
+        }
+        cacheProvider.clear();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        cacheProvider.shutdown();
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+
+    @Override
+    public List<String> getKeys() {
+        return cacheProvider.getKeys();
+    }
+
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        return KeyCursors.scan(cacheProvider, prefix, limit, batchSize);
+    }
+
+    @Override
+    public void setExpiry(int expiry) {
+        cacheProvider.setExpiry(expiry);
+        if (fallback != null) {
+            fallback.setExpiry(expiry);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Key cursor reading a lazy iterator of keys, applying the prefix, limit
+ * and batch size of a scan.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class IteratorKeyCursor implements KeyCursor {
+    private static final Logger LOGGER          = LoggerFactory.getLogger(IteratorKeyCursor.class);
+    private final Iterator<String>  keys;
+    private final Closeable         resource;
+    private final String            prefix;
+    private final int               limit;
+    private final int               batchSize;
+    private int                     returned;
+    private String                  nextKey;
+    private boolean                 closed;
+
+    /**
+     * Creates a cursor
+     *
+     * @param keys iterator of all the keys
+     * @param resource closed with the cursor, may be null
+     * @param prefix only the keys starting with it are returned, null for all the keys
+     * @param limit maximum number of keys returned, 0 for no limit
+     * @param batchSize maximum number of keys per batch
+     */
+
+    public IteratorKeyCursor(Iterator<String> keys, Closeable resource, String prefix, int limit, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        this.keys = keys;
+        this.resource = resource;
+        this.prefix = prefix;
+        this.limit = limit;
+        this.batchSize = batchSize;
+    }
+
+    public IteratorKeyCursor(Iterator<String> keys, String prefix, int limit, int batchSize) {
+        this(keys, null, prefix, limit, batchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextKey != null) {
+            return true;
+        }
+
+        if (closed || (limit > 0 && returned >= limit)) {
+            return false;
+        }
+
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key != null && (prefix == null || key.startsWith(prefix))) {
+                nextKey = key;
+                return true;
+            }
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    public List<String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        List<String> batch = new ArrayList<String>(batchSize);
+        while (batch.size() < batchSize && hasNext()) {
+            batch.add(nextKey);
+            nextKey = null;
+            returned++;
+        }
+
+        return batch;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (IOException ex) {
+                LOGGER.error("key cursor close", ex);
+            }
+        }
+    }
+}
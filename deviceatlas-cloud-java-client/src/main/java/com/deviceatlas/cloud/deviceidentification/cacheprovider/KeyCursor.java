@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Cursor over the keys of a cache, returned by
+ * ScannableCacheProvider.scanKeys(). The keys are fetched batch by batch so
+ * a whole cache can be walked in constant memory. A cursor must be closed
+ * when not read until the end.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public interface KeyCursor extends Closeable {
+    /**
+     * Checks if there are keys left
+     * @return boolean
+     */
+    boolean hasNext();
+
+    /**
+     * Returns the next batch of keys
+     * @throws java.util.NoSuchElementException when there are no keys left
+     * @return List, never empty
+     */
+    List<String> next();
+
+    /**
+     * Releases the resources held by the cursor
+     */
+    @Override
+    void close();
+}
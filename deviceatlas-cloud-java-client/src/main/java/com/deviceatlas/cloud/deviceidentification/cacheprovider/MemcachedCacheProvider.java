@@ -36,6 +36,7 @@ import java.net.SocketAddress;
 import java.net.InetSocketAddress;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,14 +67,21 @@ class MemcacheConfig {
     }
 }
 
-public class MemcachedCacheProvider implements CacheProvider {
+public class MemcachedCacheProvider implements ScannableCacheProvider {
     private static final String   SETTING_FILE      = "/deviceatlas-memcached.ini";
     private MemcachedClient mClient                 = null;
     private static final String  DEFAULT_HOST       = "127.0.0.1";
     private static final int  DEFAULT_EXPIRY        = 3600;
     private static final int  DEFAULT_PORT          = 11211;
+    private static final int  DEFAULT_COMPRESSION_THRESHOLD = 256;
+    private static final String COMPRESSION_CONFIG  = "compression";
     private int                     expiry          = DEFAULT_EXPIRY;
     private List<InetSocketAddress> servers         = new ArrayList<InetSocketAddress>();
+    private boolean                 compression     = false;
+    private int                     compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean                 compressionDictionary = true;
+    // null for the default spymemcached transcoder
+    private Transcoder<Object>      transcoder;
     private static final Logger LOGGER              = LoggerFactory.getLogger(MemcachedCacheProvider.class);
 
     public MemcachedCacheProvider(int expiry) {
@@ -111,6 +119,11 @@ public class MemcachedCacheProvider implements CacheProvider {
             servers.add(new InetSocketAddress(DEFAULT_HOST, DEFAULT_PORT));
         }
 
+        if (compression) {
+            transcoder = new EntryCodecTranscoder(new EntryCodec(compressionThreshold,
+                        compressionDictionary ? EntryCodec.getDefaultDictionary() : null));
+        }
+
         try {
             mClient = new MemcachedClient(servers);
         } catch (IOException ex) {
@@ -160,6 +173,15 @@ public class MemcachedCacheProvider implements CacheProvider {
     public void parseConfig(BufferedReader br) throws IOException {
         String line;
         while ((line = br.readLine()) != null) {
+            if (line.trim().startsWith("#")) {
+                continue;
+            }
+
+            if (line.trim().toLowerCase().startsWith(COMPRESSION_CONFIG)) {
+                parseCompressionLine(line.trim());
+                continue;
+            }
+
             MemcacheConfig mconfig = parseLine(line);
 
             servers.add(new InetSocketAddress(mconfig.getHost(), mconfig.getPort()));
@@ -167,11 +189,34 @@ public class MemcachedCacheProvider implements CacheProvider {
     }
 
 
+    /**
+     * Parses a compression config line
+     *
+     * @param line
+     */
+
+    private void parseCompressionLine(String line) {
+        String [] config = line.split("=");
+        if (config.length != 2) {
+            return;
+        }
+
+        String configkey = config[0].trim();
+        String configval = config[1].trim();
+        if ("compression".equalsIgnoreCase(configkey)) {
+            compression = Boolean.parseBoolean(configval);
+        } else if ("compressionthreshold".equalsIgnoreCase(configkey)) {
+            compressionThreshold = Integer.parseInt(configval);
+        } else if ("compressiondictionary".equalsIgnoreCase(configkey)) {
+            compressionDictionary = Boolean.parseBoolean(configval);
+        }
+    }
+
     @Override
     public <T> T get(String key) throws CacheException {
         if (mClient != null) {
             try {
-                return (T)mClient.get(key);
+                return (T)(transcoder != null ? mClient.get(key, transcoder) : mClient.get(key));
             } catch (Exception ex) {
                 LOGGER.error("get", ex);
             }
@@ -188,7 +233,11 @@ public class MemcachedCacheProvider implements CacheProvider {
     public <T> void set(String key, T entry) throws CacheException {
         if (mClient != null) {
             try {
-                mClient.set(key, expiry, entry);
+                if (transcoder != null) {
+                    mClient.set(key, expiry, entry, transcoder);
+                } else {
+                    mClient.set(key, expiry, entry);
+                }
             } catch (Exception ex) {
                 throw new CacheException(
                         "Failed to put cache entry in " + key, ex
@@ -247,6 +296,18 @@ public class MemcachedCacheProvider implements CacheProvider {
         return keys;
     }
 
+    /**
+     * Scans the keys stored on the servers. Unlike getKeys(), which returns
+     * the servers statistics names, this returns the actual keys, including
+     * the ones of other applications sharing the servers
+     *
+     */
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        MemcachedKeyIterator keys = new MemcachedKeyIterator(servers);
+        return new IteratorKeyCursor(keys, keys, prefix, limit, batchSize);
+    }
+
     @Override
     public void setExpiry(int expiry) {
         this.expiry = expiry;
@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the keys of memcached servers with the "lru_crawler metadump"
+ * command (memcached 1.4.31 and above), one server after the other.
+ *
+ * @author Afilias Technologies Ltd
+ */
+class MemcachedKeyIterator implements Iterator<String>, Closeable {
+    private static final String COMMAND             = "lru_crawler metadump all\r\n";
+    private static final String KEY_FIELD           = "key=";
+    private static final String END                 = "END";
+    private static final String CHARSET             = "UTF-8";
+    private static final int    CONNECT_TIMEOUT     = 1000;
+    private static final int    READ_TIMEOUT        = 10000;
+    private static final Logger LOGGER              = LoggerFactory.getLogger(MemcachedKeyIterator.class);
+    private final List<InetSocketAddress>   servers;
+    private int                             server;
+    private Socket                          socket;
+    private BufferedReader                  reader;
+    private String                          nextKey;
+
+    MemcachedKeyIterator(List<InetSocketAddress> servers) {
+        this.servers = servers;
+    }
+
+    /**
+     * Connects to the next server and sends the dump command
+     *
+     * @return false when all the servers were read
+     */
+
+    private boolean openNext() {
+        while (server < servers.size()) {
+            InetSocketAddress address = servers.get(server++);
+            try {
+                socket = new Socket();
+                socket.connect(address, CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                OutputStream os = socket.getOutputStream();
+                os.write(COMMAND.getBytes(CHARSET));
+                os.flush();
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET));
+
+                return true;
+            } catch (IOException ex) {
+                LOGGER.error("memcached key dump " + address, ex);
+                closeServer();
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextKey == null) {
+            if (reader == null && !openNext()) {
+                return false;
+            }
+
+            try {
+                String line = reader.readLine();
+                if (line == null || END.equals(line)) {
+                    closeServer();
+                } else if (line.startsWith(KEY_FIELD)) {
+                    int end = line.indexOf(' ');
+                    String key = end < 0 ? line.substring(KEY_FIELD.length()) : line.substring(KEY_FIELD.length(), end);
+                    nextKey = URLDecoder.decode(key, CHARSET);
+                } else {
+                    // ERROR on servers without the crawler, BUSY when a crawl is already running
+                    LOGGER.warn("memcached key dump not available on {}: {}", socket.getRemoteSocketAddress(), line);
+                    closeServer();
+                }
+            } catch (IOException ex) {
+                LOGGER.error("memcached key dump", ex);
+                closeServer();
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String key = nextKey;
+        nextKey = null;
+
+        return key;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void closeServer() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.error("memcached key dump close", ex);
+            }
+        }
+        socket = null;
+        reader = null;
+    }
+
+    @Override
+    public void close() {
+        server = servers.size();
+        closeServer();
+    }
+}
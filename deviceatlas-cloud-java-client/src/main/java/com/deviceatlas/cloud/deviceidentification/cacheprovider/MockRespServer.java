@@ -0,0 +1,331 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mock a RESP server, keeping the entries in memory. It answers the
+ * commands used by the RespCacheProvider: PING, AUTH, SELECT, GET, SET
+ * (with EX), DEL, MGET, MSET, FLUSHDB and SCAN (prefix patterns only).
+ *
+ * Use this server only for testing and experiments, do not use this
+ * in production.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class MockRespServer {
+    private final ConcurrentSkipListMap<String, byte[]> entries     = new ConcurrentSkipListMap<String, byte[]>();
+    private final Map<String, Long>                     expiries    = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong                            commands    = new AtomicLong();
+    private final List<Socket>                          clients     = new ArrayList<Socket>();
+    private final ServerSocket                          server;
+    private volatile boolean                            running     = true;
+
+    /**
+     * Starts a server on a free loopback port
+     *
+     * @throws IOException
+     */
+
+    public MockRespServer() throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "MockRespServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of commands answered
+     *
+     * @return long
+     */
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Returns the lifetime given to a key
+     *
+     * @param key
+     * @return seconds, or -1 when the key does not expire
+     */
+
+    public long getExpiry(String key) {
+        Long expiry = expiries.get(key);
+        return expiry == null ? -1 : expiry.longValue();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            server.close();
+            synchronized (clients) {
+                for (Socket client : clients) {
+                    client.close();
+                }
+            }
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket client = server.accept();
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                Thread handler = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                }, "MockRespServer-Client");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+
+            while (running) {
+                List<byte[]> args;
+                try {
+                    args = readCommand(in);
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                commands.incrementAndGet();
+                answer(args, out);
+                // flushed once the pipelined commands are all answered
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException ex) {
+            // closed
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+
+    private void answer(List<byte[]> args, OutputStream out) throws IOException {
+        String name = string(args.get(0)).toUpperCase();
+
+        if ("PING".equals(name)) {
+            simple(out, "PONG");
+        } else if ("AUTH".equals(name) || "SELECT".equals(name)) {
+            simple(out, "OK");
+        } else if ("GET".equals(name)) {
+            bulk(out, entries.get(string(args.get(1))));
+        } else if ("SET".equals(name)) {
+            String key = string(args.get(1));
+            entries.put(key, args.get(2));
+            expiries.remove(key);
+            if (args.size() == 5 && "EX".equalsIgnoreCase(string(args.get(3)))) {
+                expiries.put(key, Long.valueOf(string(args.get(4))));
+            }
+            simple(out, "OK");
+        } else if ("DEL".equals(name)) {
+            long removed = 0;
+            for (int i = 1; i < args.size(); i++) {
+                expiries.remove(string(args.get(i)));
+                if (entries.remove(string(args.get(i))) != null) {
+                    removed++;
+                }
+            }
+            integer(out, removed);
+        } else if ("MGET".equals(name)) {
+            array(out, args.size() - 1);
+            for (int i = 1; i < args.size(); i++) {
+                bulk(out, entries.get(string(args.get(i))));
+            }
+        } else if ("MSET".equals(name)) {
+            for (int i = 1; i + 1 < args.size(); i += 2) {
+                entries.put(string(args.get(i)), args.get(i + 1));
+            }
+            simple(out, "OK");
+        } else if ("FLUSHDB".equals(name)) {
+            entries.clear();
+            expiries.clear();
+            simple(out, "OK");
+        } else if ("SCAN".equals(name)) {
+            scan(args, out);
+        } else {
+            out.write(("-ERR unknown command '" + name + "'\r\n").getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * The cursor is the last key returned, the keys being sorted
+     */
+    private void scan(List<byte[]> args, OutputStream out) throws IOException {
+        String cursor = string(args.get(1));
+        String prefix = "";
+        int count = 10;
+        for (int i = 2; i + 1 < args.size(); i += 2) {
+            if ("MATCH".equalsIgnoreCase(string(args.get(i)))) {
+                String pattern = string(args.get(i + 1));
+                prefix = pattern.substring(0, pattern.length() - 1).replaceAll("\\\\(.)", "$1");
+            } else if ("COUNT".equalsIgnoreCase(string(args.get(i)))) {
+                count = Integer.parseInt(string(args.get(i + 1)));
+            }
+        }
+
+        Map<String, byte[]> tail = "0".equals(cursor) ? entries : entries.tailMap(cursor.substring(1), false);
+        List<String> keys = new ArrayList<String>();
+        String last = null;
+        for (String key : tail.keySet()) {
+            if (keys.size() == count) {
+                break;
+            }
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+            last = key;
+        }
+
+        array(out, 2);
+        bulk(out, (last == null || keys.size() < count ? "0" : "k" + last).getBytes("UTF-8"));
+        array(out, keys.size());
+        for (String key : keys) {
+            bulk(out, key.getBytes("UTF-8"));
+        }
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException();
+        }
+        if (type != '*') {
+            throw new IOException("Inline commands are not supported");
+        }
+
+        int count = Integer.parseInt(readLine(in));
+        List<byte[]> args = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Bulk string expected");
+            }
+            byte[] arg = new byte[Integer.parseInt(readLine(in))];
+            int offset = 0;
+            while (offset < arg.length) {
+                int read = in.read(arg, offset, arg.length - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            in.read();
+            in.read();
+            args.add(arg);
+        }
+
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            sb.append((char)c);
+        }
+        in.read();
+
+        return sb.toString();
+    }
+
+    private static String string(byte[] value) throws IOException {
+        return new String(value, "UTF-8");
+    }
+
+    private static void simple(OutputStream out, String value) throws IOException {
+        out.write(("+" + value + "\r\n").getBytes("UTF-8"));
+    }
+
+    private static void integer(OutputStream out, long value) throws IOException {
+        out.write((":" + value + "\r\n").getBytes("UTF-8"));
+    }
+
+    private static void array(OutputStream out, int size) throws IOException {
+        out.write(("*" + size + "\r\n").getBytes("UTF-8"));
+    }
+
+    private static void bulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.write("$-1\r\n".getBytes("UTF-8"));
+            return;
+        }
+
+        out.write(("$" + value.length + "\r\n").getBytes("UTF-8"));
+        out.write(value);
+        out.write("\r\n".getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Negative lookup filter in front of a remote cache provider.
+ *
+ * The keys written through this client are recorded in a local bloom
+ * filter. A lookup of a key the filter has certainly never seen returns
+ * null straight away instead of paying a network round trip to find
+ * nothing, so the cloud call of a first seen user-agent starts at once.
+ *
+ * The filter only knows the keys written by this client (and the ones
+ * loaded by rebuild()), an entry written by another node sharing the
+ * remote cache is seen as missing until this client writes it as well.
+ * Removed or expired keys stay in the filter, they only cost a remote read.
+ *
+ * <pre>
+ * Client client = Client.getInstance(new NegativeLookupCacheProvider(new MemcachedCacheProvider()));
+ * </pre>
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class NegativeLookupCacheProvider implements ScannableCacheProvider {
+    private static final long   DEFAULT_EXPECTED_KEYS       = 1000000;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01d;
+    private static final int    REBUILD_BATCH_SIZE          = 1000;
+    private static final Logger LOGGER                      = LoggerFactory.getLogger(NegativeLookupCacheProvider.class);
+    private final CacheProvider cacheProvider;
+    private final BloomFilter   filter;
+    private final AtomicLong    skippedLookups              = new AtomicLong();
+    private final AtomicLong    remoteLookups               = new AtomicLong();
+
+    /**
+     * Creates a negative lookup filter
+     *
+     * @param cacheProvider the remote cache provider
+     * @param expectedKeys number of keys the filter is sized for
+     * @param falsePositiveRate wanted rate of useless remote lookups
+     * @param rebuild true to load the keys already in the provider
+     */
+
+    public NegativeLookupCacheProvider(CacheProvider cacheProvider, long expectedKeys,
+            double falsePositiveRate, boolean rebuild) {
+        this.cacheProvider = cacheProvider;
+        this.filter = new BloomFilter(expectedKeys, falsePositiveRate);
+
+        if (rebuild) {
+            rebuild();
+        }
+    }
+
+    public NegativeLookupCacheProvider(CacheProvider cacheProvider) {
+        this(cacheProvider, DEFAULT_EXPECTED_KEYS, DEFAULT_FALSE_POSITIVE_RATE, false);
+    }
+
+    /**
+     * Adds to the filter the keys currently in the provider
+     */
+
+    public final void rebuild() {
+        KeyCursor cursor = KeyCursors.scan(cacheProvider, null, 0, REBUILD_BATCH_SIZE);
+        long count = 0;
+
+        try {
+            while (cursor.hasNext()) {
+                for (String key : cursor.next()) {
+                    filter.put(key);
+                    count++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.debug("negative lookup filter loaded with {} keys", count);
+    }
+
+    /**
+     * Returns the underlying cache provider
+     *
+     * @return cacheProvider
+     */
+
+    public CacheProvider getCacheProvider() {
+        return cacheProvider;
+    }
+
+    /**
+     * Returns the number of lookups answered by the filter alone
+     *
+     * @return long
+     */
+
+    public long getSkippedLookups() {
+        return skippedLookups.get();
+    }
+
+    /**
+     * Returns the number of lookups sent to the provider
+     *
+     * @return long
+     */
+
+    public long getRemoteLookups() {
+        return remoteLookups.get();
+    }
+
+    @Override
+    public <T> T get(String key) throws CacheException {
+        if (!filter.mightContain(key)) {
+            skippedLookups.incrementAndGet();
+            return null;
+        }
+
+        remoteLookups.incrementAndGet();
+        return cacheProvider.get(key);
+    }
+
+    @Override
+    public <T> void set(String key, T entry) throws CacheException {
+        filter.put(key);
+        cacheProvider.set(key, entry);
+    }
+
+    @Override
+    public void remove(String key) throws CacheException {
+        cacheProvider.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        // the filter first: a key set meanwhile may only be a false positive,
+        // never an entry of the provider missing from the filter
+        filter.clear();
+        cacheProvider.clear();
+    }
+
+    @Override
+    public void shutdown() {
+        cacheProvider.shutdown();
+    }
+
+    @Override
+    public List<String> getKeys() {
+        return cacheProvider.getKeys();
+    }
+
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        return KeyCursors.scan(cacheProvider, prefix, limit, batchSize);
+    }
+
+    @Override
+    public void setExpiry(int expiry) {
+        cacheProvider.setExpiry(expiry);
+    }
+}
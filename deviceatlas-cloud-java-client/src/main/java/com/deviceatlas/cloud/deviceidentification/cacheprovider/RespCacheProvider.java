@@ -0,0 +1,486 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache provider for the servers speaking RESP, the Redis protocol
+ * (Redis, Valkey, KeyDB, Dragonfly...).
+ *
+ * The commands are sent over a small pool of connections, each one
+ * pipelining the concurrent commands of the application threads. The
+ * entries are stored with the EntryCodec and expire natively (SET EX).
+ * The keys are prefixed (keyprefix, "deviceatlas:" by default), so the
+ * provider only lists and clears its own keys in a shared database.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class RespCacheProvider implements ScannableCacheProvider {
+    private static final String SETTING_FILE                    = "/deviceatlas-resp.ini";
+    private static final String CHARSET                         = "UTF-8";
+    private static final String DEFAULT_HOST                    = "127.0.0.1";
+    private static final int    DEFAULT_PORT                    = 6379;
+    private static final int    DEFAULT_EXPIRY                  = 3600;
+    private static final int    DEFAULT_CONNECTIONS             = 2;
+    private static final int    DEFAULT_TIMEOUT                 = 1000;
+    private static final int    DEFAULT_COMPRESSION_THRESHOLD   = 256;
+    private static final String DEFAULT_KEY_PREFIX              = "deviceatlas:";
+    private static final int    CLEAR_BATCH_SIZE                = 500;
+    private static final Logger LOGGER                          = LoggerFactory.getLogger(RespCacheProvider.class);
+
+    private String              host                    = DEFAULT_HOST;
+    private int                 port                    = DEFAULT_PORT;
+    private int                 expiry                  = DEFAULT_EXPIRY;
+    private int                 connections             = DEFAULT_CONNECTIONS;
+    private int                 timeout                 = DEFAULT_TIMEOUT;
+    private String              password                = null;
+    private int                 database                = 0;
+    private boolean             compression             = false;
+    private int                 compressionThreshold    = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean             compressionDictionary   = true;
+    private String              keyPrefix               = DEFAULT_KEY_PREFIX;
+    private EntryCodec          codec;
+    private RespConnection[]    pool;
+    private final AtomicInteger next                    = new AtomicInteger();
+
+    public RespCacheProvider(int expiry) {
+        InputStream is = getClass().getResourceAsStream(SETTING_FILE);
+        BufferedReader br = null;
+        InputStreamReader isr = null;
+        if (expiry > 0) {
+            this.expiry = expiry;
+        }
+
+        try {
+            if (is != null) {
+                isr = new InputStreamReader(is, CHARSET);
+                br = new BufferedReader(isr);
+                parseConfig(br);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("resp cache provider reading config attempt", ex);
+        } finally {
+            try {
+                if (br != null) {
+                    br.close();
+                }
+
+                if (isr != null) {
+                    isr.close();
+                }
+            } catch (IOException ex) {
+                LOGGER.error("resp cache provider closing streams attempt", ex);
+            }
+        }
+
+        open();
+    }
+
+    public RespCacheProvider() {
+        this(0);
+    }
+
+    /**
+     * Creates a provider for a server, ignoring the config file
+     *
+     * @param host
+     * @param port
+     * @param expiry entries lifetime in seconds, 0 for the default
+     */
+
+    public RespCacheProvider(String host, int port, int expiry) {
+        this(host, port, expiry, DEFAULT_KEY_PREFIX);
+    }
+
+    /**
+     * Creates a provider for a server, ignoring the config file
+     *
+     * @param host
+     * @param port
+     * @param expiry entries lifetime in seconds, 0 for the default
+     * @param keyPrefix prepended to the keys, clear() only removes the keys with it
+     */
+
+    public RespCacheProvider(String host, int port, int expiry, String keyPrefix) {
+        this.host = host;
+        this.port = port;
+        if (expiry > 0) {
+            this.expiry = expiry;
+        }
+        this.keyPrefix = keyPrefix != null ? keyPrefix : "";
+
+        open();
+    }
+
+    /**
+     * Parses the config file
+     *
+     * @param br
+     */
+
+    public void parseConfig(BufferedReader br) throws IOException {
+        String line;
+
+        while ((line = br.readLine()) != null) {
+            if (line.trim().startsWith("#")) {
+                continue;
+            }
+
+            String [] config = line.split("=");
+            if (config.length != 2) {
+                continue;
+            }
+
+            String configkey = config[0].trim();
+            String configval = config[1].trim();
+            if ("host".equalsIgnoreCase(configkey)) {
+                host = configval;
+            } else if ("port".equalsIgnoreCase(configkey)) {
+                port = Integer.parseInt(configval);
+            } else if ("connections".equalsIgnoreCase(configkey)) {
+                connections = Integer.parseInt(configval);
+            } else if ("timeout".equalsIgnoreCase(configkey)) {
+                timeout = Integer.parseInt(configval);
+            } else if ("password".equalsIgnoreCase(configkey)) {
+                password = configval;
+            } else if ("database".equalsIgnoreCase(configkey)) {
+                database = Integer.parseInt(configval);
+            } else if ("compression".equalsIgnoreCase(configkey)) {
+                compression = Boolean.parseBoolean(configval);
+            } else if ("compressionthreshold".equalsIgnoreCase(configkey)) {
+                compressionThreshold = Integer.parseInt(configval);
+            } else if ("compressiondictionary".equalsIgnoreCase(configkey)) {
+                compressionDictionary = Boolean.parseBoolean(configval);
+            } else if ("keyprefix".equalsIgnoreCase(configkey)) {
+                keyPrefix = configval;
+            }
+        }
+    }
+
+    private void open() {
+        codec = compression
+            ? new EntryCodec(compressionThreshold, compressionDictionary ? EntryCodec.getDefaultDictionary() : null)
+            : new EntryCodec();
+
+        List<byte[][]> handshake = new ArrayList<byte[][]>();
+        if (password != null && password.length() > 0) {
+            handshake.add(args("AUTH", password));
+        }
+        if (database > 0) {
+            handshake.add(args("SELECT", Integer.toString(database)));
+        }
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        pool = new RespConnection[Math.max(1, connections)];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new RespConnection(address, timeout, handshake, "DeviceAtlasCloud-Resp-" + i);
+        }
+    }
+
+    @Override
+    public <T> T get(String key) throws CacheException {
+        try {
+            byte[] data = (byte[])execute(args("GET", key(key)));
+            return data == null ? null : (T)codec.decode(data);
+        } catch (CacheException ex) {
+            // an unreachable cache must not prevent the cloud lookups
+            LOGGER.error("get", ex);
+        }
+
+        return null;
+    }
+
+    @Override
+    public <T> void set(String key, T entry) throws CacheException {
+        execute(setArgs(key, codec.encode(entry)));
+    }
+
+    /**
+     * Gets several entries in one round trip (MGET)
+     *
+     * @param keys
+     * @return Map of the keys found to their entry
+     */
+
+    public <T> Map<String, T> getAll(Collection<String> keys) {
+        Map<String, T> entries = new LinkedHashMap<String, T>();
+        if (keys.isEmpty()) {
+            return entries;
+        }
+
+        List<String> names = new ArrayList<String>(keys);
+        byte[][] args = new byte[names.size() + 1][];
+        args[0] = bytes("MGET");
+        for (int i = 0; i < names.size(); i++) {
+            args[i + 1] = bytes(key(names.get(i)));
+        }
+
+        try {
+            List<Object> values = (List<Object>)execute(args);
+            for (int i = 0; i < names.size(); i++) {
+                byte[] data = (byte[])values.get(i);
+                if (data != null) {
+                    entries.put(names.get(i), (T)codec.decode(data));
+                }
+            }
+        } catch (CacheException ex) {
+            LOGGER.error("getAll", ex);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Sets several entries in one round trip. MSET cannot give the entries
+     * a lifetime, so with an expiry the SET EX commands are pipelined
+     *
+     * @param entries
+     * @throws CacheException
+     */
+
+    public <T> void setAll(Map<String, T> entries) throws CacheException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        if (expiry <= 0) {
+            byte[][] args = new byte[entries.size() * 2 + 1][];
+            int i = 0;
+            args[i++] = bytes("MSET");
+            for (Map.Entry<String, T> entry : entries.entrySet()) {
+                args[i++] = bytes(key(entry.getKey()));
+                args[i++] = codec.encode(entry.getValue());
+            }
+            execute(args);
+            return;
+        }
+
+        RespConnection connection = connection();
+        List<RespConnection.Command> commands = new ArrayList<RespConnection.Command>(entries.size());
+        for (Map.Entry<String, T> entry : entries.entrySet()) {
+            commands.add(connection.submit(setArgs(entry.getKey(), codec.encode(entry.getValue()))));
+        }
+        for (RespConnection.Command command : commands) {
+            command.get(timeout);
+        }
+    }
+
+    @Override
+    public void remove(String key) throws CacheException {
+        execute(args("DEL", key(key)));
+    }
+
+    /**
+     * Removes the keys of this provider, found with SCAN, the other keys of
+     * the database are left alone
+     */
+    @Override
+    public void clear() {
+        Iterator<String> keys = new ScanIterator(keyPrefix, CLEAR_BATCH_SIZE);
+        List<String> batch = new ArrayList<String>(CLEAR_BATCH_SIZE);
+
+        try {
+            while (keys.hasNext()) {
+                batch.add(key(keys.next()));
+                if (batch.size() == CLEAR_BATCH_SIZE || !keys.hasNext()) {
+                    byte[][] args = new byte[batch.size() + 1][];
+                    args[0] = bytes("DEL");
+                    for (int i = 0; i < batch.size(); i++) {
+                        args[i + 1] = bytes(batch.get(i));
+                    }
+                    execute(args);
+                    batch.clear();
+                }
+            }
+        } catch (CacheException ex) {
+            LOGGER.error("clear", ex);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (RespConnection connection : pool) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public List<String> getKeys() {
+        List<String> keys = new ArrayList<String>();
+        KeyCursor cursor = scanKeys(null, 0, 1000);
+        try {
+            while (cursor.hasNext()) {
+                keys.addAll(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return keys;
+    }
+
+    /**
+     * Scans the keys with SCAN, which does not block the server like KEYS.
+     * Only the keys of this provider are returned, without the key prefix
+     */
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        return new IteratorKeyCursor(new ScanIterator(keyPrefix + (prefix != null ? prefix : ""), batchSize), prefix, limit, batchSize);
+    }
+
+    @Override
+    public void setExpiry(int expiry) {
+        this.expiry = expiry;
+    }
+
+    private byte[][] setArgs(String key, byte[] value) {
+        if (expiry > 0) {
+            return new byte[][] {bytes("SET"), bytes(key(key)), value, bytes("EX"), bytes(Integer.toString(expiry))};
+        }
+
+        return new byte[][] {bytes("SET"), bytes(key(key)), value};
+    }
+
+    private String key(String key) {
+        return keyPrefix + key;
+    }
+
+    private Object execute(byte[][] args) throws CacheException {
+        return connection().submit(args).get(timeout);
+    }
+
+    private RespConnection connection() {
+        return pool[(next.getAndIncrement() & Integer.MAX_VALUE) % pool.length];
+    }
+
+    private static byte[][] args(String... values) {
+        byte[][] args = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            args[i] = bytes(values[i]);
+        }
+
+        return args;
+    }
+
+    private static byte[] bytes(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Escapes the glob characters of a SCAN pattern
+     */
+    private static String escapeGlob(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Walks the SCAN cursor of the server lazily, the keys are returned
+     * without the key prefix
+     */
+    private class ScanIterator implements Iterator<String> {
+        private final String        pattern;
+        private final int           count;
+        private String              cursor  = "0";
+        private boolean             started = false;
+        private Iterator<String>    page    = null;
+
+        ScanIterator(String prefix, int count) {
+            this.pattern = escapeGlob(prefix) + "*";
+            this.count = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (page == null || !page.hasNext()) {
+                if (started && "0".equals(cursor)) {
+                    return false;
+                }
+                started = true;
+
+                try {
+                    List<Object> reply = (List<Object>)execute(args("SCAN", cursor, "MATCH", pattern, "COUNT", Integer.toString(count)));
+                    cursor = new String((byte[])reply.get(0), CHARSET);
+                    List<String> keys = new ArrayList<String>();
+                    for (Object key : (List<Object>)reply.get(1)) {
+                        keys.add(new String((byte[])key, CHARSET).substring(keyPrefix.length()));
+                    }
+                    page = keys.iterator();
+                } catch (CacheException ex) {
+                    LOGGER.error("scanKeys", ex);
+                    return false;
+                } catch (UnsupportedEncodingException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connection to a RESP (Redis protocol) server. The callers queue their
+ * commands and wait; the IO thread of the connection writes every queued
+ * command in one batch then reads the replies in order, so concurrent
+ * commands are pipelined without any caller holding the socket.
+ *
+ * @author Afilias Technologies Ltd
+ */
+class RespConnection {
+    private static final int    MAX_BATCH_SIZE  = 256;
+    private static final byte[] CRLF            = {'\r', '\n'};
+    private static final Logger LOGGER          = LoggerFactory.getLogger(RespConnection.class);
+
+    private final InetSocketAddress         address;
+    private final int                       timeout;
+    private final List<byte[][]>            handshake;
+    private final BlockingQueue<Command>    queue           = new LinkedBlockingQueue<Command>();
+    private final Thread                    thread;
+    private volatile boolean                running         = true;
+    private Socket                          socket;
+    private InputStream                     in;
+    private OutputStream                    out;
+    private int                             answered;
+
+    /**
+     * A queued command and, once answered, its reply
+     */
+    static class Command {
+        private final byte[][]          args;
+        private final CountDownLatch    done            = new CountDownLatch(1);
+        private Object                  reply;
+        private Exception               error;
+
+        Command(byte[][] args) {
+            this.args = args;
+        }
+
+        void complete(Object reply, Exception error) {
+            this.reply = reply;
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Waits for the reply
+         *
+         * @param timeout milliseconds
+         * @return the reply: String, Long, byte[], List or null
+         * @throws CacheException on timeout, connection or server error
+         */
+
+        Object get(int timeout) throws CacheException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new CacheException("RESP command timed out");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CacheException("Interrupted while waiting for a RESP reply", ex);
+            }
+
+            if (error != null) {
+                throw new CacheException("RESP command failed", error);
+            }
+
+            return reply;
+        }
+    }
+
+    /**
+     * Creates a connection, the socket being opened on the first command
+     *
+     * @param address server address
+     * @param timeout connect and read timeout in milliseconds
+     * @param handshake commands sent on every new socket (AUTH, SELECT), may be empty
+     * @param name name of the IO thread
+     */
+
+    RespConnection(InetSocketAddress address, int timeout, List<byte[][]> handshake, String name) {
+        this.address = address;
+        this.timeout = timeout;
+        this.handshake = handshake;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a command
+     *
+     * @param args command name and arguments
+     * @return Command to wait on
+     */
+
+    Command submit(byte[]... args) {
+        Command command = new Command(args);
+        if (!running) {
+            command.complete(null, new IOException("RESP connection closed"));
+        } else {
+            queue.add(command);
+        }
+
+        return command;
+    }
+
+    /**
+     * Stops the IO thread, the queued commands fail
+     */
+
+    void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void loop() {
+        List<Command> batch = new ArrayList<Command>(MAX_BATCH_SIZE);
+
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            boolean reused = socket != null;
+            try {
+                exchange(batch);
+            } catch (IOException ex) {
+                IOException failure = ex;
+                disconnect();
+                // the server may have closed an idle socket, retry once on a new one
+                if (reused && answered == 0) {
+                    try {
+                        exchange(batch);
+                        failure = null;
+                    } catch (IOException retryEx) {
+                        disconnect();
+                        failure = retryEx;
+                    }
+                }
+
+                if (failure != null) {
+                    LOGGER.error("RESP connection to " + address, failure);
+                    for (int i = answered; i < batch.size(); i++) {
+                        batch.get(i).complete(null, failure);
+                    }
+                }
+            }
+
+            batch.clear();
+        }
+
+        disconnect();
+        Command command;
+        while ((command = queue.poll()) != null) {
+            command.complete(null, new IOException("RESP connection closed"));
+        }
+    }
+
+    /**
+     * Writes a batch and reads its replies, answered counting the
+     * commands completed
+     */
+
+    private void exchange(List<Command> batch) throws IOException {
+        answered = 0;
+        if (socket == null) {
+            connect();
+        }
+
+        for (Command command : batch) {
+            writeCommand(command.args);
+        }
+        out.flush();
+
+        for (Command command : batch) {
+            Object reply = readReply();
+            answered++;
+            if (reply instanceof ServerError) {
+                command.complete(null, new IOException(((ServerError)reply).message));
+            } else {
+                command.complete(reply, null);
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(address, timeout);
+            s.setSoTimeout(timeout);
+            s.setTcpNoDelay(true);
+            socket = s;
+            in = new BufferedInputStream(s.getInputStream());
+            out = new BufferedOutputStream(s.getOutputStream());
+
+            for (byte[][] args : handshake) {
+                writeCommand(args);
+            }
+            out.flush();
+            for (int i = 0; i < handshake.size(); i++) {
+                Object reply = readReply();
+                if (reply instanceof ServerError) {
+                    throw new IOException("RESP handshake failed: " + ((ServerError)reply).message);
+                }
+            }
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    private void writeCommand(byte[][] args) throws IOException {
+        out.write('*');
+        writeNumber(args.length);
+        for (byte[] arg : args) {
+            out.write('$');
+            writeNumber(arg.length);
+            out.write(arg);
+            out.write(CRLF);
+        }
+    }
+
+    private void writeNumber(long value) throws IOException {
+        out.write(Long.toString(value).getBytes("US-ASCII"));
+        out.write(CRLF);
+    }
+
+    private Object readReply() throws IOException {
+        int type = in.read();
+        switch (type) {
+            case '+':
+                return readLine();
+            case '-':
+                return new ServerError(readLine());
+            case ':':
+                return Long.valueOf(Long.parseLong(readLine()));
+            case '$': {
+                int length = Integer.parseInt(readLine());
+                if (length < 0) {
+                    return null;
+                }
+                byte[] data = new byte[length];
+                int offset = 0;
+                while (offset < length) {
+                    int read = in.read(data, offset, length - offset);
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    offset += read;
+                }
+                if (in.read() != '\r' || in.read() != '\n') {
+                    throw new IOException("Invalid RESP bulk string");
+                }
+                return data;
+            }
+            case '*': {
+                int count = Integer.parseInt(readLine());
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> items = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    items.add(readReply());
+                }
+                return items;
+            }
+            case -1:
+                throw new EOFException();
+            default:
+                throw new IOException("Invalid RESP reply type " + type);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            sb.append((char)c);
+        }
+        if (in.read() != '\n') {
+            throw new IOException("Invalid RESP line");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * An error reply, answered to its own command only
+     */
+    private static class ServerError {
+        private final String message;
+
+        ServerError(String message) {
+            this.message = message;
+        }
+    }
+}
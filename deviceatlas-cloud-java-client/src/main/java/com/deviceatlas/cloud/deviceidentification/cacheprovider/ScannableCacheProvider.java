@@ -0,0 +1,57 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+/**
+ * Cache provider able to stream its keys instead of building the whole
+ * list returned by getKeys().
+ *
+ * <pre>
+ * KeyCursor cursor = provider.scanKeys(null, 0, 1000);
+ * try {
+ *     while (cursor.hasNext()) {
+ *         for (String key : cursor.next()) {
+ *             ...
+ *         }
+ *     }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ *
+ * @author Afilias Technologies Ltd
+ */
+public interface ScannableCacheProvider extends CacheProvider {
+    /**
+     * Scans the keys of the cache. Entries added or removed during the scan
+     * may or may not be returned.
+     * @param prefix only the keys starting with it are returned, null for all the keys
+     * @param limit maximum number of keys returned, 0 for no limit
+     * @param batchSize maximum number of keys per batch
+     * @return KeyCursor
+     */
+    KeyCursor scanKeys(String prefix, int limit, int batchSize);
+}
@@ -0,0 +1,705 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.cacheprovider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared memory cache provider.
+ *
+ * The entries live in a single memory mapped file laid out as a fixed
+ * capacity hash table, so every JVM of the host mapping the same file shares
+ * the same entries, outside of the heap, and keeps them over restarts.
+ *
+ * The table is split in groups of 8 slots, a key always
+ * lives in the group given by its hash. Reads are lock free: each slot is
+ * guarded by a sequence number (odd while being written) and a checksum, a
+ * reader retries when the slot changed under it. Writers take the stripe
+ * lock of the group, a thread lock plus a byte range lock of the file so
+ * writers of other processes are excluded too. When a group is full the
+ * entry to replace is chosen by a clock (second chance) algorithm.
+ *
+ * The mapped buffer gives no ordering between the sequence number and the
+ * data, for the other threads as for the other processes, so the sequence
+ * number only makes most torn reads retry early. The CRC32 of the key and
+ * value is the real guard: a read mixing two writes fails it and is
+ * retried, and the key bytes are compared so a slot reused for another key
+ * is never returned. The expiry time is outside the checksum and may come
+ * from the previous write of the same key.
+ *
+ * Entries bigger than a slot are not cached.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class SharedMemoryCacheProvider implements ScannableCacheProvider {
+    private static final String SETTING_FILE        = "/deviceatlas-sharedmemory.ini";
+    private static final String FILE_NAME           = "DeviceAtlasCloud_" + SharedMemoryCacheProvider.class.getSimpleName() + ".dat";
+    private static final String CHARSET             = "UTF-8";
+    private static final int    DEFAULT_EXPIRY      = 3600;
+    private static final int    DEFAULT_SLOTS       = 65536;
+    private static final int    DEFAULT_SLOT_SIZE   = 2048;
+    private static final int    GROUP_SIZE          = 8;
+    private static final int    STRIPES             = 64;
+    private static final int    READ_RETRIES        = 8;
+    // header: magic, version, slots, slot size, then one lock byte per stripe
+    private static final int    MAGIC               = 0x44415348;
+    private static final int    VERSION             = 1;
+    private static final int    LOCK_OFFSET         = 64;
+    private static final int    HEADER_SIZE         = 4096;
+    // slot: sequence, state, key hash, expiry time, clock bit, key length, value length, checksum, data
+    private static final int    SEQ                 = 0;
+    private static final int    STATE               = 4;
+    private static final int    HASH                = 8;
+    private static final int    EXPIRES             = 16;
+    private static final int    REFERENCED          = 24;
+    private static final int    KEY_LENGTH          = 28;
+    private static final int    VALUE_LENGTH        = 32;
+    private static final int    CHECKSUM            = 36;
+    private static final int    DATA                = 40;
+    private static final int    STATE_EMPTY         = 0;
+    private static final int    STATE_USED          = 1;
+    private static final Logger LOGGER              = LoggerFactory.getLogger(SharedMemoryCacheProvider.class);
+    // the file locks are held per JVM, the threads of all the instances mapping a file share the stripe locks
+    private static final ConcurrentMap<String, ReentrantLock[]> STRIPE_LOCKS = new ConcurrentHashMap<String, ReentrantLock[]>();
+    private ReentrantLock[]     stripeLocks;
+    private final EntryCodec    codec               = new EntryCodec();
+    private int                 expiry              = DEFAULT_EXPIRY;
+    private int                 slots               = DEFAULT_SLOTS;
+    private int                 slotSize            = DEFAULT_SLOT_SIZE;
+    private String              path                = new File(System.getProperty("java.io.tmpdir"), FILE_NAME).toString();
+    private int                 groups;
+    private RandomAccessFile    file;
+    private FileChannel         channel;
+    private MappedByteBuffer    buffer;
+    private volatile boolean    set                 = false;
+
+    public SharedMemoryCacheProvider(int expiry) {
+        InputStream is = getClass().getResourceAsStream(SETTING_FILE);
+        BufferedReader br = null;
+        InputStreamReader isr = null;
+        if (expiry > 0) {
+            this.expiry = expiry;
+        }
+
+        try {
+            if (is != null) {
+                isr = new InputStreamReader(is, CHARSET);
+                br = new BufferedReader(isr);
+                parseConfig(br);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("shared memory cache provider reading config attempt", ex);
+        } finally {
+            try {
+                if (br != null) {
+                    br.close();
+                }
+
+                if (isr != null) {
+                    isr.close();
+                }
+            } catch (IOException ex) {
+                LOGGER.error("shared memory cache provider closing streams attempt", ex);
+            }
+        }
+
+        try {
+            mapFile();
+            set = true;
+        } catch (IOException ex) {
+            LOGGER.error("shared memory cache provider mapping attempt", ex);
+        }
+    }
+
+    public SharedMemoryCacheProvider() {
+        this(0);
+    }
+
+    /**
+     * Parses the config file
+     *
+     * @param br
+     */
+
+    public void parseConfig(BufferedReader br) throws IOException {
+        String line;
+
+        while ((line = br.readLine()) != null) {
+            String [] config = line.split("=");
+            if (config.length != 2) {
+                continue;
+            }
+
+            String configkey = config[0].trim();
+            String configval = config[1].trim();
+            if ("file".equalsIgnoreCase(configkey)) {
+                path = configval;
+            } else if ("slots".equalsIgnoreCase(configkey)) {
+                slots = Integer.parseInt(configval);
+            } else if ("slotsize".equalsIgnoreCase(configkey)) {
+                slotSize = Integer.parseInt(configval);
+            }
+        }
+    }
+
+    /**
+     * Maps the table file, creating or resetting it when its layout does
+     * not match the configuration
+     */
+
+    private void mapFile() throws IOException {
+        groups = Math.max(1, slots / GROUP_SIZE);
+        slots = groups * GROUP_SIZE;
+
+        long size = HEADER_SIZE + (long)slots * slotSize;
+        if (slotSize <= DATA || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid shared memory cache size, slots: " + slots + ", slot size: " + slotSize);
+        }
+
+        File tableFile = new File(path);
+        File parent = tableFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent + " directory");
+        }
+
+        String canonicalPath = tableFile.getCanonicalPath();
+        ReentrantLock[] locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        stripeLocks = STRIPE_LOCKS.putIfAbsent(canonicalPath, locks);
+        if (stripeLocks == null) {
+            stripeLocks = locks;
+        }
+
+        file = new RandomAccessFile(tableFile, "rw");
+        channel = file.getChannel();
+
+        // the header lock serialises the initialisation between processes
+        synchronized (stripeLocks) {
+            FileLock lock = channel.lock(0, LOCK_OFFSET, false);
+            try {
+                initialise(size);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Maps the file and resets the table if its layout is not the expected one
+     *
+     * @param size
+     */
+
+    private void initialise(long size) throws IOException {
+        boolean valid = file.length() == size;
+        if (!valid) {
+            file.setLength(size);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        valid = valid && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION &&
+            buffer.getInt(8) == slots && buffer.getInt(12) == slotSize;
+
+        if (!valid) {
+            LOGGER.info("initialising shared memory cache {}", path);
+            for (int i = 0; i < slots; i++) {
+                buffer.putInt(slotOffset(i) + STATE, STATE_EMPTY);
+            }
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, slots);
+            buffer.putInt(12, slotSize);
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the key, never 0
+     *
+     * @param key
+     * @return long
+     */
+
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        return h == 0 ? 1 : h;
+    }
+
+    private int group(long keyHash) {
+        return (int)((keyHash >>> 1) % groups);
+    }
+
+    private void checkSet(String key, String operation) throws CacheException {
+        if (!set) {
+            throw new CacheException(
+                    "Failed to " + operation + " cache entry in " + key +
+                    ", cache not set"
+                    );
+        }
+    }
+
+    @Override
+    public <T> T get(String key) throws CacheException {
+        checkSet(key, "get");
+        byte[] keyBytes = toBytes(key);
+        long keyHash = hash(keyBytes);
+        int first = group(keyHash) * GROUP_SIZE;
+        ByteBuffer view = buffer.duplicate();
+
+        for (int slot = first; slot < first + GROUP_SIZE; slot++) {
+            byte[] value = readSlot(view, slotOffset(slot), keyHash, keyBytes);
+            if (value != null) {
+                return (T)codec.decode(value);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the value of a slot holding the given key, without locking
+     *
+     * @param view
+     * @param offset
+     * @param keyHash
+     * @param keyBytes
+     * @return byte[] or null if the slot does not hold a live entry for the key
+     */
+
+    private byte[] readSlot(ByteBuffer view, int offset, long keyHash, byte[] keyBytes) {
+        for (int retry = 0; retry < READ_RETRIES; retry++) {
+            int seq = view.getInt(offset + SEQ);
+            if ((seq & 1) != 0) {
+                continue;
+            }
+
+            if (view.getInt(offset + STATE) != STATE_USED || view.getLong(offset + HASH) != keyHash) {
+                return null;
+            }
+
+            long expires = view.getLong(offset + EXPIRES);
+            int keyLength = view.getInt(offset + KEY_LENGTH);
+            int valueLength = view.getInt(offset + VALUE_LENGTH);
+            int checksum = view.getInt(offset + CHECKSUM);
+            if (keyLength != keyBytes.length || valueLength < 0 || DATA + keyLength + valueLength > slotSize) {
+                continue;
+            }
+
+            byte[] data = new byte[keyLength + valueLength];
+            view.position(offset + DATA);
+            view.get(data);
+
+            if (view.getInt(offset + SEQ) != seq || checksum(data) != checksum) {
+                continue;
+            }
+
+            if (!Arrays.equals(keyBytes, Arrays.copyOfRange(data, 0, keyLength)) ||
+                    expires < System.currentTimeMillis()) {
+                return null;
+            }
+
+            // written without the stripe lock: the clock bit is a hint, a lost
+            // or late update only gives an entry one chance more or less
+            if (view.getInt(offset + REFERENCED) == 0) {
+                view.putInt(offset + REFERENCED, 1);
+            }
+            return Arrays.copyOfRange(data, keyLength, data.length);
+        }
+
+        return null;
+    }
+
+    @Override
+    public <T> void set(String key, T entry) throws CacheException {
+        checkSet(key, "put");
+        byte[] keyBytes = toBytes(key);
+        byte[] value = codec.encode(entry);
+
+        if (DATA + keyBytes.length + value.length > slotSize) {
+            LOGGER.debug("entry {} too big for the shared memory cache ({} bytes)", key, value.length);
+            return;
+        }
+
+        long keyHash = hash(keyBytes);
+        int group = group(keyHash);
+        FileLock lock = lockStripe(group);
+
+        try {
+            ByteBuffer view = buffer.duplicate();
+            int slot = findWriteSlot(view, group, keyHash, keyBytes);
+            writeSlot(view, slotOffset(slot), keyHash, keyBytes, value);
+        } finally {
+            unlockStripe(group, lock);
+        }
+    }
+
+    /**
+     * Picks the slot to write, the one holding the key, else a free or
+     * expired one, else the clock victim of the group
+     *
+     * @param view
+     * @param group
+     * @param keyHash
+     * @param keyBytes
+     * @return int
+     */
+
+    private int findWriteSlot(ByteBuffer view, int group, long keyHash, byte[] keyBytes) {
+        int first = group * GROUP_SIZE;
+        int free = -1;
+        long now = System.currentTimeMillis();
+
+        for (int slot = first; slot < first + GROUP_SIZE; slot++) {
+            int offset = slotOffset(slot);
+            if (view.getInt(offset + STATE) != STATE_USED || view.getLong(offset + EXPIRES) < now) {
+                if (free == -1) {
+                    free = slot;
+                }
+            } else if (view.getLong(offset + HASH) == keyHash && keyEquals(view, offset, keyBytes)) {
+                return slot;
+            }
+        }
+
+        if (free != -1) {
+            return free;
+        }
+
+        // clock: the hand starts where the key hashes and clears the bits it passes
+        int hand = (int)((keyHash >>> 32) & 0x7fffffff) % GROUP_SIZE;
+        for (int i = 0; i < GROUP_SIZE * 2; i++) {
+            int offset = slotOffset(first + hand);
+            if (view.getInt(offset + REFERENCED) == 0) {
+                break;
+            }
+            view.putInt(offset + REFERENCED, 0);
+            hand = (hand + 1) % GROUP_SIZE;
+        }
+
+        return first + hand;
+    }
+
+    private boolean keyEquals(ByteBuffer view, int offset, byte[] keyBytes) {
+        if (view.getInt(offset + KEY_LENGTH) != keyBytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (view.get(offset + DATA + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a slot, the sequence number is odd while the slot is changing
+     *
+     * @param view
+     * @param offset
+     * @param keyHash
+     * @param keyBytes
+     * @param value
+     */
+
+    private void writeSlot(ByteBuffer view, int offset, long keyHash, byte[] keyBytes, byte[] value) {
+        byte[] data = new byte[keyBytes.length + value.length];
+        System.arraycopy(keyBytes, 0, data, 0, keyBytes.length);
+        System.arraycopy(value, 0, data, keyBytes.length, value.length);
+
+        int seq = view.getInt(offset + SEQ) | 1;
+        view.putInt(offset + SEQ, seq);
+        view.putInt(offset + STATE, STATE_USED);
+        view.putLong(offset + HASH, keyHash);
+        view.putLong(offset + EXPIRES, System.currentTimeMillis() + expiry * 1000L);
+        view.putInt(offset + REFERENCED, 1);
+        view.putInt(offset + KEY_LENGTH, keyBytes.length);
+        view.putInt(offset + VALUE_LENGTH, value.length);
+        view.putInt(offset + CHECKSUM, checksum(data));
+        view.position(offset + DATA);
+        view.put(data);
+        view.putInt(offset + SEQ, seq + 1);
+    }
+
+    private void clearSlot(ByteBuffer view, int offset) {
+        int seq = view.getInt(offset + SEQ) | 1;
+        view.putInt(offset + SEQ, seq);
+        view.putInt(offset + STATE, STATE_EMPTY);
+        view.putInt(offset + SEQ, seq + 1);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int)crc.getValue();
+    }
+
+    private static byte[] toBytes(String key) throws CacheException {
+        try {
+            return key.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            throw new CacheException("Failed to encode key " + key, ex);
+        }
+    }
+
+    /**
+     * Takes the stripe lock of a group, for this JVM and for the other processes
+     *
+     * @param group
+     * @return FileLock
+     * @throws CacheException when the file cannot be locked
+     */
+
+    private FileLock lockStripe(int group) throws CacheException {
+        int stripe = group % STRIPES;
+        stripeLocks[stripe].lock();
+
+        try {
+            return channel.lock(LOCK_OFFSET + stripe, 1, false);
+        } catch (IOException ex) {
+            stripeLocks[stripe].unlock();
+            throw new CacheException("Failed to lock the shared memory cache", ex);
+        }
+    }
+
+    private void unlockStripe(int group, FileLock lock) {
+        int stripe = group % STRIPES;
+
+        try {
+            lock.release();
+        } catch (IOException ex) {
+            LOGGER.error("unlock stripe", ex);
+        } finally {
+            stripeLocks[stripe].unlock();
+        }
+    }
+
+    @Override
+    public void remove(String key) throws CacheException {
+        checkSet(key, "remove");
+        byte[] keyBytes = toBytes(key);
+        long keyHash = hash(keyBytes);
+        int group = group(keyHash);
+        int first = group * GROUP_SIZE;
+        FileLock lock = lockStripe(group);
+
+        try {
+            ByteBuffer view = buffer.duplicate();
+            for (int slot = first; slot < first + GROUP_SIZE; slot++) {
+                int offset = slotOffset(slot);
+                if (view.getInt(offset + STATE) == STATE_USED && view.getLong(offset + HASH) == keyHash &&
+                        keyEquals(view, offset, keyBytes)) {
+                    clearSlot(view, offset);
+                }
+            }
+        } finally {
+            unlockStripe(group, lock);
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (!set) {
+            return;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        for (int group = 0; group < groups; group++) {
+            FileLock lock;
+            try {
+                lock = lockStripe(group);
+            } catch (CacheException ex) {
+                LOGGER.error("clear", ex);
+                return;
+            }
+
+            try {
+                for (int slot = group * GROUP_SIZE; slot < (group + 1) * GROUP_SIZE; slot++) {
+                    clearSlot(view, slotOffset(slot));
+                }
+            } finally {
+                unlockStripe(group, lock);
+            }
+        }
+    }
+
+    /**
+     * Writes the table to the disk and unmaps it
+     */
+    @Override
+    public void shutdown() {
+        if (!set) {
+            return;
+        }
+
+        set = false;
+        buffer.force();
+
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException ex) {
+            LOGGER.error("shutdown", ex);
+        }
+    }
+
+    @Override
+    public List <String> getKeys() {
+        List<String> keys = new ArrayList<String>();
+        if (!set) {
+            return keys;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < slots; slot++) {
+            String key = readKey(view, slotOffset(slot), now);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Scans the keys slot by slot, without locking
+     *
+     */
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        final ByteBuffer view = set ? buffer.duplicate() : null;
+        final int slotCount = set ? slots : 0;
+
+        Iterator<String> keys = new Iterator<String>() {
+            private int     slot;
+            private String  nextKey;
+
+            @Override
+            public boolean hasNext() {
+                long now = System.currentTimeMillis();
+                while (nextKey == null && slot < slotCount) {
+                    nextKey = readKey(view, slotOffset(slot++), now);
+                }
+
+                return nextKey != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String key = nextKey;
+                nextKey = null;
+
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        return new IteratorKeyCursor(keys, prefix, limit, batchSize);
+    }
+
+    /**
+     * Reads the key of a live slot, without locking
+     *
+     * @param view
+     * @param offset
+     * @param now
+     * @return String or null if the slot is empty, expired or changing
+     */
+
+    private String readKey(ByteBuffer view, int offset, long now) {
+        int seq = view.getInt(offset + SEQ);
+        if ((seq & 1) != 0 || view.getInt(offset + STATE) != STATE_USED || view.getLong(offset + EXPIRES) < now) {
+            return null;
+        }
+
+        int keyLength = view.getInt(offset + KEY_LENGTH);
+        if (keyLength <= 0 || DATA + keyLength > slotSize) {
+            return null;
+        }
+
+        byte[] keyBytes = new byte[keyLength];
+        view.position(offset + DATA);
+        view.get(keyBytes);
+
+        if (view.getInt(offset + SEQ) != seq) {
+            return null;
+        }
+
+        try {
+            return new String(keyBytes, CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            LOGGER.error("read key", ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void setExpiry(int expiry) {
+        this.expiry = expiry;
+    }
+}
@@ -27,32 +27,197 @@ package com.deviceatlas.cloud.deviceidentification.cacheprovider;
 
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Map cache provider. The data is cached in memory inside a HashMap.
  *
+ * By default the cache holds up to 4096 entries. When it is created with a
+ * byte budget the entries are weighed instead and the least recently used
+ * ones are evicted to keep the estimated heap used by the cache under the
+ * budget. The hits are then recorded in a small buffer replayed under the
+ * lock by the next write, or by the hit finding it full, so the lookups do
+ * not wait for each other and the recency is approximate.
+ *
  * @author Afilias Technologies Ltd
  */
-public class SimpleCacheProvider implements CacheProvider {
+public class SimpleCacheProvider implements ScannableCacheProvider {
     private static final int MAX_ENTRIES            = 4096;
     private static final int MAX_ENTRIES_EXTRA      = 5;
     private static final float LOAD_FACTOR          = 1f;
+    private static final int READ_BUFFER_SIZE       = 128;
     private ConcurrentMap<String, Object> cache;
     private final Object cacheLock = new Object();
+    private final long                  maxBytes;
+    private final EntryWeigher          weigher;
+    private final Map<String, Long>     weights;
+    private long                        weightedSize;
+    // hits not yet applied to the access order of the weights
+    private final ConcurrentLinkedQueue<String> reads = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger         readCount   = new AtomicInteger();
+    private final AtomicBoolean         draining    = new AtomicBoolean();
 
     public SimpleCacheProvider() {
         cache = new ConcurrentHashMap<String, Object>(MAX_ENTRIES + MAX_ENTRIES_EXTRA, LOAD_FACTOR);
+        maxBytes = 0;
+        weigher = null;
+        weights = null;
+    }
+
+    /**
+     * Creates a cache bounded by the estimated size of its entries
+     *
+     * @param maxBytes memory budget of the cache
+     * @param weigher estimates the size of the entries
+     */
+
+    public SimpleCacheProvider(long maxBytes, EntryWeigher weigher) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+
+        cache = new ConcurrentHashMap<String, Object>();
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        // access ordered, the least recently used entries are evicted first
+        weights = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    }
+
+    public SimpleCacheProvider(long maxBytes) {
+        this(maxBytes, new EntryWeigher());
+    }
+
+    /**
+     * Returns the memory budget, 0 when the cache is bounded by entry count
+     *
+     * @return long
+     */
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the estimated size of the cached entries
+     *
+     * @return long
+     */
+
+    public long getWeightedSize() {
+        if (weights == null) {
+            long size = 0;
+            EntryWeigher w = new EntryWeigher();
+            for (Map.Entry<String, Object> e : cache.entrySet()) {
+                size += w.weigh(e.getKey(), e.getValue());
+            }
+
+            return size;
+        }
+
+        synchronized(cacheLock) {
+            return weightedSize;
+        }
+    }
+
+    /**
+     * Returns the largest entries by estimated size, largest first
+     *
+     * @param count maximum number of entries to return
+     * @return key to size map
+     */
+
+    public Map<String, Long> getLargestEntries(int count) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        if (weights == null) {
+            EntryWeigher w = new EntryWeigher();
+            Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, Object> e : cache.entrySet()) {
+                sizes.put(e.getKey(), w.weigh(e.getKey(), e.getValue()));
+            }
+            entries.addAll(sizes.entrySet());
+        } else {
+            synchronized(cacheLock) {
+                entries.addAll(new LinkedHashMap<String, Long>(weights).entrySet());
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+
+        Map<String, Long> largest = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < entries.size() && i < count; i++) {
+            largest.put(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+
+        return largest;
     }
 
     @Override
     public <T> T get(String key) throws CacheException {
-        return (T)cache.get(key);
+        Object entry = cache.get(key);
+        if (entry != null && weights != null) {
+            recordRead(key);
+        }
+
+        return (T)entry;
+    }
+
+    /**
+     * Buffers a hit, the buffer is replayed by the hit finding it full
+     * unless another one already does
+     */
+
+    private void recordRead(String key) {
+        if (readCount.incrementAndGet() <= READ_BUFFER_SIZE) {
+            reads.offer(key);
+            return;
+        }
+
+        // this hit is dropped, the recency is approximate
+        readCount.decrementAndGet();
+        if (draining.compareAndSet(false, true)) {
+            try {
+                synchronized(cacheLock) {
+                    drainReads();
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Moves the buffered hits to the most recently used end, cacheLock held
+     */
+
+    private void drainReads() {
+        String key;
+        for (int i = 0; i < READ_BUFFER_SIZE && (key = reads.poll()) != null; i++) {
+            readCount.decrementAndGet();
+            weights.get(key);
+        }
     }
 
     @Override
     public <T> void set(String key, T entry) throws CacheException {
+        if (weights != null) {
+            setWeighted(key, entry);
+            return;
+        }
+
         synchronized(cacheLock) {
             if (cache.size() >= MAX_ENTRIES) {
                 clear();
@@ -62,8 +227,49 @@ public class SimpleCacheProvider implements CacheProvider {
         cache.put(key, entry);
     }
 
+    private void setWeighted(String key, Object entry) {
+        long weight = weigher.weigh(key, entry);
+
+        synchronized(cacheLock) {
+            drainReads();
+            Long previous = weights.remove(key);
+            if (previous != null) {
+                weightedSize -= previous;
+                cache.remove(key);
+            }
+
+            // an entry larger than the whole budget is not cached
+            if (weight > maxBytes) {
+                return;
+            }
+
+            Iterator<Map.Entry<String, Long>> eldest = weights.entrySet().iterator();
+            while (weightedSize + weight > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> e = eldest.next();
+                cache.remove(e.getKey());
+                weightedSize -= e.getValue();
+                eldest.remove();
+            }
+
+            weights.put(key, weight);
+            weightedSize += weight;
+            cache.put(key, entry);
+        }
+    }
+
     @Override
     public void remove(String key) throws CacheException {
+        if (weights != null) {
+            synchronized(cacheLock) {
+                Long previous = weights.remove(key);
+                if (previous != null) {
+                    weightedSize -= previous;
+                }
+                cache.remove(key);
+            }
+            return;
+        }
+
         if (get(key) != null) {
             cache.remove(key);
         }
@@ -71,6 +277,15 @@ public class SimpleCacheProvider implements CacheProvider {
 
     @Override
     public void clear() {
+        if (weights != null) {
+            synchronized(cacheLock) {
+                weights.clear();
+                weightedSize = 0;
+                cache.clear();
+            }
+            return;
+        }
+
         cache.clear();
     }
 
@@ -89,6 +304,11 @@ public class SimpleCacheProvider implements CacheProvider {
         return keys;
     }
 
+    @Override
+    public KeyCursor scanKeys(String prefix, int limit, int batchSize) {
+        return new IteratorKeyCursor(cache.keySet().iterator(), prefix, limit, batchSize);
+    }
+
     @Override
     public void setExpiry(int expiry) { 
         return;
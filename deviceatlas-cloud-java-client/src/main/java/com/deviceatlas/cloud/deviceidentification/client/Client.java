@@ -27,12 +27,16 @@ package com.deviceatlas.cloud.deviceidentification.client;
 import com.deviceatlas.cloud.deviceidentification.endpoint.EndPoint;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheException;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheProvider;
+import com.deviceatlas.cloud.deviceidentification.peer.PeerService;
 import com.deviceatlas.cloud.deviceidentification.service.CacheService;
 import com.deviceatlas.cloud.deviceidentification.service.DeviceIdentificatorService;
 import com.deviceatlas.cloud.deviceidentification.service.EndPointService;
+import com.deviceatlas.cloud.deviceidentification.transport.CloudTransport;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.net.Proxy;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -355,6 +359,77 @@ public class Client {
         endPointService.setCloudServiceTimeout(cloudServiceTimeout);
     }
 
+    /**
+     * Getter for the detection timeout, the time budget of a detection.
+     *
+     * @return Time in milliseconds, 0 = no limit other than the cloud service timeout.
+     */
+    public long getDetectionTimeout() {
+        return deviceIdentificatorService.getDetectionTimeout();
+    }
+
+    /**
+     * Setter for the detection timeout, the time budget of a detection. The
+     * cloud calls, failovers included, share it; once it is used up the
+     * detection returns a result without properties and the "none" source.
+     *
+     * @param detectionTimeout Time in milliseconds, 0 = no limit other than the cloud service timeout.
+     */
+    public void setDetectionTimeout(long detectionTimeout) {
+        deviceIdentificatorService.setDetectionTimeout(detectionTimeout);
+    }
+
+    /**
+     * Getter for hedged requests. When enabled, shall an end-point not answer
+     * within the hedge delay the request is also sent to the next end-point
+     * and the first answer is used.
+     *
+     * @return true = requests are hedged
+     */
+    public boolean getHedgedRequests() {
+        return endPointService.getHedgedRequests();
+    }
+
+    /**
+     * Setter for hedged requests. When enabled, shall an end-point not answer
+     * within the hedge delay the request is also sent to the next end-point
+     * and the first answer is used.
+     *
+     * @param hedgedRequests true = requests are hedged
+     */
+    public void setHedgedRequests(boolean hedgedRequests) {
+        endPointService.setHedgedRequests(hedgedRequests);
+    }
+
+    /**
+     * Getter for the hedge delay.
+     *
+     * @return Time in milliseconds, 0 = the 95th percentile of the end-point latency.
+     */
+    public long getHedgeDelay() {
+        return endPointService.getHedgeDelay();
+    }
+
+    /**
+     * Setter for the hedge delay, the time to wait for an end-point before
+     * sending the request to the next one.
+     *
+     * @param hedgeDelay Time in milliseconds, 0 = the 95th percentile of the end-point latency.
+     */
+    public void setHedgeDelay(long hedgeDelay) {
+        endPointService.setHedgeDelay(hedgeDelay);
+    }
+
+    /**
+     * Setter for the hedge budget, the share of requests which may be sent
+     * to a second end-point.
+     *
+     * @param hedgeBudget 0.1 = at most 10% extra requests.
+     */
+    public void setHedgeBudget(double hedgeBudget) {
+        endPointService.setHedgeBudget(hedgeBudget);
+    }
+
     /**
      * Getter for max server failures.
      *
@@ -606,6 +681,19 @@ public class Client {
         return deviceIdentificatorService.getResult(request);
     }
 
+    /**
+     * Get the cloud service data from the identificator layer, within a
+     * time budget
+     *
+     * @param request
+     * @param timeout milliseconds, 0 for no limit
+     * @return Result, with the "none" source if the budget was used up
+     */
+
+    public Result getResult(HttpServletRequest request, long timeout) throws ClientException {
+        return deviceIdentificatorService.getResult(request, timeout);
+    }
+
     /**
      * Get the cloud service data from the identificator layer
      *
@@ -639,6 +727,19 @@ public class Client {
         return deviceIdentificatorService.getResultByUserAgent(userAgent);
     }
 
+    /**
+     * Get the cloud service data from the identificator layer, within a
+     * time budget
+     *
+     * @param userAgent
+     * @param timeout milliseconds, 0 for no limit
+     * @return Result, with the "none" source if the budget was used up
+     */
+
+    public Result getResultByUserAgent(String userAgent, long timeout) throws ClientException {
+        return deviceIdentificatorService.getResultByUserAgent(userAgent, timeout);
+    }
+
     /**
      * Get the cloud service data from the identificator layer
      *
@@ -650,6 +751,19 @@ public class Client {
         return deviceIdentificatorService.getResultByHeaders(headers);
     }
 
+    /**
+     * Get the cloud service data from the identificator layer, within a
+     * time budget
+     *
+     * @param headers
+     * @param timeout milliseconds, 0 for no limit
+     * @return Result, with the "none" source if the budget was used up
+     */
+
+    public Result getResultByHeaders(Map<String, String> headers, long timeout) throws ClientException {
+        return deviceIdentificatorService.getResultByHeaders(headers, timeout);
+    }
+
     /**
      * Sets the optional proxy for reaching cloud's service
      *
@@ -659,6 +773,79 @@ public class Client {
         endPointService.setProxy(proxy);
     }
 
+    /**
+     * Sets the transport used to reach the cloud end-points, the proxy
+     * setting only applies to the default transport.
+     *
+     * @param transport Transport to use, null = HttpURLConnection
+     */
+    public void setTransport(CloudTransport transport) {
+        endPointService.setTransport(transport);
+    }
+
+    /**
+     * Getter for the transport used to reach the cloud end-points.
+     *
+     * @return CloudTransport
+     */
+    public CloudTransport getTransport() {
+        return endPointService.getTransport();
+    }
+
+    /**
+     * Getter for the number of connections opened in advance to each of the
+     * top end-points, at startup and when the ranking changes.
+     *
+     * @return Number of connections per end-point.
+     */
+    public int getWarmConnections() {
+        return endPointService.getWarmConnections();
+    }
+
+    /**
+     * Setter for the number of connections opened in advance to each of the
+     * top end-points, at startup and when the ranking changes.
+     *
+     * @param warmConnections Number of connections per end-point, 0 = disabled.
+     */
+    public void setWarmConnections(int warmConnections) {
+        endPointService.setWarmConnections(warmConnections);
+    }
+
+    /**
+     * Getter for the time between two background lookups of an end-point
+     * address.
+     *
+     * @return Time in milliseconds.
+     */
+    public long getEndPointAddressRefresh() {
+        return endPointService.getEndPointAddressRefresh();
+    }
+
+    /**
+     * Setter for the time between two background lookups of an end-point
+     * address. The connections resolve the end-points through the address
+     * cache of the JVM, whose lifetime is set by the networkaddress.cache.ttl
+     * security property (30 seconds by default): the background lookups only
+     * renew its entries, keep the interval under this lifetime.
+     *
+     * @param refreshInterval Time in milliseconds.
+     */
+    public void setEndPointAddressRefresh(long refreshInterval) {
+        endPointService.setEndPointAddressRefresh(refreshInterval);
+    }
+
+    /**
+     * Resolves the top end-points and opens connections to them in the
+     * background, so the first requests do not pay for the DNS lookup and
+     * the connection. To be called once the client is configured.
+     *
+     * @throws CacheException
+     */
+    public void warmUp() throws CacheException {
+        endPointService.warmUp();
+    }
+
     /**
      * This throws an exception to prevent cloning this singleton.
      *
@@ -752,6 +939,14 @@ public class Client {
         cacheService.clearCache();
     }
 
+    /**
+     * Remove synchronously every cached entry. With a shared cache, such as
+     * memcached, this removes the data of the other applications as well.
+     */
+    public void purgeCache() {
+        cacheService.purgeCache();
+    }
+
     /**
      * This should be called when shutting down your application. It asks
      * the cache manager to shutdown the cache and write the cache to disk.
@@ -759,9 +954,53 @@ public class Client {
      * See http://ehcache.org/documentation/code-samples#shutdown-the-cachemanager
      */
     public void shutdown() {
+        setPeers(null);
+        endPointService.shutdown();
         cacheService.shutdown();
     }
 
+    /**
+     * Shares the device data with the other nodes of a cluster. Each cache
+     * key is owned by one node, picked by consistent hashing, which makes
+     * the cloud call for the whole cluster; the other nodes ask it for the
+     * data. Every node must be given the same list of peers.
+     *
+     * @param self address this node listens to, host:port
+     * @param peers addresses of the nodes of the cluster
+     * @throws ClientException when the address cannot be listened to
+     */
+    public void setPeers(String self, Collection<String> peers) throws ClientException {
+        PeerService peerService = new PeerService(self, peers, deviceIdentificatorService);
+        try {
+            peerService.start();
+        } catch (IOException ex) {
+            throw new ClientException("Cannot listen to the peers on " + self, ex);
+        }
+        setPeers(peerService);
+    }
+
+    /**
+     * Sets the peer service, null to stop sharing the device data.
+     *
+     * @param peerService
+     */
+    public void setPeers(PeerService peerService) {
+        PeerService previous = deviceIdentificatorService.getPeerService();
+        deviceIdentificatorService.setPeerService(peerService);
+        if (previous != null && previous != peerService) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Getter for the peer service.
+     *
+     * @return PeerService or null if the device data is not shared
+     */
+    public PeerService getPeerService() {
+        return deviceIdentificatorService.getPeerService();
+    }
+
     /**
      * Getter for the sendExtraHeaders setting. Defaults to false. If this
      * TRUE then extra client headers are sent with each request to the
@@ -31,7 +31,7 @@ public enum ClientConstants {
     CLIENT_COOKIE_NAME("DAPROPS"),
     /** The name of the key used to lookup the User-Agent in the results object */
     KEY_USERAGENT("useragent"),
-    /** The name of the key used to lookup the source of data (none, cache or cloud) in the results object */
+    /** The name of the key used to lookup the source of data (none, cache, cloud or peer) in the results object */
     KEY_SOURCE("source"),
     /** The name of the key used to lookup the device properties in the results object */
     KEY_PROPERTIES("properties"),
@@ -45,6 +45,11 @@ public enum ClientConstants {
      * properties set to KEY_PROPERTIES where queried from DA cloud service.
      */
     SOURCE_CLOUD("cloud"),
+    /**
+     * In the result Map, KEY_SOURCE may be set to this. Shows that the device
+     * properties were fetched from the peer owning the cache key.
+     */
+    SOURCE_PEER("peer"),
     /**
      * In the result Map, KEY_SOURCE may be set to this.
      * Indicates that there was a problem getting device data.
@@ -61,7 +66,8 @@ public enum ClientConstants {
     /** fields for connection service return **/
     CLOUD_SERVICE_STATUS("status"),
     CLOUD_SERVICE_MESSAGE("message"),
-    CLOUD_SERVICE_RESULT("result");
+    CLOUD_SERVICE_RESULT("result"),
+    CLOUD_SERVICE_BODY("body");
 
     private final String text;
 
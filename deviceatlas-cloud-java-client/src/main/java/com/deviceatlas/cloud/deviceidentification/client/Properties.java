@@ -25,6 +25,8 @@
 
 package com.deviceatlas.cloud.deviceidentification.client;
 
+import com.deviceatlas.cloud.deviceidentification.utils.InternPool;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,6 +38,9 @@ import java.util.Map;
  * @author Afilias Technologies Ltd
  */
 public class Properties extends HashMap<String, Property> {
+    // Property is immutable, the boolean ones are shared by all the profiles
+    private static final Property TRUE_PROPERTY     = new Property(Boolean.TRUE, DataType.BOOLEAN);
+    private static final Property FALSE_PROPERTY    = new Property(Boolean.FALSE, DataType.BOOLEAN);
 
     public Properties() {
         super();
@@ -45,20 +50,28 @@ public class Properties extends HashMap<String, Property> {
         super(initialCapacity, loadFactor);
     }
 
+    /**
+     * Adds raw property values. The names and values are interned so
+     * the profiles share them
+     *
+     * @param properties property name to value map
+     */
     public void putMap(Map<String, Object> properties) {
+        InternPool pool = InternPool.getDefault();
+
         for(Map.Entry<String, Object> entry : properties.entrySet()) {
             Property prop;
-            Object property = entry.getValue();
+            Object property = pool.canonical(entry.getValue());
 
             if (property instanceof Boolean) {
-                prop = new Property(property, DataType.BOOLEAN);
+                prop = (Boolean)property ? TRUE_PROPERTY : FALSE_PROPERTY;
             } else if (property instanceof Integer) {
                 prop = new Property(property, DataType.INTEGER);
             } else {
                 prop = new Property(property, DataType.STRING);
             }
 
-            put(entry.getKey(), prop);
+            put(pool.intern(entry.getKey()), prop);
         }
     }
 
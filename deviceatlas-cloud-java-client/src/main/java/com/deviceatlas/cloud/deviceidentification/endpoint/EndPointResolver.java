@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.endpoint;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks the end-point hosts up again in the background.
+ *
+ * The connections resolve the host names themselves, through the address
+ * cache of the JVM (networkaddress.cache.ttl, 30 seconds by default). An
+ * HttpURLConnection cannot be handed an address without losing the host
+ * name of the request, so on Java 6 the addresses cannot be kept here with
+ * a lifetime of their own, and none are. refresh() looks the known hosts up
+ * again every refresh interval, shorter than the JVM cache lifetime, so an
+ * expired JVM entry is renewed by the background lookup rather than by a
+ * request. The lifetime of the addresses stays the one of the JVM cache.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class EndPointResolver {
+    // under the default lifetime of the JVM address cache
+    private static final long       DEFAULT_REFRESH_INTERVAL = 15000;
+    private final Set<String>       hosts           = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong        lookups         = new AtomicLong();
+    private volatile long           refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    /**
+     * Looks the host of an end-point up, through the JVM address cache, and
+     * keeps it to be refreshed
+     *
+     * @param endPoint
+     * @return InetAddress[]
+     * @throws UnknownHostException if the host cannot be resolved
+     */
+
+    public InetAddress[] resolve(EndPoint endPoint) throws UnknownHostException {
+        String host = getHostName(endPoint);
+        hosts.add(host);
+
+        return lookup(host);
+    }
+
+    /**
+     * Looks up all the known hosts again
+     */
+
+    public void refresh() {
+        for (String host : hosts) {
+            try {
+                lookup(host);
+            } catch (UnknownHostException ex) {
+                // the JVM keeps the failure for a while, tried again next time
+            }
+        }
+    }
+
+    private InetAddress[] lookup(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        return InetAddress.getAllByName(host);
+    }
+    /**
+     * Returns the host name of an end-point, its host being a base URL
+     *
+     * @param endPoint
+     * @return String
+     */
+
+    public static String getHostName(EndPoint endPoint) {
+        String host = endPoint.host;
+        if (host.indexOf("://") == -1) {
+            return host;
+        }
+        try {
+            String name = URI.create(host).getHost();
+            return name != null ? name : host;
+        } catch (IllegalArgumentException ex) {
+            return host;
+        }
+    }
+
+    /**
+     * Returns the time between two lookups of a host
+     *
+     * @return milliseconds
+     */
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the time between two lookups of a host. The connections keep
+     * using the address cache of the JVM, an interval longer than its
+     * lifetime leaves the lookups of the expired entries to the requests
+     *
+     * @param refreshInterval milliseconds
+     */
+
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns the number of lookups made
+     *
+     * @return long
+     */
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Forgets all the hosts
+     */
+
+    public void clear() {
+        hosts.clear();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.endpoint;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of the last successful calls to an end-point, kept in a ring
+ * buffer to give a recent percentile without keeping any history.
+ *
+ * The calls also feed a score: the exponentially weighted moving average
+ * of the latency plus a penalty for the share of failed calls. The failure
+ * share decays with time, so an end-point avoided after errors is given
+ * another chance after a few minutes.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class EndPointStats {
+    private static final int    DEFAULT_CAPACITY = 128;
+    private final long[]        samples;
+    private int                 next             = 0;
+    private int                 count            = 0;
+    private static final double ALPHA            = 0.2d;
+    private static final double ERROR_DECAY      = TimeUnit.MINUTES.toNanos(1);
+    private double              ewmaLatency      = -1.0d;
+    private double              errorRate        = 0.0d;
+    private long                errorUpdatedAt   = System.nanoTime();
+
+    /**
+     * Creates the statistics of an end-point
+     */
+
+    public EndPointStats() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the statistics of an end-point
+     *
+     * @param capacity number of latencies kept
+     */
+
+    public EndPointStats(int capacity) {
+        this.samples = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Records the latency of a successful call
+     *
+     * @param nanos
+     */
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+
+        double millis = nanos / 1000000.0d;
+        ewmaLatency = ewmaLatency < 0 ? millis : ewmaLatency + ALPHA * (millis - ewmaLatency);
+        errorRate = decayedErrorRate(System.nanoTime()) * (1 - ALPHA);
+    }
+
+    /**
+     * Records a failed call
+     */
+
+    public synchronized void recordFailure() {
+        errorRate = decayedErrorRate(System.nanoTime()) * (1 - ALPHA) + ALPHA;
+    }
+
+    private double decayedErrorRate(long now) {
+        double decayed = errorRate * Math.exp(-(now - errorUpdatedAt) / ERROR_DECAY);
+        errorUpdatedAt = now;
+
+        return decayed;
+    }
+
+    /**
+     * Returns the moving average of the latency
+     *
+     * @return milliseconds, -1 when nothing was recorded
+     */
+
+    public synchronized double getLatency() {
+        return ewmaLatency;
+    }
+
+    /**
+     * Returns the recent share of failed calls
+     *
+     * @return between 0 and 1
+     */
+
+    public synchronized double getErrorRate() {
+        return decayedErrorRate(System.nanoTime());
+    }
+
+    /**
+     * Returns the score of the end-point, the lower the better
+     *
+     * @param errorPenalty milliseconds added for a failure share of 1
+     * @return milliseconds, -1 when no call succeeded yet
+     */
+
+    public synchronized double getScore(double errorPenalty) {
+        if (ewmaLatency < 0) {
+            return -1.0d;
+        }
+
+        return ewmaLatency + decayedErrorRate(System.nanoTime()) * errorPenalty;
+    }
+
+    /**
+     * Returns the number of latencies kept
+     *
+     * @return int
+     */
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the kept latencies
+     *
+     * @param percentile between 0 and 100
+     * @return nanoseconds, -1 when nothing was recorded
+     */
+
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(percentile / 100.0d * sorted.length) - 1;
+
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank))];
+    }
+}
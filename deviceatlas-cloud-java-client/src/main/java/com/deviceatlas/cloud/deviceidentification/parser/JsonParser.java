@@ -25,6 +25,8 @@
 
 package com.deviceatlas.cloud.deviceidentification.parser;
 
+import com.deviceatlas.cloud.deviceidentification.utils.InternPool;
+
 import java.util.Map;
 import java.util.HashMap;
 
@@ -423,7 +425,7 @@ public class JsonParser {
                 return null;
             default:
                 this.json.back();
-                return this.json.nextValue().toString();
+                return InternPool.getDefault().intern(this.json.nextValue().toString());
         }
     }
 
@@ -442,7 +444,7 @@ public class JsonParser {
         if (c != ':') {
             throw this.json.syntaxError("Expected a ':' after a key");
         }
-        tree.put(key, this.json.nextValue());
+        tree.put(key, InternPool.getDefault().canonical(this.json.nextValue()));
     }
 
     /**
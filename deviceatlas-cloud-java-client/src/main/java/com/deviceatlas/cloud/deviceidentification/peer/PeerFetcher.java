@@ -0,0 +1,50 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.peer;
+
+import com.deviceatlas.cloud.deviceidentification.client.ClientException;
+import com.deviceatlas.cloud.deviceidentification.utils.Deadline;
+
+import java.util.Map;
+
+/**
+ * Resolves the device data of a cache key on the node owning it.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public interface PeerFetcher {
+    /**
+     * Returns the device data from the local cache or from the cloud
+     * service, caching the latter
+     * @param cacheKey cache key of the device data
+     * @param userAgent user-agent to identify
+     * @param headers headers to send to the cloud service
+     * @param deadline time budget of the detection, null for none
+     * @throws ClientException when the cloud service cannot be reached
+     * @return Map or null when there are no properties
+     */
+    Map<String, Object> fetch(String cacheKey, String userAgent, Map<String, String> headers, Deadline deadline) throws ClientException;
+}
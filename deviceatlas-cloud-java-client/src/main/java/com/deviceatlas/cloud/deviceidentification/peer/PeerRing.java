@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.peer;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of peers. Each peer is placed at several points
+ * (virtual nodes) so the keys spread evenly, and adding or removing a peer
+ * only moves the keys of that peer.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class PeerRing {
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final Set<String>           peers;
+
+    /**
+     * Creates a ring
+     *
+     * @param peers peer addresses, host:port
+     * @param virtualNodes number of points per peer
+     */
+
+    public PeerRing(Collection<String> peers, int virtualNodes) {
+        this.peers = Collections.unmodifiableSet(new LinkedHashSet<String>(peers));
+
+        for (String peer : this.peers) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+        }
+    }
+
+    /**
+     * Returns the peers of the ring
+     *
+     * @return Set
+     */
+
+    public Set<String> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Returns the peer owning a key
+     *
+     * @param key
+     * @return peer address or null if the ring is empty
+     */
+
+    public String getOwner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+        if (point == null) {
+            point = ring.firstEntry();
+        }
+
+        return point.getValue();
+    }
+
+    /**
+     * First 8 bytes of the MD5 digest, the same on every node
+     *
+     * @param key
+     * @return long
+     */
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+
+            return h;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,727 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.peer;
+
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheException;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.EntryCodec;
+import com.deviceatlas.cloud.deviceidentification.client.ClientException;
+import com.deviceatlas.cloud.deviceidentification.utils.Deadline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the device data between the nodes of a cluster. Every cache key
+ * has one owner picked on a consistent hash ring of the peers, the other
+ * nodes ask the owner for the data so one cloud call fills the whole
+ * cluster. Concurrent requests for one key on the owner wait for the
+ * same fetch. When the owner cannot be reached the node fetches the data
+ * itself.
+ *
+ * The peers talk over a small binary protocol on persistent TCP
+ * connections, a request being the cache key, the user-agent, the headers
+ * and the time left to the detection, the reply the entry encoded by the
+ * EntryCodec. The time left bounds the wait of the node asking and the
+ * cloud call of the owner. Only the nodes of the ring may connect, the
+ * other clients are closed before anything is read as every request may
+ * cost a licensed cloud call.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class PeerService {
+    private static final int    MAGIC                   = 0x44415045;
+    private static final byte   VERSION                 = 2;
+    private static final byte   STATUS_OK               = 0;
+    private static final byte   STATUS_EMPTY            = 1;
+    private static final byte   STATUS_ERROR            = 2;
+    private static final int    MAX_FRAME_SIZE          = 1024 * 1024;
+    private static final int    DEFAULT_VIRTUAL_NODES   = 160;
+    private static final int    DEFAULT_TIMEOUT         = 10000;
+    private static final int    DEFAULT_CONNECT_TIMEOUT = 1000;
+    private static final int    IDLE_CONNECTION_TIMEOUT = 60000;
+    private static final int    MAX_IDLE_CONNECTIONS    = 4;
+    private static final int    DEFAULT_DOWN_PERIOD     = 5000;
+    private static final String CHARSET                 = "UTF-8";
+    private static final Logger LOGGER                  = LoggerFactory.getLogger(PeerService.class);
+
+    private final String                                                    self;
+    private final PeerRing                                                  ring;
+    private final PeerFetcher                                               fetcher;
+    private final EntryCodec                                                codec           = new EntryCodec(256, EntryCodec.getDefaultDictionary());
+    private final ConcurrentMap<String, FutureTask<Map<String, Object>>>    inflight        = new ConcurrentHashMap<String, FutureTask<Map<String, Object>>>();
+    private final ConcurrentMap<String, ConcurrentLinkedQueue<Socket>>      idle            = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Socket>>();
+    private final Set<Socket>                                               accepted        = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    // peers which failed, skipped until the time they are tried again
+    private final ConcurrentMap<String, Long>                               downUntil       = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong                                                localFetches    = new AtomicLong();
+    private final AtomicLong                                                remoteFetches   = new AtomicLong();
+    private final AtomicLong                                                servedRequests  = new AtomicLong();
+    private final AtomicLong                                                fallbacks       = new AtomicLong();
+    private final AtomicLong                                                rejected        = new AtomicLong();
+    private volatile int                                                    timeout         = DEFAULT_TIMEOUT;
+    private volatile int                                                    connectTimeout  = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int                                                    downPeriod      = DEFAULT_DOWN_PERIOD;
+    private volatile boolean                                                running         = false;
+    private ServerSocket                                                    server;
+    private ExecutorService                                                 handlers;
+
+    /**
+     * Creates the peer service of this node
+     *
+     * @param self address of this node, host:port, also listened on
+     * @param peers addresses of all the nodes, this one may be omitted
+     * @param fetcher resolves the keys owned by this node
+     */
+
+    public PeerService(String self, Collection<String> peers, PeerFetcher fetcher) {
+        this(self, peers, fetcher, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates the peer service of this node
+     *
+     * @param self address of this node, host:port, also listened on
+     * @param peers addresses of all the nodes, this one may be omitted
+     * @param fetcher resolves the keys owned by this node
+     * @param virtualNodes points per node on the hash ring
+     */
+
+    public PeerService(String self, Collection<String> peers, PeerFetcher fetcher, int virtualNodes) {
+        Set<String> nodes = new LinkedHashSet<String>();
+        nodes.add(self.trim());
+        for (String peer : peers) {
+            nodes.add(peer.trim());
+        }
+
+        this.self    = self.trim();
+        this.ring    = new PeerRing(nodes, virtualNodes);
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Starts listening to the other nodes
+     *
+     * @throws IOException when the address cannot be bound
+     */
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(toAddress(self));
+        handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DeviceAtlasCloud-PeerHandler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        running = true;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "DeviceAtlasCloud-PeerAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops listening and closes the connections to the other nodes
+     */
+
+    public synchronized void shutdown() {
+        running = false;
+
+        if (server != null) {
+            close(server);
+            server = null;
+        }
+
+        if (handlers != null) {
+            handlers.shutdownNow();
+            handlers = null;
+        }
+
+        for (Socket socket : accepted) {
+            close(socket);
+        }
+
+        for (ConcurrentLinkedQueue<Socket> sockets : idle.values()) {
+            Socket socket;
+            while ((socket = sockets.poll()) != null) {
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Returns the address of this node
+     *
+     * @return String
+     */
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Returns the hash ring of the nodes
+     *
+     * @return PeerRing
+     */
+
+    public PeerRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Returns the node owning a cache key
+     *
+     * @param cacheKey
+     * @return String
+     */
+
+    public String getOwner(String cacheKey) {
+        return ring.getOwner(cacheKey);
+    }
+
+    /**
+     * Returns true if this node owns a cache key
+     *
+     * @param cacheKey
+     * @return boolean
+     */
+
+    public boolean isOwner(String cacheKey) {
+        return self.equals(ring.getOwner(cacheKey));
+    }
+
+    /**
+     * Sets the time limit to wait for a node's reply
+     *
+     * @param timeout milliseconds
+     */
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the time limit to connect to a node
+     *
+     * @param connectTimeout milliseconds
+     */
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Sets how long a node which failed to answer is skipped, the keys it
+     * owns being fetched locally meanwhile
+     *
+     * @param downPeriod milliseconds
+     */
+
+    public void setDownPeriod(int downPeriod) {
+        this.downPeriod = downPeriod;
+    }
+
+    /**
+     * Returns true if a node failed recently and is skipped
+     *
+     * @param peer host:port
+     * @return boolean
+     */
+
+    public boolean isDown(String peer) {
+        Long until = downUntil.get(peer);
+        if (until == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - until >= 0) {
+            downUntil.remove(peer, until);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of fetches made by this node for its own keys,
+     * the requests of the other nodes included
+     *
+     * @return long
+     */
+
+    public long getLocalFetches() {
+        return localFetches.get();
+    }
+
+    /**
+     * Returns the number of keys fetched from the other nodes
+     *
+     * @return long
+     */
+
+    public long getRemoteFetches() {
+        return remoteFetches.get();
+    }
+
+    /**
+     * Returns the number of requests served to the other nodes
+     *
+     * @return long
+     */
+
+    public long getServedRequests() {
+        return servedRequests.get();
+    }
+
+    /**
+     * Returns the number of keys fetched locally because their owner
+     * could not be reached
+     *
+     * @return long
+     */
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Returns the number of connections refused because they did not come
+     * from a node of the ring
+     *
+     * @return long
+     */
+
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the device data of a cache key from its owner
+     *
+     * @param cacheKey
+     * @param userAgent
+     * @param headers
+     * @throws ClientException when the data cannot be fetched
+     * @return Map or null when there are no properties
+     */
+
+    public Map<String, Object> fetch(String cacheKey, String userAgent, Map<String, String> headers) throws ClientException {
+        return fetch(cacheKey, userAgent, headers, null);
+    }
+
+    /**
+     * Gets the device data of a cache key from its owner, within a time
+     * budget
+     *
+     * @param cacheKey
+     * @param userAgent
+     * @param headers
+     * @param deadline null for no limit other than the timeouts of the service
+     * @throws ClientException when the data cannot be fetched
+     * @return Map or null when there are no properties or no time left
+     */
+
+    public Map<String, Object> fetch(String cacheKey, String userAgent, Map<String, String> headers,
+            Deadline deadline) throws ClientException {
+        String owner = ring.getOwner(cacheKey);
+        if (owner == null || owner.equals(self)) {
+            return fetchLocal(cacheKey, userAgent, headers, deadline);
+        }
+        if (isDown(owner)) {
+            fallbacks.incrementAndGet();
+            return fetchLocal(cacheKey, userAgent, headers, deadline);
+        }
+
+        try {
+            Map<String, Object> data = fetchRemote(owner, cacheKey, userAgent, headers, deadline);
+            remoteFetches.incrementAndGet();
+            return data;
+        } catch (IOException ex) {
+            if (deadline != null && deadline.isExpired()) {
+                // out of time: no properties rather than a late answer, the owner may be fine
+                LOGGER.debug("peer " + owner + " fetch timeout");
+                return null;
+            }
+            LOGGER.warn("peer " + owner + " fetch failed, fetching locally", ex);
+            downUntil.put(owner, System.currentTimeMillis() + downPeriod);
+            fallbacks.incrementAndGet();
+            return fetchLocal(cacheKey, userAgent, headers, deadline);
+        }
+    }
+
+    /**
+     * Fetches a key once for all the concurrent callers, the callers which
+     * wait for another one give up when their budget is used up
+     */
+
+    private Map<String, Object> fetchLocal(final String cacheKey, final String userAgent, final Map<String, String> headers,
+            final Deadline deadline) throws ClientException {
+        FutureTask<Map<String, Object>> task = new FutureTask<Map<String, Object>>(new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws ClientException {
+                localFetches.incrementAndGet();
+                return fetcher.fetch(cacheKey, userAgent, headers, deadline);
+            }
+        });
+
+        FutureTask<Map<String, Object>> running = inflight.putIfAbsent(cacheKey, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inflight.remove(cacheKey, task);
+            }
+            running = task;
+        }
+
+        try {
+            return deadline != null ? running.get(deadline.remaining(), TimeUnit.MILLISECONDS) : running.get();
+        } catch (TimeoutException ex) {
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while fetching the device data", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ClientException) {
+                throw (ClientException)ex.getCause();
+            }
+            throw new ClientException("Failed to fetch the device data", ex.getCause());
+        }
+    }
+
+    private Map<String, Object> fetchRemote(String owner, String cacheKey, String userAgent, Map<String, String> headers,
+            Deadline deadline) throws IOException {
+        Socket socket = idle(owner).poll();
+        boolean pooled = socket != null;
+
+        while (true) {
+            if (socket == null) {
+                socket = connect(owner, deadline);
+            }
+
+            try {
+                socket.setSoTimeout(deadline != null ? deadline.timeout(timeout) : timeout);
+                Map<String, Object> data = exchange(socket, cacheKey, userAgent, headers, deadline);
+                release(owner, socket);
+                return data;
+            } catch (IOException ex) {
+                close(socket);
+                // an idle connection may have been closed by the owner, a
+                // timeout or a bad reply is not retried
+                if (!pooled || !(ex instanceof EOFException || ex instanceof SocketException)) {
+                    throw ex;
+                }
+                socket = null;
+                pooled = false;
+            }
+        }
+    }
+
+    private Map<String, Object> exchange(Socket socket, String cacheKey, String userAgent, Map<String, String> headers,
+            Deadline deadline) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeString(out, cacheKey);
+        writeString(out, userAgent);
+        if (headers == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                writeString(out, header.getValue());
+            }
+        }
+        // time left in milliseconds, 0 for no limit
+        out.writeInt(deadline != null ? (int)Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remaining())) : 0);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte status = in.readByte();
+        byte[] body = readBytes(in);
+
+        switch (status) {
+            case STATUS_OK:
+                try {
+                    return codec.decodeMap(body);
+                } catch (CacheException ex) {
+                    throw new IOException("Invalid peer reply", ex);
+                }
+            case STATUS_EMPTY:
+                return null;
+            default:
+                throw new IOException("Peer failed: " + new String(body, CHARSET));
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = server.accept();
+                if (!isPeer(socket.getInetAddress())) {
+                    rejected.incrementAndGet();
+                    LOGGER.warn("peer connection refused from " + socket.getInetAddress());
+                    close(socket);
+                    continue;
+                }
+                socket.setSoTimeout(IDLE_CONNECTION_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                accepted.add(socket);
+                handlers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException ex) {
+                if (running) {
+                    LOGGER.error("peer accept", ex);
+                }
+            } catch (RuntimeException ex) {
+                // the handlers were shut down
+                if (running) {
+                    LOGGER.error("peer accept", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of a connection until the other node closes it
+     */
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in   = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            while (running) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+
+                if (magic != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("Unknown peer protocol");
+                }
+
+                String cacheKey = readString(in);
+                String userAgent = readString(in);
+                int count = in.readInt();
+                Map<String, String> headers = null;
+                if (count >= 0) {
+                    headers = new HashMap<String, String>();
+                    for (int i = 0; i < count; i++) {
+                        headers.put(readString(in), readString(in));
+                    }
+                }
+                Deadline deadline = Deadline.after(in.readInt());
+
+                servedRequests.incrementAndGet();
+                // served even if the rings disagree, the request is never forwarded again
+                try {
+                    Map<String, Object> data = fetchLocal(cacheKey, userAgent, headers, deadline);
+                    if (data == null) {
+                        out.writeByte(STATUS_EMPTY);
+                        writeBytes(out, new byte[0]);
+                    } else {
+                        out.writeByte(STATUS_OK);
+                        writeBytes(out, codec.encode(data));
+                    }
+                } catch (ClientException ex) {
+                    out.writeByte(STATUS_ERROR);
+                    writeBytes(out, String.valueOf(ex.getMessage()).getBytes(CHARSET));
+                } catch (CacheException ex) {
+                    out.writeByte(STATUS_ERROR);
+                    writeBytes(out, String.valueOf(ex.getMessage()).getBytes(CHARSET));
+                }
+                out.flush();
+            }
+        } catch (SocketException ex) {
+            // closed by the other node or by shutdown
+        } catch (IOException ex) {
+            if (running) {
+                LOGGER.error("peer serve", ex);
+            }
+        } finally {
+            accepted.remove(socket);
+            close(socket);
+        }
+    }
+
+    /**
+     * Returns true if an address is one of a node of the ring. The host
+     * names are resolved on every check, the JVM caching the lookups, so a
+     * node moved to another address is still accepted
+     */
+
+    private boolean isPeer(InetAddress remote) {
+        for (String peer : ring.getPeers()) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(toAddress(peer).getHostString())) {
+                    if (address.equals(remote)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException ex) {
+                // the other nodes may still match
+            }
+        }
+
+        return false;
+    }
+
+    private Socket connect(String peer, Deadline deadline) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(toAddress(peer), deadline != null ? deadline.timeout(connectTimeout) : connectTimeout);
+            socket.setTcpNoDelay(true);
+        } catch (IOException ex) {
+            close(socket);
+            throw ex;
+        }
+
+        return socket;
+    }
+
+    private ConcurrentLinkedQueue<Socket> idle(String peer) {
+        ConcurrentLinkedQueue<Socket> sockets = idle.get(peer);
+        if (sockets == null) {
+            ConcurrentLinkedQueue<Socket> created = new ConcurrentLinkedQueue<Socket>();
+            sockets = idle.putIfAbsent(peer, created);
+            if (sockets == null) {
+                sockets = created;
+            }
+        }
+
+        return sockets;
+    }
+
+    private void release(String peer, Socket socket) {
+        ConcurrentLinkedQueue<Socket> sockets = idle(peer);
+        if (sockets.size() < MAX_IDLE_CONNECTIONS) {
+            sockets.offer(socket);
+        } else {
+            close(socket);
+        }
+    }
+
+    private static InetSocketAddress toAddress(String peer) {
+        int colon = peer.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Peer address must be host:port: " + peer);
+        }
+
+        return new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(CHARSET));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, CHARSET);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Peer frame too large: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+}
@@ -27,14 +27,39 @@ package com.deviceatlas.cloud.deviceidentification.service;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheException;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheProvider;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.FileCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.KeyCursor;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.KeyCursors;
 
 import com.deviceatlas.cloud.deviceidentification.endpoint.EndPoint;
 import com.deviceatlas.cloud.deviceidentification.client.ClientConstants;
+import com.deviceatlas.cloud.deviceidentification.client.ClientException;
+import com.deviceatlas.cloud.deviceidentification.utils.StringUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache layer of the client.
+ *
+ * The device data keys are namespaced by a generation, derived from the
+ * licence, the API version and a counter. The counter is shared with the
+ * other clients through the device data cache, and kept on the host in the
+ * server ranking cache which does not evict it. Clearing the cache bumps
+ * the counter: the entries of the previous generations are not read any
+ * more and are removed in the background, so clearing never stalls the
+ * caller nor touches the data of other applications sharing the cache.
+ */
 public class CacheService {
     /**
      * Please see ClientConstants.CACHE_NAME.toString()
@@ -52,16 +77,205 @@ public class CacheService {
      */
     @Deprecated public static final String CACHE_NAME_SERVERS_MANUAL    = ClientConstants.CACHE_NAME_SERVERS_MANUAL.toString();
     
+    private static final String GENERATION_KEY                          = "deviceatlas_cache_generation";
+    private static final char   NAMESPACE_SEPARATOR                     = '.';
+    private static final int    NAMESPACE_LENGTH                        = 8;
+    private static final int    DEFAULT_GENERATION_REFRESH              = 60;
+    // the counter entry is rewritten after that many refresh intervals so it does not expire
+    private static final int    GENERATION_TOUCH_INTERVALS              = 10;
+    private static final int    CLEANUP_BATCH_SIZE                      = 500;
+    private static final Logger LOGGER                                  = LoggerFactory.getLogger(CacheService.class);
+
     private int     serverRankListLifetime                              = 1440;
     private boolean useCache                                            = true;
+    private int     generationRefreshInterval                           = DEFAULT_GENERATION_REFRESH;
 
     private CacheProvider   cachePropsProvider;
     private CacheProvider   cacheServersRankingProvider;
 
+    private volatile String namespace;
+    private final Set<String> usedNamespaces                            = new LinkedHashSet<String>();
+    private volatile long   generation                                  = -1;
+    private volatile long   generationCheckedAt;
+    private final AtomicBoolean generationRefreshing                    = new AtomicBoolean();
+    private final Object    generationLock                              = new Object();
+    private ExecutorService cleanupExecutor;
+
     public CacheService(CacheProvider cachePropsProvider) throws CacheException {
         this.cachePropsProvider = cachePropsProvider;
-        this.cacheServersRankingProvider = new FileCacheProvider();
+        // shares the directory of a file data cache, whose evictor alone manages the tree
+        this.cacheServersRankingProvider = new FileCacheProvider(false);
         cacheServersRankingProvider.setExpiry(serverRankListLifetime);
+        setLicenceKey(null);
+    }
+
+    /**
+     * Sets the licence the device data keys are namespaced with
+     *
+     * @param licenceKey
+     */
+
+    public void setLicenceKey(String licenceKey) {
+        String ns;
+        try {
+            ns = StringUtils.md5((licenceKey != null ? licenceKey : "") + "|" + ClientConstants.API_VERSION.toString());
+        } catch (ClientException ex) {
+            LOGGER.error("cache namespace", ex);
+            ns = Integer.toHexString(String.valueOf(licenceKey).hashCode());
+        }
+
+        if (ns.length() > NAMESPACE_LENGTH) {
+            ns = ns.substring(0, NAMESPACE_LENGTH);
+        }
+
+        synchronized (generationLock) {
+            if (!ns.equals(namespace)) {
+                namespace = ns;
+                usedNamespaces.add(ns);
+                generation = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the interval in seconds between two reads of the generation counter
+     *
+     * @return int
+     */
+
+    public int getGenerationRefreshInterval() {
+        return generationRefreshInterval;
+    }
+
+    /**
+     * Sets the interval in seconds between two reads of the generation
+     * counter, this is how long other clients sharing the cache may take to
+     * see it cleared
+     *
+     * @param generationRefreshInterval
+     */
+
+    public void setGenerationRefreshInterval(int generationRefreshInterval) {
+        this.generationRefreshInterval = generationRefreshInterval;
+    }
+
+    /**
+     * Returns the cache key of a device data entry in the current generation
+     *
+     * @param key
+     * @return String
+     */
+
+    public String getNamespacedKey(String key) {
+        long current = getGeneration();
+        return key + NAMESPACE_SEPARATOR + namespace + NAMESPACE_SEPARATOR + Long.toHexString(current);
+    }
+
+    /**
+     * Returns the current generation, reading the counter from the cache
+     * when it was not checked for the refresh interval
+     *
+     * @return long
+     */
+
+    public long getGeneration() {
+        long now = System.currentTimeMillis();
+        if (generation < 0) {
+            synchronized (generationLock) {
+                if (generation < 0) {
+                    refreshGeneration(now);
+                }
+            }
+        } else if (now - generationCheckedAt >= generationRefreshInterval * 1000L
+                && generationRefreshing.compareAndSet(false, true)) {
+            // one thread reads the counter, the others go on with the current generation
+            try {
+                synchronized (generationLock) {
+                    refreshGeneration(now);
+                }
+            } finally {
+                generationRefreshing.set(false);
+            }
+        }
+
+        return generation;
+    }
+
+    /**
+     * Reads the generation counter, creating it when missing. The highest
+     * of the shared copy, the local copy and the generation in use wins, so
+     * a copy lost with an evicted entry or a failed read never starts a new
+     * generation: the copies behind are written again instead.
+     *
+     * @param now
+     */
+
+    private void refreshGeneration(long now) {
+        String key = GENERATION_KEY + NAMESPACE_SEPARATOR + namespace;
+        long [] shared = readGeneration(cachePropsProvider, key);
+        long [] local = readGeneration(cacheServersRankingProvider, key);
+
+        long current = generation;
+        if (shared != null) {
+            current = Math.max(current, shared[0]);
+        }
+        if (local != null) {
+            current = Math.max(current, local[0]);
+        }
+        if (current < 0) {
+            // never created, the counter is a time stamp so it was not used before
+            current = now;
+        }
+
+        touchGeneration(cachePropsProvider, key, shared, current, now);
+        touchGeneration(cacheServersRankingProvider, key, local, current, now);
+        generation = current;
+        generationCheckedAt = now;
+    }
+
+    /**
+     * Writes a copy of the counter when it is missing, behind, or about to
+     * expire
+     */
+    private void touchGeneration(CacheProvider provider, String key, long [] counter, long current, long now) {
+        if (counter == null || counter[0] < current ||
+                now - counter[1] >= GENERATION_TOUCH_INTERVALS * generationRefreshInterval * 1000L) {
+            writeGeneration(provider, key, current, now);
+        }
+    }
+
+    /**
+     * Reads a generation counter
+     *
+     * @param provider
+     * @param key
+     * @return generation and time it was written, or null when missing or unreadable
+     */
+
+    private long [] readGeneration(CacheProvider provider, String key) {
+        try {
+            Object entry = provider.get(key);
+            if (entry instanceof String) {
+                String [] parts = ((String)entry).split(" ");
+                if (parts.length == 2) {
+                    return new long [] {Long.parseLong(parts[0], 16), Long.parseLong(parts[1])};
+                }
+            }
+        } catch (NumberFormatException ex) {
+            LOGGER.error("cache generation", ex);
+        } catch (CacheException ex) {
+            LOGGER.error("cache generation", ex);
+        }
+
+        return null;
+    }
+
+    private void writeGeneration(CacheProvider provider, String key, long value, long now) {
+        try {
+            provider.set(key, Long.toHexString(value) + " " + now);
+        } catch (CacheException ex) {
+            LOGGER.error("cache generation", ex);
+        }
     }
 
     /**
@@ -113,11 +327,130 @@ public class CacheService {
     }
 
     /**
-     * Clear all cached data.
+     * Clear all cached data. The device data generation of every licence
+     * used by this client is bumped, the entries of the previous generations
+     * are removed in the background.
      */
     public void clearCache() {
+        long now = System.currentTimeMillis();
+        // namespace tag to current generation tag
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+
+        // the server lists go, the generation counters written below stay
+        cacheServersRankingProvider.clear();
+        synchronized (generationLock) {
+            for (String ns : usedNamespaces) {
+                String key = GENERATION_KEY + NAMESPACE_SEPARATOR + ns;
+                long next = now;
+                long [] shared = readGeneration(cachePropsProvider, key);
+                if (shared != null) {
+                    next = Math.max(next, shared[0] + 1);
+                }
+                long [] local = readGeneration(cacheServersRankingProvider, key);
+                if (local != null) {
+                    next = Math.max(next, local[0] + 1);
+                }
+                if (ns.equals(namespace)) {
+                    next = Math.max(next, generation + 1);
+                }
+                writeGeneration(cachePropsProvider, key, next, now);
+                writeGeneration(cacheServersRankingProvider, key, next, now);
+
+                if (ns.equals(namespace)) {
+                    generation = next;
+                    generationCheckedAt = now;
+                }
+                String namespaceTag = NAMESPACE_SEPARATOR + ns + NAMESPACE_SEPARATOR;
+                tags.put(namespaceTag, namespaceTag + Long.toHexString(next));
+            }
+        }
+
+        scheduleCleanup(tags);
+    }
+
+    /**
+     * Removes synchronously every entry of the device data cache, including
+     * the ones of other applications sharing it (memcached flush)
+     */
+    public void purgeCache() {
         cachePropsProvider.clear();
         cacheServersRankingProvider.clear();
+        synchronized (generationLock) {
+            generation = -1;
+        }
+    }
+
+    /**
+     * Removes in the background the entries of the namespaces which are
+     * not in the current generation
+     *
+     * @param tags namespace tag to current generation tag
+     */
+
+    private synchronized void scheduleCleanup(final Map<String, String> tags) {
+        if (cleanupExecutor == null) {
+            cleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeviceAtlasCloud-CacheCleanup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        cleanupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cleanup(tags);
+            }
+        });
+    }
+
+    private void cleanup(Map<String, String> tags) {
+        KeyCursor cursor = KeyCursors.scan(cachePropsProvider, null, 0, CLEANUP_BATCH_SIZE);
+        long removed = 0;
+
+        try {
+            while (cursor.hasNext() && !Thread.currentThread().isInterrupted()) {
+                for (String key : cursor.next()) {
+                    if (isOutdated(key, tags)) {
+                        cachePropsProvider.remove(key);
+                        removed++;
+                    }
+                }
+            }
+        } catch (CacheException ex) {
+            LOGGER.error("cache cleanup", ex);
+        } catch (RuntimeException ex) {
+            LOGGER.error("cache cleanup", ex);
+        } finally {
+            cursor.close();
+        }
+        LOGGER.debug("cache cleanup removed {} entries", removed);
+    }
+
+    /**
+     * Checks if a key belongs to one of the namespaces but not to its
+     * current generation
+     *
+     * @param key
+     * @param tags
+     * @return boolean
+     */
+
+    private boolean isOutdated(String key, Map<String, String> tags) {
+        if (key.startsWith(GENERATION_KEY)) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (key.contains(tag.getKey())) {
+                return !key.endsWith(tag.getValue());
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -127,6 +460,12 @@ public class CacheService {
      * See http://ehcache.org/documentation/code-samples#shutdown-the-cachemanager
      */
      public void shutdown() {
+         synchronized (this) {
+             if (cleanupExecutor != null) {
+                 cleanupExecutor.shutdownNow();
+                 cleanupExecutor = null;
+             }
+         }
          this.cachePropsProvider.shutdown();
          this.cacheServersRankingProvider.shutdown();
      }
@@ -30,9 +30,14 @@ import com.deviceatlas.cloud.deviceidentification.client.ClientConstants;
 import com.deviceatlas.cloud.deviceidentification.client.Result;
 import com.deviceatlas.cloud.deviceidentification.client.HeaderConstants;
 import com.deviceatlas.cloud.deviceidentification.client.Properties;
+import com.deviceatlas.cloud.deviceidentification.peer.PeerFetcher;
+import com.deviceatlas.cloud.deviceidentification.peer.PeerService;
+import com.deviceatlas.cloud.deviceidentification.utils.Deadline;
+import com.deviceatlas.cloud.deviceidentification.utils.ProfileStore;
 import com.deviceatlas.cloud.deviceidentification.utils.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Enumeration;
@@ -43,11 +48,13 @@ import javax.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class DeviceIdentificatorService {
+public class DeviceIdentificatorService implements PeerFetcher {
     private EndPointService endPointService;
+    private volatile PeerService peerService                            = null;
     private String licenceKey                                           = null;
     private boolean useClientCookie                                     = true;
     private boolean sendExtraHeaders                                    = false;
+    private long    detectionTimeout                                    = 0;
 
     /// A list of http-headers to be sent to the DeviceAtlas Cloud. This headers
     /// are used for device detection, specially if a third party browser or a proxy
@@ -113,6 +120,7 @@ public class DeviceIdentificatorService {
     public void setLicenceKey(String licenceKey) {
         this.licenceKey = licenceKey;
         this.endPointService.setLicenceKey(this.licenceKey);
+        this.endPointService.getCacheService().setLicenceKey(this.licenceKey);
     }
 
     /**
@@ -163,6 +171,29 @@ public class DeviceIdentificatorService {
         this.sendExtraHeaders = sendExtraHeaders;
     }
 
+    /**
+     * Getter for the detection timeout, the time budget of a detection
+     *
+     * @return Time in milliseconds, 0 = no limit other than the cloud service
+     * timeout of each end-point.
+     */
+    public long getDetectionTimeout() {
+        return detectionTimeout;
+    }
+
+    /**
+     * Setter for the detection timeout, the time budget of a detection. The
+     * cloud calls, failovers included, are given what remains of it as their
+     * connect and read timeouts. Once it is used up the detection returns
+     * a result without properties and the "none" source.
+     *
+     * @param detectionTimeout Time in milliseconds, 0 = no limit other than
+     * the cloud service timeout of each end-point.
+     */
+    public void setDetectionTimeout(long detectionTimeout) {
+        this.detectionTimeout = detectionTimeout;
+    }
+
     /**
      * Get device data from DeviceAtlas Cloud service.
      * If using cache is not turned off the device data will be cached after each
@@ -318,6 +349,22 @@ public class DeviceIdentificatorService {
         return getResultByHeaders(headers);
     }
 
+    /**
+     * Get device data from DeviceAtlas Cloud service, within a time budget.
+     *
+     * @param request The HttpServletRequest request object
+     * @param timeout Time in milliseconds, 0 = no limit other than the cloud
+     * service timeout of each end-point
+     * @return Result, with the "none" source and no properties if the time
+     * budget was used up
+     * @throws ClientException When any part of detection or the API fails.
+     */
+    public Result getResult(HttpServletRequest request, long timeout) throws ClientException {
+        Map<String, String> headers = prepareHeadersForServletRequest(request);
+
+        return getResultByHeaders(headers, timeout);
+    }
+
     /**
      * Get device data from DeviceAtlas Cloud service.
      * If using cache is not turned off the device data will be cached after each
@@ -364,9 +411,23 @@ public class DeviceIdentificatorService {
      * @throws ClientException When any part of detection or the API fails.
      */
     public Result getResultByUserAgent(String userAgent) throws ClientException {
+        return getResultByUserAgent(userAgent, detectionTimeout);
+    }
+
+    /**
+     * Get device data from DeviceAtlas Cloud service, within a time budget.
+     *
+     * @param userAgent User-agent string
+     * @param timeout Time in milliseconds, 0 = no limit other than the cloud
+     * service timeout of each end-point
+     * @return Result, with the "none" source and no properties if the time
+     * budget was used up
+     * @throws ClientException When any part of detection or the API fails.
+     */
+    public Result getResultByUserAgent(String userAgent, long timeout) throws ClientException {
         Map<String, String> headers = new HashMap<String, String>();
         headers.put("user-agent", userAgent);
-        return getResultByHeaders(headers);
+        return getResultByHeaders(headers, timeout);
     }
 
     /**
@@ -385,6 +446,21 @@ public class DeviceIdentificatorService {
      * @throws ClientException When any part of detection or the API fails.
      */
     public Result getResultByHeaders(Map<String, String> headers) throws ClientException {
+        return getResultByHeaders(headers, detectionTimeout);
+    }
+
+    /**
+     * Get device data from DeviceAtlas Cloud service, within a time budget.
+     *
+     * @param headers A Map of http headers {"header-name": "header-value",}
+     * @param timeout Time in milliseconds, 0 = no limit other than the cloud
+     * service timeout of each end-point
+     * @return Result, with the "none" source and no properties if the time
+     * budget was used up
+     * @throws ClientException When any part of detection or the API fails.
+     */
+    public Result getResultByHeaders(Map<String, String> headers, long timeout) throws ClientException {
+        Deadline deadline = Deadline.after(timeout);
         String userAgent;
         String cookie;
         Map<String, String> tmpHeaders;
@@ -397,7 +473,7 @@ public class DeviceIdentificatorService {
 
         try {
 
-            setCacheData(eResponse, userAgent, cookie, tmpHeaders);
+            setCacheData(eResponse, userAgent, cookie, tmpHeaders, deadline);
         } catch (ClientException ex) {
             throw new ClientException(
                     "There was a problem getting/setting the device properties: \"" + ex.getMessage() + "\"",
@@ -467,7 +543,7 @@ public class DeviceIdentificatorService {
 
         cookie = extractCookieValue(tmpHeaders);
         // fetch device data
-        endPointService.setCalledServers(new ArrayList<String>());
+        endPointService.setCalledServers(Collections.synchronizedList(new ArrayList<String>()));
         dataRet.put(HeaderConstants.UA_HEADER.toString(), userAgent);
         dataRet.put(HeaderConstants.COOKIE_HEADER.toString(), cookie);
         dataRet.put(ClientConstants.CLOUD_SERVICE_RESULT.toString(), headers);
@@ -506,6 +582,62 @@ public class DeviceIdentificatorService {
         return null;
     }
 
+    /**
+     * Gets the cluster peer service
+     *
+     * @return PeerService or null if the peers are not set
+     */
+
+    public PeerService getPeerService() {
+        return peerService;
+    }
+
+    /**
+     * Sets the cluster peer service, the cache misses are then fetched
+     * from the peer owning the key
+     *
+     * @param peerService null to fetch from the cloud service directly
+     */
+
+    public void setPeerService(PeerService peerService) {
+        this.peerService = peerService;
+    }
+
+    /**
+     * Gets the device data of a key owned by this node, for this node or
+     * for a peer
+     *
+     * @param cacheKey cache key, not namespaced
+     * @param userAgent
+     * @param headers
+     * @param deadline null for no limit other than the cloud service timeout of each end-point
+     * @throws ClientException
+     * @return Map
+     */
+
+    @Override
+    public Map<String, Object> fetch(String cacheKey, String userAgent, Map<String, String> headers,
+            Deadline deadline) throws ClientException {
+        CacheService cacheService = endPointService.getCacheService();
+        String namespacedKey = cacheService.getUseCache() ? cacheService.getNamespacedKey(cacheKey) : cacheKey;
+        Map<String, Object> data = null;
+
+        try {
+            if (cacheService.getUseCache() && (data = cacheService.getCacheProvider().get(namespacedKey)) != null) {
+                return data;
+            }
+
+            data = ProfileStore.getDefault().canonical(endPointService.getCloudService(userAgent, headers, deadline));
+            if (data != null && cacheService.getUseCache()) {
+                cacheService.getCacheProvider().set(namespacedKey, data);
+            }
+        } catch (CacheException ex) {
+            LOGGER.error("fetch", ex);
+        }
+
+        return data;
+    }
+
     /**
      * Sets the cloud service data to the cache's layer
      *
@@ -516,11 +648,32 @@ public class DeviceIdentificatorService {
      */
 
     public void setCacheData(Object results, String userAgent, String cookie, Map<String, String> headers) throws ClientException {
-        String cacheKey = getCacheKey(userAgent, cookie, headers);
+        setCacheData(results, userAgent, cookie, headers, Deadline.after(detectionTimeout));
+    }
+
+    /**
+     * Sets the cloud service data to the cache's layer, within a time budget
+     *
+     * @param results
+     * @param userAgent
+     * @param cookie
+     * @param headers
+     * @param deadline null for no limit other than the cloud service timeout of each end-point
+     */
+
+    public void setCacheData(Object results, String userAgent, String cookie, Map<String, String> headers,
+            Deadline deadline) throws ClientException {
+        String peerKey  = getCacheKey(userAgent, cookie, headers);
+        String cacheKey = peerKey;
         String source    = ClientConstants.SOURCE_NONE.toString();
         Map<String, Object> data        = null;
+        PeerService peers = peerService;
 
         try {
+            if (endPointService.getCacheService().getUseCache()) {
+                cacheKey = endPointService.getCacheService().getNamespacedKey(cacheKey);
+            }
+
             if (endPointService.getCacheService().getUseCache() && (data = endPointService.getCacheService().getCacheProvider().get(cacheKey)) != null) {
                 source = ClientConstants.SOURCE_CACHE.toString();
             }
@@ -531,12 +684,38 @@ public class DeviceIdentificatorService {
                 if (cookie != null) {
                     headers.put(HeaderConstants.CLIENT_COOKIE_HEADER.toString(), cookie);
                 }
-                data   = endPointService.getCloudService(userAgent, headers);
-                source = ClientConstants.SOURCE_CLOUD.toString();
+            }
+
+            if (data == null && deadline != null && deadline.isExpired()) {
+                // out of time: no properties rather than a late answer
+                LOGGER.debug("detection timeout");
+            } else if (data == null && peers != null) {
+                // the owner of the key makes the cloud call once for the cluster
+                if (peers.isOwner(peerKey)) {
+                    data   = peers.fetch(peerKey, userAgent, headers, deadline);
+                    if (data != null) {
+                        source = ClientConstants.SOURCE_CLOUD.toString();
+                    }
+                } else {
+                    data   = ProfileStore.getDefault().canonical(peers.fetch(peerKey, userAgent, headers, deadline));
+                    if (data != null) {
+                        source = ClientConstants.SOURCE_PEER.toString();
+                        if (endPointService.getCacheService().getUseCache()) {
+                            endPointService.getCacheService().getCacheProvider().set(cacheKey, data);
+                        }
+                    }
+                }
+            } else if (data == null) {
+                data   = endPointService.getCloudService(userAgent, headers, deadline);
+                // the user-agents with identical properties share one profile instance
+                data   = ProfileStore.getDefault().canonical(data);
                 // put device data into cache
 
-                if (endPointService.getCacheService().getUseCache()) {
-                    endPointService.getCacheService().getCacheProvider().set(cacheKey, data);
+                if (data != null) {
+                    source = ClientConstants.SOURCE_CLOUD.toString();
+                    if (endPointService.getCacheService().getUseCache()) {
+                        endPointService.getCacheService().getCacheProvider().set(cacheKey, data);
+                    }
                 }
             }
         } catch (CacheException ex) {
@@ -546,7 +725,8 @@ public class DeviceIdentificatorService {
         if (results instanceof Map) {
             ((Map<String, Object>)results).put(ClientConstants.KEY_SOURCE.toString(), source);
             if (data != null) {
-                ((Map<String, Object>)results).put(ClientConstants.KEY_PROPERTIES.toString(), data);
+                // the cached profiles are shared, they are only copied when the caller changes them
+                ((Map<String, Object>)results).put(ClientConstants.KEY_PROPERTIES.toString(), ProfileStore.mutableView(data));
             }
         } else if (results instanceof Result)  {
             ((Result)results).setSource(source);
@@ -31,17 +31,45 @@ import com.deviceatlas.cloud.deviceidentification.client.ActionConstants;
 import com.deviceatlas.cloud.deviceidentification.parser.JsonException;
 import com.deviceatlas.cloud.deviceidentification.parser.JsonParser;
 import com.deviceatlas.cloud.deviceidentification.endpoint.EndPoint;
-import com.deviceatlas.cloud.deviceidentification.utils.NetworkUtils;
+import com.deviceatlas.cloud.deviceidentification.endpoint.EndPointResolver;
+import com.deviceatlas.cloud.deviceidentification.endpoint.EndPointStats;
+import com.deviceatlas.cloud.deviceidentification.utils.CircuitBreaker;
+import com.deviceatlas.cloud.deviceidentification.utils.Deadline;
 import com.deviceatlas.cloud.deviceidentification.utils.RequestBuilderUtils;
+import com.deviceatlas.cloud.deviceidentification.utils.TokenBucket;
+import com.deviceatlas.cloud.deviceidentification.transport.CloudRequest;
+import com.deviceatlas.cloud.deviceidentification.transport.CloudResponse;
+import com.deviceatlas.cloud.deviceidentification.transport.CloudTransport;
+import com.deviceatlas.cloud.deviceidentification.transport.HttpUrlConnectionTransport;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.net.Proxy;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import org.slf4j.Logger;
@@ -56,16 +84,18 @@ public class EndPointService {
     private int     cloudServiceTimeout                             = 3;
     private String  selfAutoRanking                                 = "n"; // auto ranking by API or user
     private String  licenceKey                                      = null;
-    private String errorMessage                                     = "";
     // server fail-over and ranking system
     private String  lastUsedCloudUrl;
     /* For tracking ranking mechanism */
     protected String rankingStatus;
     /* proxy object */
     private   Proxy proxy;
+    /* how the requests reach the cloud, the default one when not set */
+    private final HttpUrlConnectionTransport defaultTransport        = new HttpUrlConnectionTransport();
+    private volatile CloudTransport transport                       = null;
     // to avoid getting stuck in and end-less loop when rankServers() calls getEndPoints()
     private boolean getServersRankIfRequired                        = true;
-    protected List<String> calledServers;      // for test and debug
+    protected List<String> calledServers                            = Collections.synchronizedList(new ArrayList<String>()); // for test and debug
     private   List<String> fatalErrors                              = null; // for test and debug
     private byte failoverAction;
     private EndPoint[] endPoints                                    = {
@@ -74,7 +104,169 @@ public class EndPointService {
         new EndPoint("http://region2.deviceatlascloud.com", "80"),
         new EndPoint("http://region3.deviceatlascloud.com", "80"),
     };
+    // the ranked list is refreshed in the background once this part of its lifetime has elapsed
+    private static final double RANKING_REFRESH_RATIO                = 0.8;
+    // minimum time between two rankings requested because no ranked list is cached
+    private static final long   MIN_RANKING_INTERVAL                 = 30000;
+    private volatile EndPoint[] lastRanking                          = null;
+    private volatile long       lastRankingRequest                   = 0;
+    // the list the requests use, replaced as a whole, never modified
+    private final AtomicReference<EndPointSnapshot> activeEndPoints  = new AtomicReference<EndPointSnapshot>();
+    // the ranked list is re-sorted on the scores of the real requests this often
+    private static final long   REORDER_INTERVAL                     = 10000;
+    // an end-point moves ahead of another when its score is lower by this factor
+    private static final double REORDER_HYSTERESIS                   = 1.2d;
+    private ScheduledFuture<?>  reorderTask;
+    private final AtomicLong    reorders                             = new AtomicLong();
+    private final AtomicBoolean rankingInProgress                    = new AtomicBoolean();
+    private final Object        rankingLock                          = new Object();
+    private ScheduledExecutorService rankingScheduler;
+    private ScheduledFuture<?>  rankingRefresh;
+    private static final int    MAX_PROBE_THREADS                    = 8;
+    private long                rankingTimeout                       = 0;
+    private static final long   DEFAULT_HEDGE_DELAY                  = 500;
+    private static final long   MIN_HEDGE_DELAY                      = 10;
+    private static final int    MIN_HEDGE_SAMPLES                    = 20;
+    private static final double HEDGE_PERCENTILE                     = 95.0d;
+    private boolean             hedgedRequests                       = false;
+    private long                hedgeDelay                           = 0;
+    private final TokenBucket   hedgeBudget                          = new TokenBucket(0.1d, 10);
+    private final AtomicLong    hedges                               = new AtomicLong();
+    private final ConcurrentMap<String, EndPointStats> endPointStats = new ConcurrentHashMap<String, EndPointStats>();
+    private ExecutorService     hedgeExecutor;
+    // addresses and idle connections of the top of the list, ready before the requests
+    private final EndPointResolver resolver                          = new EndPointResolver();
+    private static final long   MIN_RESOLVE_INTERVAL                 = 1000;
+    private int                 warmConnections                      = 2;
+    private int                 warmEndPoints                        = 2;
+    private final AtomicLong    warmups                              = new AtomicLong();
+    private volatile String     warmedEndPoints                      = null;
+    private ExecutorService     warmExecutor;
+    private ScheduledFuture<?>  resolverRefresh;
+    private static final int    BREAKER_FAILURES                     = 3;
+    private static final long   BREAKER_OPEN_DURATION                = 30000;
+    private static final double BREAKER_FAILURE_RATE                 = 0.5d;
+    private static final double BREAKER_SLOW_CALL_RATE               = 0.8d;
+    private static final int    BREAKER_WINDOW                       = 20;
+    private final ConcurrentMap<String, CircuitBreaker> endPointBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final AtomicLong    breakerSkips                         = new AtomicLong();
     private static final Logger LOGGER = LoggerFactory.getLogger(EndPointService.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The endpoint list in use with its ranking status, loaded from the cache
+     * once and kept until it expires or a ranking replaces it
+     */
+    private static final class EndPointSnapshot {
+        private final EndPoint[]    endPoints;
+        private final String        status;
+        private final boolean       manual;
+        private final boolean       autoRanking;
+        private final long          expiresAt;
+
+        private EndPointSnapshot(EndPoint[] endPoints, String status, boolean manual, boolean autoRanking, long expiresAt) {
+            this.endPoints = endPoints;
+            this.status = status;
+            this.manual = manual;
+            this.autoRanking = autoRanking;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Failover state of one cloud call, so concurrent calls do not share it
+     */
+    private static final class CallState {
+        private byte    failoverAction  = ActionConstants.FAILOVER_NOT_REQUIRED.getAction();
+        private String  errorMessage    = "";
+        private final Deadline          deadline;
+        private volatile CloudRequest   request;
+        private volatile boolean        cancelled = false;
+        // the socket timeout was shortened to fit the call budget
+        private volatile boolean        budgetLimited = false;
+
+        private CallState() {
+            this(null);
+        }
+
+        private CallState(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            CloudRequest current = request;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private boolean isDeadlineExpired() {
+            return deadline != null && deadline.isExpired();
+        }
+
+        /**
+         * The call was ended by the budget of the caller rather than by the
+         * end-point, its outcome says nothing about the end-point
+         */
+        private boolean isCutShort() {
+            return budgetLimited && isDeadlineExpired();
+        }
+    }
+
+    /**
+     * One of the concurrent calls of a hedged request
+     */
+    private final class Attempt implements Callable<Attempt> {
+        private final int           index;
+        private final EndPoint      endPoint;
+        private final String        userAgent;
+        private final Map<String, String> headers;
+        private final CallState     state;
+        private final List<String>  errors = new ArrayList<String>();
+        private Map                 response;
+        private ClientException     failure;
+        // cancelled after the winner started: it was not slow, its outcome is unknown
+        private volatile boolean    overtaken = false;
+
+        private Attempt(int index, EndPoint endPoint, String userAgent, Map<String, String> headers, Deadline deadline) {
+            this.index = index;
+            this.endPoint = endPoint;
+            this.userAgent = userAgent;
+            this.headers = headers;
+            this.state = new CallState(deadline);
+        }
+
+        @Override
+        public Attempt call() {
+            long tStart = System.nanoTime();
+            try {
+                response = connectCloud(endPoint, userAgent, headers, errors, state);
+            } catch (ClientException ex) {
+                failure = ex;
+            }
+
+            if (!state.cancelled) {
+                recordOutcome(endPoint, state, System.nanoTime() - tStart);
+            } else if (overtaken || state.isDeadlineExpired()) {
+                // aborted by a faster call or by the budget of the caller
+                getEndPointBreaker(endPoint).releaseRequest();
+            } else {
+                // lost to a hedge: a slow call
+                getEndPointBreaker(endPoint).recordFailure();
+            }
+
+            return this;
+        }
+    }
+
+    /**
+     * Outcome of the latency probe of one endpoint
+     */
+    private static final class Probe {
+        private final List<Double>  latencies   = new ArrayList<Double>();
+        private List<String>        fatalErrors = null;
+    }
 
     public EndPointService(CacheService cacheService) {
         this.cacheService = cacheService;
@@ -246,37 +438,206 @@ public class EndPointService {
      */
 
     public EndPoint[] getEndPoints() throws CacheException {
-        EndPoint[] cachedEndPoints;
+        return getActiveEndPoints().clone();
+    }
+
+    /**
+     * Returns the endpoint list in use, shared and not to be modified. Once
+     * loaded, it costs a volatile read until it expires or is replaced.
+     *
+     * @return EndPoint[]
+     */
+
+    private EndPoint[] getActiveEndPoints() throws CacheException {
+        EndPointSnapshot current = activeEndPoints.get();
+        if (current == null || current.autoRanking != autoServerRanking ||
+                System.currentTimeMillis() - current.expiresAt >= 0) {
+            current = loadEndPoints(current);
+        }
+
+        serverListIsManual = current.manual;
+        rankingStatus = current.status;
+
+        return current.endPoints;
+    }
+
+    /**
+     * Loads the endpoint list from the cache, or the last good ranking, or
+     * the default list
+     *
+     * @param expired the snapshot being replaced
+     * @return the new snapshot, or the one set meanwhile by a ranking
+     */
+
+    private EndPointSnapshot loadEndPoints(EndPointSnapshot expired) throws CacheException {
+        long now      = System.currentTimeMillis();
+        long lifetime = cacheService.getServerRankingLifetime() * 1000L;
+        // a cached list is kept for its lifetime, a fallback is checked again sooner
+        long cachedExpiry   = now + (lifetime > 0 ? lifetime : MIN_RANKING_INTERVAL);
+        long fallbackExpiry = now + MIN_RANKING_INTERVAL;
+        List<Map> data = cacheService.getCacheServersManualRanking();
+        EndPointSnapshot loaded = null;
+
         if (autoServerRanking) {
             selfAutoRanking = "y";
-            List<Map> data = cacheService.getCacheServersManualRanking();
             if (data != null) {
-                serverListIsManual = false;
-                cachedEndPoints = cacheService.convertServerMapListToServerList(data);
-                rankingStatus = "A";
-                return cachedEndPoints;
-            }
-            // no or expired server ranked list - rank endPoints
-            if (getServersRankIfRequired) {
-                cachedEndPoints = rankServers();
-                if (cachedEndPoints != null) {
-                    return cachedEndPoints;
+                loaded = new EndPointSnapshot(cacheService.convertServerMapListToServerList(data), "A", false, true, cachedExpiry);
+            } else if (getServersRankIfRequired) {
+                // no or expired server ranked list - rank endPoints in the background,
+                // the requests keep using the last good ranking meanwhile
+                requestRanking();
+                EndPoint[] ranked = lastRanking;
+                if (ranked != null && ranked.length > 0) {
+                    loaded = new EndPointSnapshot(ranked.clone(), "A", false, true, fallbackExpiry);
                 }
             }
+        } else if (data != null) {
+            // manual list is cached and used for some time when top server fails
+            loaded = new EndPointSnapshot(cacheService.convertServerMapListToServerList(data), "M", true, false, cachedExpiry);
         }
-        // check if manual list is cached or not
-        // manual list is cached and used for some time when top server fails
-        serverListIsManual = true;
-        List<Map> data = cacheService.getCacheServersManualRanking();
-        if (data != null) {
-            cachedEndPoints = cacheService.convertServerMapListToServerList(data);
-            rankingStatus = "M";
-            return cachedEndPoints;
+
+        if (loaded == null) {
+            // default unranked list
+            loaded = new EndPointSnapshot(endPoints.clone(), "D", true, autoServerRanking, fallbackExpiry);
+        }
+
+        if (!getServersRankIfRequired) {
+            // a partial view, not kept
+            return loaded;
+        }
+        if (!activeEndPoints.compareAndSet(expired, loaded)) {
+            EndPointSnapshot newer = activeEndPoints.get();
+            if (newer != null) {
+                return newer;
+            }
+        }
+        if (loaded.autoRanking && "A".equals(loaded.status)) {
+            startReordering();
+            warmEndPoints(loaded.endPoints, false);
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Re-sorts the auto ranked list on the scores of the end-points: the
+     * moving average of the latency of the real requests plus a penalty for
+     * their failures. An end-point only moves ahead of another when its
+     * score is clearly lower, end-points without score keep their place.
+     * Called periodically, a manual list keeps its order.
+     *
+     * @return true if the order changed
+     */
+
+    public boolean reorderEndPoints() {
+        EndPointSnapshot current = activeEndPoints.get();
+        if (current == null || !current.autoRanking || !"A".equals(current.status) ||
+                current.endPoints.length < 2) {
+            return false;
+        }
+
+        double     penalty = cloudServiceTimeout * 1000.0d;
+        EndPoint[] sorted  = current.endPoints.clone();
+        // positions of the end-points with a score, only they are sorted
+        int[]      slots   = new int[sorted.length];
+        double[]   scores  = new double[sorted.length];
+        int        scored  = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            double score = getEndPointStats(sorted[i]).getScore(penalty);
+            if (score >= 0) {
+                slots[scored] = i;
+                scores[scored++] = score;
+            }
+        }
+
+        boolean changed = false;
+        for (int i = 1; i < scored; i++) {
+            for (int j = i; j > 0 && scores[j] * REORDER_HYSTERESIS < scores[j - 1]; j--) {
+                EndPoint endPoint = sorted[slots[j - 1]];
+                sorted[slots[j - 1]] = sorted[slots[j]];
+                sorted[slots[j]] = endPoint;
+                double score = scores[j - 1];
+                scores[j - 1] = scores[j];
+                scores[j] = score;
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            return false;
+        }
+
+        if (activeEndPoints.compareAndSet(current, new EndPointSnapshot(sorted, current.status,
+                        current.manual, current.autoRanking, current.expiresAt))) {
+            lastRanking = sorted.clone();
+            reorders.incrementAndGet();
+            warmEndPoints(sorted, false);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the number of times the ranked list was re-sorted on the
+     * scores of the end-points
+     *
+     * @return long
+     */
+
+    public long getReorders() {
+        return reorders.get();
+    }
+
+    /**
+     * Starts the periodic re-sorting of the ranked list
+     */
+
+    private synchronized void startReordering() {
+        if (reorderTask != null) {
+            return;
+        }
+
+        try {
+            reorderTask = getRankingScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reorderEndPoints();
+                    } catch (Exception ex) {
+                        LOGGER.error("reorder endPoints", ex);
+                    }
+                }
+            }, REORDER_INTERVAL, REORDER_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            LOGGER.error("reorder endPoints", ex);
+        }
+    }
+
+    /**
+     * Saves an endpoint list to the cache, in the background
+     *
+     * @param localEndPoints
+     * @param isManual
+     */
+
+    private void persistEndPoints(final EndPoint[] localEndPoints, final boolean isManual) {
+        try {
+            getRankingScheduler().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cacheService.setServerCache(localEndPoints, isManual);
+                    } catch (CacheException ex) {
+                        LOGGER.error("persist endPoints", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            LOGGER.error("persist endPoints", ex);
         }
-        // return default unranked list
-        rankingStatus = "D";
-        cachedEndPoints = endPoints;
-        return cachedEndPoints;
     }
 
     /**
@@ -297,6 +658,11 @@ public class EndPointService {
 
     public void setEndPoints(EndPoint [] endPoints) {
         this.endPoints = endPoints.clone();
+        // the last ranking was made for other endpoints
+        this.lastRanking = null;
+        this.lastRankingRequest = 0;
+        this.activeEndPoints.set(null);
+        this.warmedEndPoints = null;
     }
 
     /**
@@ -349,6 +715,451 @@ public class EndPointService {
         return fatalErrors;
     }
 
+    /**
+     * Returns if a request is duplicated to the next end-point when the
+     * current one is slow to answer
+     *
+     * @return boolean
+     */
+
+    public boolean getHedgedRequests() {
+        return hedgedRequests;
+    }
+
+    /**
+     * Sets if a request is duplicated to the next end-point when the current
+     * one is slow to answer, the first answer is used and the other call
+     * aborted
+     *
+     * @param hedgedRequests
+     */
+
+    public void setHedgedRequests(boolean hedgedRequests) {
+        this.hedgedRequests = hedgedRequests;
+    }
+
+    /**
+     * Returns the time after which a request is duplicated
+     *
+     * @return milliseconds, 0 for the 95th percentile of the end-point latency
+     */
+
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Sets the time after which a request is duplicated
+     *
+     * @param hedgeDelay milliseconds, 0 for the 95th percentile of the end-point latency
+     */
+
+    public void setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * Returns the share of requests which may be duplicated
+     *
+     * @return double
+     */
+
+    public double getHedgeBudget() {
+        return hedgeBudget.getRatio();
+    }
+
+    /**
+     * Sets the share of requests which may be duplicated, to cap the extra
+     * load put on the end-points (0.1 for at most 10% extra calls)
+     *
+     * @param ratio
+     */
+
+    public void setHedgeBudget(double ratio) {
+        hedgeBudget.setRatio(ratio);
+    }
+
+    /**
+     * Returns the number of duplicated requests
+     *
+     * @return long
+     */
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Returns the number of idle connections opened to each of the top
+     * end-points, at startup and when the ranking changes
+     *
+     * @return int
+     */
+
+    public int getWarmConnections() {
+        return warmConnections;
+    }
+
+    /**
+     * Sets the number of idle connections opened to each of the top
+     * end-points, at startup and when the ranking changes
+     *
+     * @param warmConnections 0 to disable
+     */
+
+    public void setWarmConnections(int warmConnections) {
+        this.warmConnections = warmConnections;
+    }
+
+    /**
+     * Returns the number of end-points, from the top of the list, to which
+     * connections are opened in advance
+     *
+     * @return int
+     */
+
+    public int getWarmEndPoints() {
+        return warmEndPoints;
+    }
+
+    /**
+     * Sets the number of end-points, from the top of the list, to which
+     * connections are opened in advance
+     *
+     * @param warmEndPoints
+     */
+
+    public void setWarmEndPoints(int warmEndPoints) {
+        this.warmEndPoints = warmEndPoints;
+    }
+
+    /**
+     * Returns the number of warm-up requests answered by an end-point
+     *
+     * @return long
+     */
+
+    public long getWarmups() {
+        return warmups.get();
+    }
+
+    /**
+     * Returns the background lookups of the end-point addresses
+     *
+     * @return EndPointResolver
+     */
+
+    public EndPointResolver getEndPointResolver() {
+        return resolver;
+    }
+
+    /**
+     * Returns the time between two background lookups of an end-point
+     *
+     * @return milliseconds
+     */
+
+    public long getEndPointAddressRefresh() {
+        return resolver.getRefreshInterval();
+    }
+
+    /**
+     * Sets the time between two background lookups of an end-point, to be
+     * kept under the lifetime of the JVM address cache
+     * (networkaddress.cache.ttl) used by the connections
+     *
+     * @param refreshInterval milliseconds
+     */
+
+    public synchronized void setEndPointAddressRefresh(long refreshInterval) {
+        resolver.setRefreshInterval(refreshInterval);
+        if (resolverRefresh != null) {
+            // rescheduled with the new interval
+            resolverRefresh.cancel(false);
+            resolverRefresh = null;
+            startResolverRefresh();
+        }
+    }
+
+    /**
+     * Resolves the top end-points of the list in use and opens connections
+     * to them in the background, to be called at startup. The auto ranked
+     * lists are warmed up on their own whenever they change.
+     */
+
+    public void warmUp() throws CacheException {
+        warmEndPoints(getActiveEndPoints(), true);
+    }
+
+    /**
+     * Warms up the top end-points of a list, unless they already were
+     *
+     * @param ranked
+     * @param force warm up even if the top end-points did not change
+     */
+
+    private void warmEndPoints(EndPoint[] ranked, boolean force) {
+        int count = Math.min(warmEndPoints, ranked.length);
+        if (warmConnections <= 0 || count <= 0) {
+            return;
+        }
+
+        StringBuilder top = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            top.append(ranked[i].getUrl()).append(' ');
+        }
+        String key = top.toString();
+        if (!force && key.equals(warmedEndPoints)) {
+            return;
+        }
+        warmedEndPoints = key;
+        startResolverRefresh();
+
+        try {
+            ExecutorService executor = getWarmExecutor();
+            for (int i = 0; i < count; i++) {
+                final EndPoint endPoint = ranked[i];
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmEndPoint(endPoint);
+                    }
+                });
+            }
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            LOGGER.error("warm endPoints", ex);
+        }
+    }
+
+    /**
+     * Resolves an end-point and sends it concurrent latency checks, the
+     * requests of the ranking, each one leaves an idle keep-alive connection
+     * behind. A warm-up is counted only when the end-point answered
+     */
+
+    private void warmEndPoint(final EndPoint endPoint) {
+        if (licenceKey == null) {
+            return;
+        }
+
+        try {
+            resolver.resolve(endPoint);
+        } catch (UnknownHostException ex) {
+            LOGGER.error("warm endPoint", ex);
+            return;
+        }
+
+        final int timeout = getCloudServiceTimeout() * 1000;
+        try {
+            final String url = new RequestBuilderUtils(endPoint.getUrl(), licenceKey, "").buildCloudUrl();
+            ExecutorService executor = getWarmExecutor();
+            for (int i = 0; i < warmConnections; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Map<String, String> headers = new HashMap<String, String>();
+                        headers.put("Latency-Checker", "0");
+                        try {
+                            CloudResponse response = getTransport().send(new CloudRequest(url, headers, timeout, timeout));
+                            if (response.getStatus() != 0) {
+                                warmups.incrementAndGet();
+                            }
+                        } catch (IOException ex) {
+                            LOGGER.error("warm endPoint", ex);
+                        }
+                    }
+                });
+            }
+        } catch (UnsupportedEncodingException ex) {
+            LOGGER.error("warm endPoint", ex);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            LOGGER.error("warm endPoint", ex);
+        }
+    }
+
+    /**
+     * Starts the periodic lookup of the known end-points
+     */
+
+    private synchronized void startResolverRefresh() {
+        if (resolverRefresh != null) {
+            return;
+        }
+
+        long interval = Math.max(MIN_RESOLVE_INTERVAL, resolver.getRefreshInterval());
+        try {
+            resolverRefresh = getRankingScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolver.refresh();
+                    } catch (Exception ex) {
+                        LOGGER.error("resolve endPoints", ex);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            LOGGER.error("resolve endPoints", ex);
+        }
+    }
+
+    private synchronized ExecutorService getWarmExecutor() {
+        if (warmExecutor == null) {
+            warmExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeviceAtlasCloud-Warmup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return warmExecutor;
+    }
+
+    /**
+     * Returns the latencies of the successful calls to an end-point
+     *
+     * @param endPoint
+     * @return EndPointStats
+     */
+
+    public EndPointStats getEndPointStats(EndPoint endPoint) {
+        String key = endPoint.host + ":" + endPoint.port;
+        EndPointStats stats = endPointStats.get(key);
+        if (stats == null) {
+            EndPointStats created = new EndPointStats();
+            stats = endPointStats.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Returns the circuit breaker of an end-point: the requests skip an
+     * end-point whose recent calls mostly failed or were slow, until a
+     * recovery probe succeeds
+     *
+     * @param endPoint
+     * @return CircuitBreaker
+     */
+
+    public CircuitBreaker getEndPointBreaker(EndPoint endPoint) {
+        String key = endPoint.host + ":" + endPoint.port;
+        CircuitBreaker breaker = endPointBreakers.get(key);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(BREAKER_FAILURES, BREAKER_OPEN_DURATION);
+            created.setFailureRateThreshold(BREAKER_FAILURE_RATE, BREAKER_WINDOW);
+            // a call taking more than half the timeout is slow
+            created.setSlowCallThreshold(cloudServiceTimeout * 500L, BREAKER_SLOW_CALL_RATE, BREAKER_WINDOW);
+            breaker = endPointBreakers.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+
+        return breaker;
+    }
+
+    /**
+     * Returns the number of times an end-point was skipped as its circuit
+     * breaker was open
+     *
+     * @return long
+     */
+
+    public long getBreakerSkips() {
+        return breakerSkips.get();
+    }
+
+    /**
+     * Records the outcome of a cloud call in the end-point circuit breaker,
+     * a refused licence or a call cut short by its budget is not an end-point
+     * failure
+     */
+
+    private void recordOutcome(EndPoint endPoint, CallState state, long nanos) {
+        CircuitBreaker breaker = getEndPointBreaker(endPoint);
+        if (state.failoverAction == ActionConstants.FAILOVER_CONTINUE.getAction()) {
+            if (state.isCutShort()) {
+                breaker.releaseRequest();
+            } else {
+                breaker.recordFailure();
+            }
+        } else {
+            breaker.recordSuccess(TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    /**
+     * Returns the index of the next end-point the request can use
+     *
+     * @param localEndPoints
+     * @param from first index to consider
+     * @param gated false to ignore the circuit breakers
+     * @return index, -1 if none
+     */
+
+    private int nextEndPoint(EndPoint [] localEndPoints, int from, boolean gated) {
+        for (int i = from; i < localEndPoints.length; i++) {
+            if (!gated || getEndPointBreaker(localEndPoints[i]).allowRequest()) {
+                return i;
+            }
+            breakerSkips.incrementAndGet();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the time to wait for an end-point before duplicating a request
+     *
+     * @param endPoint
+     * @return milliseconds
+     */
+
+    private long getHedgeDelay(EndPoint endPoint) {
+        if (hedgeDelay > 0) {
+            return hedgeDelay;
+        }
+
+        EndPointStats stats = getEndPointStats(endPoint);
+        if (stats.getCount() < MIN_HEDGE_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY;
+        }
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(stats.getPercentile(HEDGE_PERCENTILE));
+        return Math.min(cloudServiceTimeout * 1000L, Math.max(MIN_HEDGE_DELAY, delay));
+    }
+
+    /**
+     * Returns the time limit of a ranking run
+     *
+     * @return milliseconds, 0 for the time a single probe can take at most
+     */
+
+    public long getRankingTimeout() {
+        return rankingTimeout;
+    }
+
+    /**
+     * Sets the time limit of a ranking run, the endpoints not probed by then
+     * are considered down
+     *
+     * @param rankingTimeout milliseconds, 0 for the time a single probe can take at most
+     */
+
+    public void setRankingTimeout(long rankingTimeout) {
+        this.rankingTimeout = rankingTimeout;
+    }
+
     /**
      * Returns the latencies of endpoints
      *
@@ -358,10 +1169,25 @@ public class EndPointService {
      */
 
     public List<Double> getServerLatency(EndPoint endPoint, int numRequests) {
+        Probe probe = probe(endPoint, numRequests, Long.MAX_VALUE);
+        fatalErrors = probe.fatalErrors;
+
+        return probe.latencies;
+    }
+
+    /**
+     * Probes an endpoint, sequentially as the first call warms the connection
+     *
+     * @param endPoint
+     * @param numRequests
+     * @param deadline System.nanoTime() after which no call is started
+     * @return Probe
+     */
+
+    private Probe probe(EndPoint endPoint, int numRequests, long deadline) {
         int          failures  = 0;
-        List<Double> latencies = new ArrayList<Double>();
+        Probe        probe     = new Probe();
         long         tStart;
-        fatalErrors  = null;
         // the first request includes API end-point settings
         Map<String, String> headers = new HashMap<String, String>();
         headers.put(
@@ -375,25 +1201,30 @@ public class EndPointService {
                 );
         // ignore results from the first call because it can take an unreal long time
         for (int i = 0; i < numRequests + 1 && failures < autoServerRankingMaxFailures; ++ i) {
-            tStart = System.currentTimeMillis();
+            if (System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted()) {
+                probe.latencies.add(-1.0d);
+                break;
+            }
+
+            tStart = System.nanoTime();
             if (i > 0) {
                 headers.put("Latency-Checker", Integer.toString(i));
             }
             try {
-                failoverAction = ActionConstants.FAILOVER_NOT_REQUIRED.getAction();
+                CallState state = new CallState();
                 List<String> errors = new ArrayList<String>();
-                connectCloud(endPoint, "", headers, errors);
+                connectCloud(endPoint, "", headers, errors, state);
 
-                if (failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction() &&
+                if (state.failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction() &&
                         i > 0) {
-                    latencies.add((double)(System.currentTimeMillis() - tStart));
+                    probe.latencies.add((System.nanoTime() - tStart) / 1000000.0d);
                 }
 
-                if (failoverAction == ActionConstants.FAILOVER_STOP.getAction()) {
+                if (state.failoverAction == ActionConstants.FAILOVER_STOP.getAction()) {
                     // licence errors which are found at ranking, to stop any further cloud call
-                    fatalErrors = errors;
+                    probe.fatalErrors = errors;
                     break;
-                } else if (failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction()) {
+                } else if (state.failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction()) {
                     continue;
                 }
 
@@ -402,61 +1233,111 @@ public class EndPointService {
             }
 
             ++failures;
-            latencies.add(-1.0d);
+            probe.latencies.add(-1.0d);
 
         }
 
-        return latencies;
+        return probe;
     }
 
     /**
-     * Get endPoints and their service latencies.
+     * Get endPoints and their service latencies. The endpoints are probed
+     * concurrently, a run lasts as long as the slowest probe, within the
+     * ranking timeout.
      *
      * @param numRequests Number of times to request from server
      * @return An array of EndPoint objects
      */
-    public EndPoint[] getServersLatencies(int numRequests) {
+    public EndPoint[] getServersLatencies(final int numRequests) {
         rankingStatus = "L";
-        // test the endPoints in a randomly
         EndPoint[] localEndPoints = this.endPoints;
-        int           len     = localEndPoints.length;
-        List<Integer> seed    = new ArrayList<Integer>();
-        int      k, j;
-        for (k = 0; k < len; ++k) {
-            seed.add(k);
-        }
-        Random rnd = new Random();
-        List<Double> latencies;
-        double sum;
-        EndPoint endPoint;
-        calledServers    = new ArrayList<String>();
-
-        while (!seed.isEmpty()) {
-            j = rnd.nextInt(seed.size());
-            // process endPoint > > >
-            endPoint = localEndPoints[seed.get(j)];
-            // get selected endPoint latency
-            latencies = getServerLatency(endPoint, numRequests);
-            if (fatalErrors != null && !fatalErrors.isEmpty()) {
-                return new EndPoint[0];
-            }
-            endPoint.latencies = latencies;
-            if (latencies.contains(-1.0d)) {
-                endPoint.avg = -1.0d;
-            } else {
-                sum = 0.0d;
-                for (double latency : latencies) {
-                    sum += latency;
+        calledServers    = Collections.synchronizedList(new ArrayList<String>());
+        fatalErrors      = null;
+        if (localEndPoints.length == 0) {
+            return localEndPoints;
+        }
+
+        // by default the time of a probe whose every call times out
+        long timeout = rankingTimeout > 0 ? rankingTimeout
+            : cloudServiceTimeout * 1000L * (numRequests + 1);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(localEndPoints.length, MAX_PROBE_THREADS), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DeviceAtlasCloud-LatencyProbe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            List<Future<Probe>> probes = new ArrayList<Future<Probe>>(localEndPoints.length);
+            for (final EndPoint endPoint : localEndPoints) {
+                probes.add(pool.submit(new Callable<Probe>() {
+                    @Override
+                    public Probe call() {
+                        return probe(endPoint, numRequests, deadline);
+                    }
+                }));
+            }
+
+            for (int k = 0; k < localEndPoints.length; k++) {
+                EndPoint endPoint = localEndPoints[k];
+                List<Double> latencies = awaitProbe(probes.get(k), deadline);
+                if (latencies == null) {
+                    return new EndPoint[0];
+                }
+
+                endPoint.latencies = latencies;
+                if (latencies.contains(-1.0d)) {
+                    endPoint.avg = -1.0d;
+                } else {
+                    double sum = 0.0d;
+                    for (double latency : latencies) {
+                        sum += latency;
+                    }
+                    endPoint.avg = sum / (double)numRequests;
                 }
-                endPoint.avg = sum / (double)numRequests;
             }
-            // < < < proccess endPoint
-            seed.remove(j);
+        } finally {
+            pool.shutdownNow();
         }
 
         return localEndPoints;
     }
 
+    /**
+     * Waits for a probe
+     *
+     * @return the latencies, -1 for an endpoint not probed in time, or null
+     * when the licence cannot be used
+     */
+
+    private List<Double> awaitProbe(Future<Probe> future, long deadline) {
+        List<Double> failed = new ArrayList<Double>();
+        failed.add(-1.0d);
+
+        try {
+            Probe probe = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (probe.fatalErrors != null && !probe.fatalErrors.isEmpty()) {
+                fatalErrors = probe.fatalErrors;
+                return null;
+            }
+
+            return probe.latencies;
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+        } catch (ExecutionException ex) {
+            LOGGER.error("get endPoint latency", ex.getCause());
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+
+        return failed;
+    }
+
     /**
      * Get endPoints and their service latencies.
      *
@@ -514,7 +1395,7 @@ public class EndPointService {
         // try to extend the cache expire time
         try {
             getServersRankIfRequired = false;
-            cacheService.setServerCache(getEndPoints(), false);
+            persistEndPoints(getEndPoints(), false);
             getServersRankIfRequired = true;
         } catch (Exception ex) {
             LOGGER.error("rank endPoints", ex);
@@ -552,10 +1433,166 @@ public class EndPointService {
 
         // put server list in cache
         EndPoint[] localEndPoints = endPointL.toArray(new EndPoint[endPointL.size()]);
-        cacheService.setServerCache(localEndPoints, true);
+        lastRanking = localEndPoints.clone();
+        long lifetime = cacheService.getServerRankingLifetime() * 1000L;
+        activeEndPoints.set(new EndPointSnapshot(localEndPoints.clone(), "A", false, true,
+                    System.currentTimeMillis() + (lifetime > 0 ? lifetime : MIN_RANKING_INTERVAL)));
+        startReordering();
+        warmEndPoints(localEndPoints, false);
+        persistEndPoints(localEndPoints.clone(), true);
         return localEndPoints;
     }
 
+    /**
+     * Ranks the endpoints in the background, unless a ranking is in progress
+     * or was requested recently
+     */
+
+    private void requestRanking() {
+        long now = System.currentTimeMillis();
+        if (!autoServerRanking || now - lastRankingRequest < MIN_RANKING_INTERVAL) {
+            return;
+        }
+
+        if (!rankingInProgress.compareAndSet(false, true)) {
+            return;
+        }
+
+        lastRankingRequest = now;
+        if (scheduleRanking(0, true) == null) {
+            endRanking();
+        }
+    }
+
+    /**
+     * Schedules the refresh of the ranked list, replacing the previous one
+     *
+     * @param delay milliseconds
+     */
+
+    private synchronized void scheduleRefresh(long delay) {
+        if (rankingRefresh != null) {
+            rankingRefresh.cancel(false);
+        }
+
+        rankingRefresh = scheduleRanking(delay, false);
+    }
+
+    /**
+     * Schedules a ranking
+     *
+     * @param delay milliseconds
+     * @param claimed true if the caller already marked the ranking in progress
+     * @return ScheduledFuture or null if shut down meanwhile
+     */
+
+    private ScheduledFuture<?> scheduleRanking(long delay, final boolean claimed) {
+        ScheduledExecutorService scheduler = getRankingScheduler();
+        if (scheduler == null) {
+            return null;
+        }
+
+        try {
+            return scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!claimed && !rankingInProgress.compareAndSet(false, true)) {
+                        // the ranking in progress schedules the next refresh
+                        return;
+                    }
+
+                    boolean ranked = false;
+                    try {
+                        ranked = rankServers().length > 0;
+                    } catch (Exception ex) {
+                        LOGGER.error("background ranking", ex);
+                    } finally {
+                        endRanking();
+                    }
+
+                    // refresh before the ranked list expires
+                    long lifetime = cacheService.getServerRankingLifetime() * 1000L;
+                    if (ranked && lifetime > 0 && autoServerRanking) {
+                        scheduleRefresh((long)(lifetime * RANKING_REFRESH_RATIO));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // shut down
+            return null;
+        }
+    }
+
+    private void endRanking() {
+        rankingInProgress.set(false);
+        synchronized (rankingLock) {
+            rankingLock.notifyAll();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getRankingScheduler() {
+        if (rankingScheduler == null) {
+            rankingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeviceAtlasCloud-EndPointRanking");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return rankingScheduler;
+    }
+
+    /**
+     * Waits for the end of a background ranking. May be used at startup
+     * to have the first requests use a ranked list
+     *
+     * @param timeout milliseconds
+     * @return true if no ranking is in progress
+     */
+
+    public boolean awaitRanking(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (rankingLock) {
+            while (rankingInProgress.get()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                rankingLock.wait(wait);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the background ranking
+     */
+
+    public synchronized void shutdown() {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+            hedgeExecutor = null;
+        }
+        if (rankingScheduler != null) {
+            rankingScheduler.shutdownNow();
+            // started again if the service is used afterwards
+            rankingScheduler = null;
+            rankingRefresh = null;
+            reorderTask = null;
+            resolverRefresh = null;
+        }
+        if (warmExecutor != null) {
+            warmExecutor.shutdownNow();
+            warmExecutor = null;
+        }
+        warmedEndPoints = null;
+    }
+
     /**
      * Sets HTTP proxy settings for the remote requests
      * 
@@ -563,37 +1600,79 @@ public class EndPointService {
      */
     public void setProxy(Proxy proxy) {
         this.proxy = proxy;
+        defaultTransport.setProxy(proxy);
+    }
+
+    /**
+     * Sets the transport used to reach the cloud end-points
+     *
+     * @param transport null for the default HttpURLConnection transport
+     */
+    public void setTransport(CloudTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Returns the transport used to reach the cloud end-points
+     */
+    public CloudTransport getTransport() {
+        CloudTransport current = transport;
+        return current != null ? current : defaultTransport;
     }
 
     /**
      * Get the properties from a cloud end point
      */
     public Map connectCloud(EndPoint endPoint, String userAgent, Map<String, String> headers, List<String> errors) throws ClientException {
+        CallState state = new CallState();
+        Map response = connectCloud(endPoint, userAgent, headers, errors, state);
+        failoverAction = state.failoverAction;
+
+        return response;
+    }
+
+    private Map connectCloud(EndPoint endPoint, String userAgent, Map<String, String> headers,
+            List<String> errors, CallState state) throws ClientException {
 
         final String connectCloudError = "connect cloud";
         getCalledServers().add(endPoint.host);
 
         String         message = "";
-        String         results = "";
         int status = 0;
 
         try {
             String url = new RequestBuilderUtils(endPoint.getUrl(), licenceKey, userAgent).
                 buildCloudUrl();
 
-            NetworkUtils nUtils = new NetworkUtils(proxy);
-            Map<String, Object> connectionRet = nUtils.setConnection(url, headers, getCloudServiceTimeout());
-            status = (Integer)connectionRet.get(ClientConstants.CLOUD_SERVICE_STATUS.toString());
-            message = connectionRet.get(ClientConstants.CLOUD_SERVICE_MESSAGE.toString()).toString();
-            if (connectionRet.containsKey(ClientConstants.CLOUD_SERVICE_RESULT.toString())) {
-                results = connectionRet.get(ClientConstants.CLOUD_SERVICE_RESULT.toString()).toString();
+            // each attempt is given what remains of the call budget
+            int timeout = getCloudServiceTimeout() * 1000;
+            if (state.deadline != null) {
+                int budget = state.deadline.timeout(timeout);
+                state.budgetLimited = budget < timeout;
+                timeout = budget;
+            }
+            CloudRequest request = new CloudRequest(url, headers, timeout, timeout);
+            state.request = request;
+            if (state.cancelled) {
+                request.cancel();
+            }
+            long tStart = System.nanoTime();
+            CloudResponse response = getTransport().send(request);
+            status = response.getStatus();
+            message = response.getMessage();
+            if (response.getBody() != null) {
+                getEndPointStats(endPoint).record(System.nanoTime() - tStart);
 
                 // if error status
-                return decodeData(results);
+                return decodeData(response.getBody());
             }
         } catch (UnsupportedEncodingException ex) {
             LOGGER.error(connectCloudError, ex);
 
+        } catch (IOException ex) {
+            // handled as a connection failure, the end-point is failed over
+            message = ex.toString();
+
         } catch (JsonException ex) {
             LOGGER.error(connectCloudError, ex);
 
@@ -603,8 +1682,13 @@ public class EndPointService {
 
         }
 
-        errorControler(endPoint, status, message);
-        errors.add(errorMessage);
+        errorControler(endPoint, status, message, state);
+        errors.add(state.errorMessage);
+        // an aborted hedge, a call cut short by its budget or a refused licence
+        // say nothing about the end-point
+        if (!state.cancelled && !state.isCutShort() && state.failoverAction == ActionConstants.FAILOVER_CONTINUE.getAction()) {
+            getEndPointStats(endPoint).recordFailure();
+        }
 
         return null;
     }
@@ -612,13 +1696,21 @@ public class EndPointService {
     /**
      * Decodes the JSON data and extracts the properties.
      */
-    private Map decodeData(String dataStr) throws JsonException {
-        if (dataStr == null) {
+    private Map decodeData(byte[] data) throws JsonException {
+        if (data == null) {
             throw new JsonException(JsonException.BAD_DATA, "Attempt to decode empty data.");
         }
-        String tmpDataStr = dataStr.trim();
-        if (!tmpDataStr.isEmpty() && tmpDataStr.charAt(0) == '{' && tmpDataStr.charAt(tmpDataStr.length() - 1) == '}') {
-            Map decoded = new JsonParser(tmpDataStr).getHashMap();
+        // trimmed on the bytes, the body is turned into a string only once
+        int start = 0;
+        int end = data.length;
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (end > start && data[start] == '{' && data[end - 1] == '}') {
+            Map decoded = new JsonParser(new String(data, start, end - start, UTF8)).getHashMap();
             if (decoded.containsKey(ClientConstants.KEY_PROPERTIES.toString())) {
                 return (HashMap)decoded.get(ClientConstants.KEY_PROPERTIES.toString());
             }
@@ -630,19 +1722,19 @@ public class EndPointService {
      * when an end-point returns an error this method will check it
      * @return (action, error-message)
      */
-    private void errorControler(EndPoint endPoint, int status, String msg) {
-        failoverAction = ActionConstants.FAILOVER_CONTINUE.getAction();
+    private void errorControler(EndPoint endPoint, int status, String msg, CallState state) {
+        state.failoverAction = ActionConstants.FAILOVER_CONTINUE.getAction();
 
         // Invalid licence key, Licence monthly quota exceeded
         if (msg.toLowerCase().indexOf("forbidden") != -1) {
-            failoverAction = ActionConstants.FAILOVER_STOP.getAction();
+            state.failoverAction = ActionConstants.FAILOVER_STOP.getAction();
         }
 
-        errorMessage = failoverAction + ": Error getting data from DeviceAtlas Cloud end-point \"" +
+        state.errorMessage = state.failoverAction + ": Error getting data from DeviceAtlas Cloud end-point \"" +
             endPoint.host + "\", response " + status + ", Reason: ";
 
         String tmpMsg = msg.replace("\n", " ").replace("\r", " ").replaceAll("\\<[^>]*>","");
-        errorMessage += tmpMsg;
+        state.errorMessage += tmpMsg;
     }
 
     /**
@@ -650,8 +1742,12 @@ public class EndPointService {
      *
      * @param localEndPoints
      * @param i
+     * @deprecated failed endPoints are skipped by their circuit breaker, see
+     * {@link #getEndPointBreaker(EndPoint)}, the failover no longer changes
+     * the cached list
      */
 
+    @Deprecated
     public void moveEndPointOrder(EndPoint [] localEndPoints, int i) throws CacheException {
         if (i > 0) {
             int k;
@@ -680,20 +1776,52 @@ public class EndPointService {
 
     public Map getCloudServiceResponse(EndPoint [] localEndPoints, String userAgent,
             Map<String, String> headers, List<String> errors) throws CacheException {
+        return getCloudServiceResponse(localEndPoints, userAgent, headers, errors, null);
+    }
+
+    /**
+     * Treats the endPoint response, within a time budget
+     *
+     * @param localEndPoints
+     * @param userAgent
+     * @param headers
+     * @param errors
+     * @param deadline null for no limit other than the cloud service timeout of each endPoint
+     * @return Map, null if all the endPoints failed or the budget is used up
+     */
+
+    public Map getCloudServiceResponse(EndPoint [] localEndPoints, String userAgent,
+            Map<String, String> headers, List<String> errors, Deadline deadline) throws CacheException {
+        if (hedgedRequests && localEndPoints.length > 1) {
+            return getHedgedResponse(localEndPoints, userAgent, headers, errors, deadline);
+        }
+
         Map response;
+        // skip the endPoints whose breaker is open, unless they all are
+        int     first = nextEndPoint(localEndPoints, 0, true);
+        boolean gated = first >= 0;
         // for each server try to get service or go for next
         try {
-            for (int i = 0; i < getEndPoints().length; i++) {
-                setFailoverAction(ActionConstants.FAILOVER_NOT_REQUIRED.getAction());
+            for (int i = gated ? first : 0; i >= 0 && i < localEndPoints.length; i = nextEndPoint(localEndPoints, i + 1, gated)) {
+                if (deadline != null && deadline.isExpired()) {
+                    if (gated) {
+                        // the endPoint was let through by its breaker
+                        getEndPointBreaker(localEndPoints[i]).releaseRequest();
+                    }
+                    break;
+                }
+                CallState state  = new CallState(deadline);
                 EndPoint endPoint = localEndPoints[i];
-                response         = connectCloud(endPoint, userAgent, headers, errors);
+                long tStart      = System.nanoTime();
+                response         = connectCloud(endPoint, userAgent, headers, errors, state);
+                recordOutcome(endPoint, state, System.nanoTime() - tStart);
                 lastUsedCloudUrl = endPoint.getUrl();
+                setFailoverAction(state.failoverAction);
                 // if endPoint did not fail
-                if (getFailoverAction() == ActionConstants.FAILOVER_NOT_REQUIRED.getAction()) {
-                    moveEndPointOrder(localEndPoints, i);
+                if (state.failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction()) {
                     return response;
 
-                } else if (getFailoverAction() == ActionConstants.FAILOVER_STOP.getAction()) {
+                } else if (state.failoverAction == ActionConstants.FAILOVER_STOP.getAction()) {
                     break;
                 }
             }
@@ -704,23 +1832,165 @@ public class EndPointService {
         return null;
     }
 
+    /**
+     * Treats the endPoint response, duplicating the call to the next endPoint
+     * when the current one does not answer within the hedge delay, within the
+     * hedge budget. A failed call moves to the next endPoint as usual.
+     *
+     * @param localEndPoints
+     * @param userAgent
+     * @param headers
+     * @param errors
+     * @return Map
+     */
+
+    private Map getHedgedResponse(EndPoint [] localEndPoints, String userAgent,
+            Map<String, String> headers, List<String> errors, Deadline deadline) throws CacheException {
+        ExecutorCompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(getHedgeExecutor());
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        // skip the endPoints whose breaker is open, unless they all are
+        int           current  = nextEndPoint(localEndPoints, 0, true);
+        boolean       gated    = current >= 0;
+        int           inFlight = 0;
+        boolean       hedge    = true;
+
+        hedgeBudget.deposit();
+        try {
+            current = gated ? current : 0;
+            attempts.add(submitAttempt(completion, current, localEndPoints[current], userAgent, headers, deadline));
+            inFlight++;
+
+            while (inFlight > 0) {
+                Future<Attempt> done = null;
+                if (hedge && current + 1 < localEndPoints.length) {
+                    long wait = getHedgeDelay(localEndPoints[current]);
+                    done = completion.poll(deadline != null ? Math.min(wait, deadline.remaining()) : wait, TimeUnit.MILLISECONDS);
+                    if (done == null && deadline != null && deadline.isExpired()) {
+                        return null;
+                    } else if (done == null) {
+                        // the current endPoint is slow, duplicate the call if the budget allows
+                        int next = hedgeBudget.tryAcquire() ? nextEndPoint(localEndPoints, current + 1, gated) : -1;
+                        if (next >= 0) {
+                            hedges.incrementAndGet();
+                            current = next;
+                            attempts.add(submitAttempt(completion, current, localEndPoints[current], userAgent, headers, deadline));
+                            inFlight++;
+                        } else {
+                            hedge = false;
+                        }
+                        continue;
+                    }
+                } else if (deadline != null) {
+                    done = completion.poll(deadline.remaining(), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        // the budget is used up
+                        return null;
+                    }
+                } else {
+                    done = completion.take();
+                }
+
+                inFlight--;
+                Attempt attempt = done.get();
+                if (attempt.failure != null) {
+                    LOGGER.error("gtCloudServiceResponse", attempt.failure);
+                    return null;
+                }
+
+                lastUsedCloudUrl = attempt.endPoint.getUrl();
+                setFailoverAction(attempt.state.failoverAction);
+                if (attempt.state.failoverAction == ActionConstants.FAILOVER_NOT_REQUIRED.getAction()) {
+                    // the calls started after the winner were not slow
+                    for (Attempt other : attempts.subList(attempts.indexOf(attempt) + 1, attempts.size())) {
+                        other.overtaken = true;
+                    }
+                    return attempt.response;
+                }
+
+                errors.addAll(attempt.errors);
+                if (attempt.state.failoverAction == ActionConstants.FAILOVER_STOP.getAction()) {
+                    return null;
+                }
+
+                int next = nextEndPoint(localEndPoints, current + 1, gated);
+                if (next >= 0) {
+                    current = next;
+                    attempts.add(submitAttempt(completion, current, localEndPoints[current], userAgent, headers, deadline));
+                    inFlight++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.error("gtCloudServiceResponse", ex.getCause());
+        } finally {
+            // abort the calls which lost
+            for (Attempt attempt : attempts) {
+                attempt.state.cancel();
+            }
+        }
+
+        return null;
+    }
+
+    private Attempt submitAttempt(ExecutorCompletionService<Attempt> completion, int index,
+            EndPoint endPoint, String userAgent, Map<String, String> headers, Deadline deadline) {
+        Attempt attempt = new Attempt(index, endPoint, userAgent, headers, deadline);
+        completion.submit(attempt);
+
+        return attempt;
+    }
+
+    private synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DeviceAtlasCloud-Hedge");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return hedgeExecutor;
+    }
+
     /**
      * Get device properties from DeviceAtlas cloud service
      */
     public Map getCloudService(String userAgent, Map<String, String> headers) throws ClientException {
+        return getCloudService(userAgent, headers, null);
+    }
+
+    /**
+     * Get device properties from DeviceAtlas cloud service, within a time budget
+     *
+     * @param userAgent
+     * @param headers
+     * @param deadline null for no limit other than the cloud service timeout of each endPoint
+     * @return Map, null when the budget was used up before an endPoint answered
+     * @throws ClientException when all the endPoints failed
+     */
+
+    public Map getCloudService(String userAgent, Map<String, String> headers, Deadline deadline) throws ClientException {
         List<String> errors;
         // getEndPoints returns the auto or manual server list
         try {
-            EndPoint[] localEndPoints = getEndPoints();
+            EndPoint[] localEndPoints = getActiveEndPoints();
 
             // if cloud was called upon ranking via the getEndPoints() call, and it was recognized
             // that the licence is unusable then dont try and throw the error
             if (getFatalErrors() == null || getFatalErrors().isEmpty()) {
                 errors       = new ArrayList<String>();
                 Map response;
-                if ((response = getCloudServiceResponse(localEndPoints, userAgent, headers, errors)) != null) {
+                if ((response = getCloudServiceResponse(localEndPoints, userAgent, headers, errors, deadline)) != null) {
                     return response;
                 }
+                if (deadline != null && deadline.isExpired()) {
+                    // out of time rather than failed
+                    return null;
+                }
             } else {
                 errors = getFatalErrors();
             }
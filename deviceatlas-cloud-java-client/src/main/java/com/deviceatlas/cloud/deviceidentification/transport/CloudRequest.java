@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.transport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request to the DeviceAtlas cloud service.
+ *
+ * The headers are the client headers forwarded to the service, the
+ * transport adds the DeviceAtlas prefix to their names. A request may be
+ * cancelled from another thread, the transport then aborts it through the
+ * cancel action it registered.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class CloudRequest {
+    private final String                url;
+    private final Map<String, String>   headers;
+    private final int                   connectTimeout;
+    private final int                   readTimeout;
+    private volatile boolean            cancelled       = false;
+    private volatile Runnable           cancelAction    = null;
+
+    /**
+     * Creates a request
+     *
+     * @param url full URL, query string included
+     * @param headers client headers to forward, may be null
+     * @param connectTimeout milliseconds
+     * @param readTimeout milliseconds
+     */
+
+    public CloudRequest(String url, Map<String, String> headers, int connectTimeout, int readTimeout) {
+        this.url = url;
+        this.headers = headers != null ?
+            Collections.unmodifiableMap(new HashMap<String, String>(headers)) :
+            Collections.<String, String>emptyMap();
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the connect timeout
+     *
+     * @return milliseconds
+     */
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Returns the read timeout
+     *
+     * @return milliseconds
+     */
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Cancels the request, its response is no longer needed
+     */
+
+    public void cancel() {
+        cancelled = true;
+        Runnable action = cancelAction;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sets how the transport aborts the request, run straight away if the
+     * request is already cancelled
+     *
+     * @param cancelAction
+     */
+
+    public void setCancelAction(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+        if (cancelled && cancelAction != null) {
+            cancelAction.run();
+        }
+    }
+}
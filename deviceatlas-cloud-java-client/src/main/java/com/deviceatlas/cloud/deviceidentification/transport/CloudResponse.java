@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.transport;
+
+import java.nio.charset.Charset;
+
+/**
+ * A response of the DeviceAtlas cloud service.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class CloudResponse {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final int       status;
+    private final byte[]    body;
+    private final String    message;
+
+    /**
+     * Creates a response
+     *
+     * @param status HTTP status, 0 if none was received
+     * @param body the body of a successful response, null otherwise
+     * @param message the error, the body of an error response included
+     */
+
+    public CloudResponse(int status, byte[] body, String message) {
+        this.status = status;
+        this.body = body;
+        this.message = message != null ? message : "";
+    }
+
+    /**
+     * Creates the response of a successful or failed call from its status
+     * and body
+     *
+     * @param status HTTP status
+     * @param body
+     * @return CloudResponse
+     */
+
+    public static CloudResponse of(int status, String body) {
+        if (status / 100 != 2) {
+            return new CloudResponse(status, null, body);
+        } else if (body == null || body.isEmpty()) {
+            return new CloudResponse(status, null, "Returned empty!");
+        }
+
+        return new CloudResponse(status, body.getBytes(UTF8), "");
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the body of a successful response
+     *
+     * @return byte[] UTF-8 JSON, null if the call failed
+     */
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the error message
+     *
+     * @return String, empty if the call succeeded
+     */
+
+    public String getMessage() {
+        return message;
+    }
+}
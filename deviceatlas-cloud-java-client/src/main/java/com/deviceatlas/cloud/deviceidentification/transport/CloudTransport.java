@@ -0,0 +1,47 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.transport;
+
+import java.io.IOException;
+
+/**
+ * Sends the requests to the DeviceAtlas cloud service. The detection logic
+ * (end-points, failover, hedging, deadlines) only sees this interface, so
+ * the HTTP stack can be replaced and tuned on its own.
+ *
+ * Implementations must be thread safe and should honour the timeouts and
+ * the cancellation of the request.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public interface CloudTransport {
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param request
+     * @return the response, an error status included
+     * @throws IOException when no response was received
+     */
+    CloudResponse send(CloudRequest request) throws IOException;
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.transport;
+
+import com.deviceatlas.cloud.deviceidentification.client.ClientConstants;
+import com.deviceatlas.cloud.deviceidentification.utils.NetworkUtils;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.Map;
+
+/**
+ * Default transport, java.net.HttpURLConnection through NetworkUtils.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class HttpUrlConnectionTransport implements CloudTransport {
+    private volatile Proxy proxy;
+
+    public HttpUrlConnectionTransport() {
+        this(null);
+    }
+
+    /**
+     * Creates the transport
+     *
+     * @param proxy HTTP proxy, null for a direct connection
+     */
+
+    public HttpUrlConnectionTransport(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public Proxy getProxy() {
+        return proxy;
+    }
+
+    public void setProxy(Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public CloudResponse send(CloudRequest request) throws IOException {
+        final NetworkUtils nUtils = new NetworkUtils(proxy);
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                nUtils.disconnect();
+            }
+        });
+
+        Map<String, Object> connectionRet = nUtils.setConnection(request.getUrl(), request.getHeaders(),
+                request.getConnectTimeout(), request.getReadTimeout());
+        int    status  = (Integer)connectionRet.get(ClientConstants.CLOUD_SERVICE_STATUS.toString());
+        Object message = connectionRet.get(ClientConstants.CLOUD_SERVICE_MESSAGE.toString());
+        byte[] body    = (byte[]) connectionRet.get(ClientConstants.CLOUD_SERVICE_BODY.toString());
+
+        return new CloudResponse(status, body,
+                message != null ? message.toString() : "");
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.transport;
+
+import com.deviceatlas.cloud.deviceidentification.endpoint.EndPoint;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory transport answering canned responses per end-point, with an
+ * optional delay, and keeping the requests it received. The delays honour
+ * the read timeout and the cancellation of the requests.
+ *
+ * Use this transport only for testing and experiments, do not use this
+ * in production.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class InMemoryTransport implements CloudTransport {
+    private final Map<String, CloudResponse>    responses       = new ConcurrentHashMap<String, CloudResponse>();
+    private final Map<String, Long>             delays          = new ConcurrentHashMap<String, Long>();
+    private final List<CloudRequest>            requests        = Collections.synchronizedList(new ArrayList<CloudRequest>());
+    private volatile CloudResponse              defaultResponse = CloudResponse.of(404, "Not Found");
+
+    /**
+     * Sets the response of an end-point
+     *
+     * @param endPoint
+     * @param status HTTP status
+     * @param body
+     */
+
+    public void setResponse(EndPoint endPoint, int status, String body) {
+        responses.put(endPoint.getUrl(), CloudResponse.of(status, body));
+    }
+
+    /**
+     * Sets the response of the end-points without one
+     *
+     * @param status HTTP status
+     * @param body
+     */
+
+    public void setResponse(int status, String body) {
+        defaultResponse = CloudResponse.of(status, body);
+    }
+
+    /**
+     * Sets the time an end-point takes to answer
+     *
+     * @param endPoint
+     * @param delay milliseconds
+     */
+
+    public void setDelay(EndPoint endPoint, long delay) {
+        delays.put(endPoint.getUrl(), delay);
+    }
+
+    /**
+     * Returns the requests received so far
+     *
+     * @return List
+     */
+
+    public List<CloudRequest> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<CloudRequest>(requests);
+        }
+    }
+
+    @Override
+    public CloudResponse send(CloudRequest request) throws IOException {
+        requests.add(request);
+        String endPoint = findEndPoint(request.getUrl());
+        Long delay = endPoint != null ? delays.get(endPoint) : null;
+
+        if (delay != null && delay > 0) {
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            request.setCancelAction(new Runnable() {
+                @Override
+                public void run() {
+                    cancelled.countDown();
+                }
+            });
+
+            boolean timesOut = request.getReadTimeout() > 0 && delay > request.getReadTimeout();
+            try {
+                if (cancelled.await(timesOut ? request.getReadTimeout() : delay, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Request cancelled");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (timesOut) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+
+        CloudResponse response = endPoint != null ? responses.get(endPoint) : null;
+        return response != null ? response : defaultResponse;
+    }
+
+    private String findEndPoint(String url) {
+        for (String endPoint : responses.keySet()) {
+            if (url.startsWith(endPoint)) {
+                return endPoint;
+            }
+        }
+        for (String endPoint : delays.keySet()) {
+            if (url.startsWith(endPoint)) {
+                return endPoint;
+            }
+        }
+
+        return null;
+    }
+}
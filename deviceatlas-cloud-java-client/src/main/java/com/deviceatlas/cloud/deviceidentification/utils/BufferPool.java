@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of byte buffers, so the buffers used to read the responses
+ * are not allocated again for every call. Buffers which grew too large are
+ * not kept.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class BufferPool {
+    private final Queue<byte[]>     buffers     = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger     pooled      = new AtomicInteger();
+    private final int               bufferSize;
+    private final int               maxBufferSize;
+    private final int               maxPooled;
+
+    /**
+     * Creates an empty pool
+     *
+     * @param bufferSize size of the new buffers
+     * @param maxBufferSize larger buffers are dropped on release
+     * @param maxPooled buffers kept at most
+     */
+
+    public BufferPool(int bufferSize, int maxBufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxBufferSize = maxBufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if it is empty
+     *
+     * @return byte[] at least bufferSize long
+     */
+
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Gives a buffer back, it must not be used afterwards
+     *
+     * @param buffer
+     */
+
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length < bufferSize || buffer.length > maxBufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Returns a buffer twice as large with the same content, the given
+     * buffer goes back to the pool
+     *
+     * @param buffer
+     * @return byte[]
+     */
+
+    public byte[] grow(byte[] buffer) {
+        byte[] larger = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, larger, 0, buffer.length);
+        release(buffer);
+
+        return larger;
+    }
+
+    public int getPooled() {
+        return pooled.get();
+    }
+}
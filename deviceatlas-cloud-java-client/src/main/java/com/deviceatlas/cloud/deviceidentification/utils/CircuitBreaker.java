@@ -0,0 +1,317 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker guarding a remote dependency.
+ *
+ * CLOSED: the calls go through, consecutive failures are counted. Once they
+ * reach the threshold the breaker trips OPEN: the calls are refused for the
+ * open duration. It then turns HALF_OPEN and lets a limited number of probe
+ * calls through; a successful probe closes it, a failed one opens it again.
+ *
+ * Optionally the outcomes of the last calls are kept in a window, the
+ * breaker then also trips when the share of failed or of slow calls in the
+ * window reaches a threshold.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class CircuitBreaker {
+    private static final int    DEFAULT_FAILURE_THRESHOLD   = 5;
+    private static final long   DEFAULT_OPEN_DURATION       = 5000;
+    private static final int    DEFAULT_HALF_OPEN_PROBES    = 1;
+
+    /**
+     * Breaker states
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int           failureThreshold;
+    private final long          openDuration;
+    private final int           halfOpenProbes;
+    private final AtomicLong    trips                   = new AtomicLong();
+    private volatile State      state                   = State.CLOSED;
+    private volatile int        consecutiveFailures     = 0;
+    private int                 probes                  = 0;
+    private long                openedAt                = 0;
+    // outcomes of the last calls, null when only consecutive failures are counted
+    private volatile byte[]     outcomes                = null;
+    private int                 outcomeNext             = 0;
+    private int                 outcomeCount            = 0;
+    private int                 windowFailures          = 0;
+    private int                 windowSlowCalls         = 0;
+    private double              failureRateThreshold    = 0;
+    private double              slowCallRateThreshold   = 0;
+    private long                slowCallDuration        = 0;
+    private static final byte   OUTCOME_SUCCESS         = 0;
+    private static final byte   OUTCOME_FAILURE         = 1;
+    private static final byte   OUTCOME_SLOW            = 2;
+
+    /**
+     * Creates a breaker
+     *
+     * @param failureThreshold consecutive failures tripping the breaker open
+     * @param openDuration milliseconds the calls are refused before probing
+     * @param halfOpenProbes calls let through while probing
+     */
+
+    public CircuitBreaker(int failureThreshold, long openDuration, int halfOpenProbes) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this(failureThreshold, openDuration, DEFAULT_HALF_OPEN_PROBES);
+    }
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, DEFAULT_HALF_OPEN_PROBES);
+    }
+
+    /**
+     * Trips the breaker when the share of failed calls among the last calls
+     * reaches the threshold
+     *
+     * @param failureRateThreshold between 0 and 1, 0 to disable
+     * @param windowSize number of calls considered
+     */
+
+    public synchronized void setFailureRateThreshold(double failureRateThreshold, int windowSize) {
+        this.failureRateThreshold = failureRateThreshold;
+        resizeWindow(windowSize);
+    }
+
+    /**
+     * Trips the breaker when the share of slow calls among the last calls
+     * reaches the threshold, a slow call is a successful call lasting at
+     * least the given duration
+     *
+     * @param slowCallDuration milliseconds, 0 to disable
+     * @param slowCallRateThreshold between 0 and 1
+     * @param windowSize number of calls considered
+     */
+
+    public synchronized void setSlowCallThreshold(long slowCallDuration, double slowCallRateThreshold, int windowSize) {
+        this.slowCallDuration = slowCallDuration;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        resizeWindow(windowSize);
+    }
+
+    private void resizeWindow(int windowSize) {
+        outcomes = windowSize > 0 ? new byte[windowSize] : null;
+        clearWindow();
+    }
+
+    private void clearWindow() {
+        outcomeNext = 0;
+        outcomeCount = 0;
+        windowFailures = 0;
+        windowSlowCalls = 0;
+    }
+
+    /**
+     * Adds the outcome of a call to the window
+     *
+     * @return true if the breaker must trip
+     */
+
+    private boolean recordOutcome(byte outcome) {
+        byte[] window = outcomes;
+        if (window == null) {
+            return false;
+        }
+
+        if (outcomeCount == window.length) {
+            byte evicted = window[outcomeNext];
+            if (evicted == OUTCOME_FAILURE) {
+                windowFailures--;
+            } else if (evicted == OUTCOME_SLOW) {
+                windowSlowCalls--;
+            }
+        } else {
+            outcomeCount++;
+        }
+        window[outcomeNext] = outcome;
+        outcomeNext = (outcomeNext + 1) % window.length;
+        if (outcome == OUTCOME_FAILURE) {
+            windowFailures++;
+        } else if (outcome == OUTCOME_SLOW) {
+            windowSlowCalls++;
+        }
+
+        // the rates are only meaningful once the window is full
+        if (outcomeCount < window.length) {
+            return false;
+        }
+
+        return (failureRateThreshold > 0 && windowFailures >= failureRateThreshold * outcomeCount) ||
+            (slowCallDuration > 0 && windowSlowCalls >= slowCallRateThreshold * outcomeCount);
+    }
+
+    /**
+     * Returns true if a call may go through. Every allowed call must be
+     * followed by recordSuccess() or recordFailure()
+     *
+     * @return boolean
+     */
+
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openDuration) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probes = 0;
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (probes >= halfOpenProbes) {
+                    return false;
+                }
+                probes++;
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Records a successful call
+     */
+
+    public void recordSuccess() {
+        recordSuccess(0);
+    }
+
+    /**
+     * Records a successful call and its duration
+     *
+     * @param duration milliseconds
+     */
+
+    public void recordSuccess(long duration) {
+        if (state == State.CLOSED && consecutiveFailures == 0 && outcomes == null) {
+            return;
+        }
+
+        synchronized (this) {
+            boolean slow = slowCallDuration > 0 && duration >= slowCallDuration;
+            if (state == State.HALF_OPEN) {
+                if (slow) {
+                    open();
+                } else {
+                    close();
+                }
+            } else if (state == State.CLOSED) {
+                consecutiveFailures = 0;
+                if (recordOutcome(slow ? OUTCOME_SLOW : OUTCOME_SUCCESS)) {
+                    open();
+                }
+            }
+            // a late answer of a call allowed before the breaker tripped does not close it
+        }
+    }
+
+    /**
+     * Records a failed or too slow call
+     */
+
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            boolean trip = recordOutcome(OUTCOME_FAILURE);
+            if (++consecutiveFailures >= failureThreshold || trip) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Gives back an allowed call whose outcome is unknown, as it was
+     * cancelled, so it does not use up a probe
+     */
+
+    public synchronized void releaseRequest() {
+        if (state == State.HALF_OPEN && probes > 0) {
+            probes--;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        consecutiveFailures = 0;
+        clearWindow();
+        trips.incrementAndGet();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        clearWindow();
+    }
+
+    /**
+     * Closes the breaker
+     */
+
+    public synchronized void reset() {
+        close();
+    }
+
+    /**
+     * Returns the current state
+     *
+     * @return State
+     */
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of times the breaker tripped open
+     *
+     * @return long
+     */
+
+    public long getTrips() {
+        return trips.get();
+    }
+}
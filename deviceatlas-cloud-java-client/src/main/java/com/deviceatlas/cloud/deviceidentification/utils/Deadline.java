@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget of a call, shared by all the steps and attempts it makes:
+ * each step is given what remains of it.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class Deadline {
+    private final long expiresAt;
+
+    /**
+     * Creates a deadline
+     *
+     * @param millis budget from now, in milliseconds
+     */
+
+    public Deadline(long millis) {
+        this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    /**
+     * Returns a deadline, or null for no limit
+     *
+     * @param millis budget from now, in milliseconds, 0 for no limit
+     * @return Deadline
+     */
+
+    public static Deadline after(long millis) {
+        return millis > 0 ? new Deadline(millis) : null;
+    }
+
+    /**
+     * Returns the time left
+     *
+     * @return milliseconds, 0 once expired
+     */
+
+    public long remaining() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    /**
+     * Returns true once the budget is used up
+     *
+     * @return boolean
+     */
+
+    public boolean isExpired() {
+        return System.nanoTime() - expiresAt >= 0;
+    }
+
+    /**
+     * Returns the timeout of a step: the time left, capped. Rounded up, so
+     * a step timing out on it finds the deadline expired
+     *
+     * @param maxMillis the timeout of the step without deadline
+     * @return milliseconds, at least 1 as 0 means no timeout for the sockets
+     */
+
+    public int timeout(int maxMillis) {
+        long left = expiresAt - System.nanoTime();
+        long millis = left > 0 ? (left + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+        return (int)Math.max(1, Math.min(millis, maxMillis));
+    }
+}
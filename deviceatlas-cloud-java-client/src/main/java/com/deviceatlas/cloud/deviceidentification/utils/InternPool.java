@@ -0,0 +1,137 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+/**
+ * Bounded pool of canonical strings, so the property names and the short,
+ * frequently repeated property values ("Samsung", "Android"...) are held
+ * once in memory whatever the number of cached profiles.
+ *
+ * The strings are hashed into a fixed size table, one string per slot, a
+ * new string replacing the one in its slot. The rare values are thus
+ * evicted by the other strings while the frequent ones keep coming back,
+ * the pool never fills up with high cardinality values. The table is read
+ * and written without locking: a slot may lose a race, the string is then
+ * only returned as is.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class InternPool {
+    private static final int            DEFAULT_MAX_ENTRIES = 65536;
+    private static final int            DEFAULT_MAX_LENGTH  = 64;
+    private static final InternPool     DEFAULT_POOL        = new InternPool(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LENGTH);
+    private final String[]              table;
+    private final int                   mask;
+    private final int                   maxLength;
+
+    /**
+     * Creates a pool
+     *
+     * @param maxEntries maximum number of pooled strings, rounded up to a power of two
+     * @param maxLength longer strings are not pooled, they are rarely repeated
+     */
+
+    public InternPool(int maxEntries, int maxLength) {
+        int capacity = 1;
+        while (capacity < maxEntries && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Returns the pool shared by the parser and the properties
+     *
+     * @return InternPool
+     */
+
+    public static InternPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * Returns the canonical instance of a string
+     *
+     * @param str
+     * @return String
+     */
+
+    public String intern(String str) {
+        if (str == null || str.length() > maxLength) {
+            return str;
+        }
+
+        int h = str.hashCode();
+        // spreads the high bits, the table is indexed by the low ones
+        int slot = (h ^ (h >>> 16)) & mask;
+        String canonical = table[slot];
+        if (canonical != null && canonical.equals(str)) {
+            return canonical;
+        }
+
+        table[slot] = str;
+        return str;
+    }
+
+    /**
+     * Returns the canonical instance of a property value: pooled strings,
+     * shared Boolean and cached small Integer instances
+     *
+     * @param value
+     * @return Object
+     */
+
+    public Object canonical(Object value) {
+        if (value instanceof String) {
+            return intern((String)value);
+        } else if (value instanceof Boolean) {
+            return Boolean.valueOf((Boolean)value);
+        } else if (value instanceof Integer) {
+            return Integer.valueOf((Integer)value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the number of pooled strings
+     *
+     * @return int
+     */
+
+    public int size() {
+        int size = 0;
+        for (String str : table) {
+            if (str != null) {
+                size++;
+            }
+        }
+
+        return size;
+    }
+}
@@ -32,11 +32,10 @@ import java.net.Proxy;
 import java.net.URL;
 
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.IOException;
 
-import java.util.zip.GZIPInputStream;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -45,12 +44,28 @@ import org.slf4j.LoggerFactory;
 
 public class NetworkUtils {
     private   Proxy proxy;
+    private volatile HttpURLConnection connection;
+    private volatile boolean           disconnected = false;
     private static final Logger LOGGER = LoggerFactory.getLogger(NetworkUtils.class);
+    private static final Charset UTF8  = Charset.forName("UTF-8");
 
     public NetworkUtils(Proxy proxy) {
         this.proxy = proxy;
     }
 
+    /**
+     * Aborts the connection, from any thread, so a call which is no longer
+     * needed does not wait for its response
+     */
+
+    public void disconnect() {
+        disconnected = true;
+        HttpURLConnection conn = connection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
     public StringBuilder setConnectionResponse(BufferedReader br, StringBuilder data) throws IOException {
         String line;
         while ((line = br.readLine()) != null) {
@@ -80,6 +95,25 @@ public class NetworkUtils {
         }
     }
 
+    /**
+     * Set the returns data after getting the connection response, the body
+     * of a successful response is kept as bytes
+     *
+     * @param connectionRet
+     * @param ok
+     * @param body
+     */
+
+    public void setConnectionRet(Map<String, Object> connectionRet, boolean ok, byte[] body) {
+        if (!ok) {
+            connectionRet.put(ClientConstants.CLOUD_SERVICE_MESSAGE.toString(), body != null ? new String(body, UTF8) : "");
+        } else if (body == null || body.length == 0) {
+            connectionRet.put(ClientConstants.CLOUD_SERVICE_MESSAGE.toString(), "Returned empty!");
+        } else {
+            connectionRet.put(ClientConstants.CLOUD_SERVICE_BODY.toString(), body);
+        }
+    }
+
     /**
      * Gets the connection response and set the data accordingly
      *
@@ -89,35 +123,29 @@ public class NetworkUtils {
 
     public void setConnectionData(HttpURLConnection conn, Map<String, Object> connectionRet) {
         final String connectCloudError      = "connect cloud";
-        BufferedReader br                   = null;
+        InputStream    inputStream          = null;
         int            status               = 0;
-        // get response
-        StringBuilder data                  = new StringBuilder();
         try {
             status = conn.getResponseCode();
             connectionRet.put(ClientConstants.CLOUD_SERVICE_STATUS.toString(), status);
 
             boolean ok = status / 100 == 2;
-            InputStream inputStream = ok? conn.getInputStream(): conn.getErrorStream();
+            inputStream = ok? conn.getInputStream(): conn.getErrorStream();
 
+            byte[] body = null;
             if (inputStream != null) {
-                if ("gzip".equals(conn.getContentEncoding())) {
-                    inputStream = new GZIPInputStream(inputStream);
-                }
                 // read the body...
-                br = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-                setConnectionResponse(br, data);
-                br.close();
+                body = ResponseReader.read(inputStream, "gzip".equals(conn.getContentEncoding()));
             }
 
-            setConnectionRet(connectionRet, inputStream, ok, data.toString());
+            setConnectionRet(connectionRet, ok, body);
         } catch (IOException ex) {
             LOGGER.error(connectCloudError, ex);
 
         } finally {
-            if (br != null) {
+            if (inputStream != null) {
                 try {
-                    br.close();
+                    inputStream.close();
                 } catch (IOException ex) {
                     LOGGER.error(connectCloudError, ex);
                 }
@@ -130,11 +158,25 @@ public class NetworkUtils {
      *
      * @param url
      * @param headers
-     * @param timeout
+     * @param timeout connect and read timeout, in seconds
      * @return Map
      */
 
     public Map<String, Object> setConnection(String url, Map<String, String> headers, int timeout) {
+        return setConnection(url, headers, timeout * 1000, timeout * 1000);
+    }
+
+    /**
+     * Reaches the cloud service and returns the data accordingly
+     *
+     * @param url
+     * @param headers
+     * @param connectTimeout milliseconds
+     * @param readTimeout milliseconds
+     * @return Map
+     */
+
+    public Map<String, Object> setConnection(String url, Map<String, String> headers, int connectTimeout, int readTimeout) {
         final String connectCloudError      = "connect cloud";
         Map<String, Object> connectionRet   = new HashMap<String, Object>();
         connectionRet.put(ClientConstants.CLOUD_SERVICE_STATUS.toString(), 0);
@@ -143,7 +185,12 @@ public class NetworkUtils {
         try {
             URL service = new URL(url);
             HttpURLConnection conn = proxy != null ? (HttpURLConnection) service.openConnection(proxy) : (HttpURLConnection) service.openConnection();
-            conn.setConnectTimeout(timeout * 1000);
+            connection = conn;
+            if (disconnected) {
+                return connectionRet;
+            }
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
             // add headers
             conn.addRequestProperty("Accept-Encoding", "gzip");
             conn.addRequestProperty("Accept",          "application/json");
@@ -0,0 +1,346 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content addressed store of device profiles.
+ *
+ * Many user-agents resolve to exactly the same properties. The store hands
+ * out one shared, unmodifiable instance per distinct profile, so the cached
+ * entries of all these user-agents reference the same map. A profile is
+ * dropped from the store once no cache entry references it anymore.
+ *
+ * The store is lock free: the profile is hashed and copied by the calling
+ * thread, the lookups only compare the profiles with the same hash.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class ProfileStore {
+    private static final ProfileStore   DEFAULT_STORE   = new ProfileStore();
+    private static final Class<?>       SHARED_CLASS    = Collections.unmodifiableMap(new HashMap<String, Object>()).getClass();
+    // the profiles are weakly referenced by their keys, the keys are both the map keys and values
+    private final ConcurrentMap<Object, ProfileKey> profiles = new ConcurrentHashMap<Object, ProfileKey>();
+    private final ReferenceQueue<Map<String, Object>> released = new ReferenceQueue<Map<String, Object>>();
+    private final AtomicLong            hits            = new AtomicLong();
+    private final AtomicLong            misses          = new AtomicLong();
+
+    /**
+     * Returns the store used by the device identification
+     *
+     * @return ProfileStore
+     */
+
+    public static ProfileStore getDefault() {
+        return DEFAULT_STORE;
+    }
+
+    /**
+     * Checks if an object is a profile handed out by a store
+     *
+     * @param entry
+     * @return boolean
+     */
+
+    public static boolean isShared(Object entry) {
+        return entry != null && entry.getClass() == SHARED_CLASS;
+    }
+
+    /**
+     * Returns a mutable view of a shared profile, the profile is only
+     * copied by the first change. The key, value and entry views are
+     * read-only until then
+     *
+     * @param profile
+     * @return Map
+     */
+
+    public static Map<String, Object> mutableView(Map<String, Object> profile) {
+        if (profile == null) {
+            return null;
+        }
+
+        return new ProfileView(profile);
+    }
+
+    /**
+     * Returns the shared instance of a profile, adding it when no identical
+     * profile is in the store yet
+     *
+     * @param profile
+     * @return unmodifiable Map
+     */
+
+    public Map<String, Object> canonical(Map<String, Object> profile) {
+        if (profile == null) {
+            return null;
+        }
+
+        expunge();
+        int hash = profile.hashCode();
+        ProfileKey key = profiles.get(new LookupKey(profile, hash));
+        Map<String, Object> shared = key != null ? key.get() : null;
+        if (shared != null) {
+            hits.incrementAndGet();
+            return shared;
+        }
+
+        shared = Collections.unmodifiableMap(new HashMap<String, Object>(profile));
+        ProfileKey newKey = new ProfileKey(shared, hash, released);
+        while (true) {
+            key = profiles.putIfAbsent(newKey, newKey);
+            if (key == null) {
+                misses.incrementAndGet();
+                return shared;
+            }
+
+            Map<String, Object> existing = key.get();
+            if (existing != null) {
+                hits.incrementAndGet();
+                return existing;
+            }
+
+            // released in the meantime, not expunged yet
+            profiles.remove(key, key);
+        }
+    }
+
+    /**
+     * Removes the keys of the released profiles
+     */
+
+    private void expunge() {
+        Reference<? extends Map<String, Object>> ref;
+        while ((ref = released.poll()) != null) {
+            profiles.remove(ref, ref);
+        }
+    }
+
+    /**
+     * Returns the number of distinct profiles in the store
+     *
+     * @return int
+     */
+
+    public int size() {
+        expunge();
+        return profiles.size();
+    }
+
+    /**
+     * Returns the number of profiles which were already in the store
+     *
+     * @return long
+     */
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of profiles added to the store
+     *
+     * @return long
+     */
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Weak key of a stored profile, equal to the keys of identical profiles
+     */
+    private static final class ProfileKey extends WeakReference<Map<String, Object>> {
+        private final int hash;
+
+        ProfileKey(Map<String, Object> profile, int hash, ReferenceQueue<Map<String, Object>> queue) {
+            super(profile, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+
+            Map<String, Object> profile = get();
+            if (profile == null) {
+                // released, only equal to itself so it can be removed
+                return false;
+            }
+
+            if (o instanceof ProfileKey) {
+                return ((ProfileKey)o).hash == hash && profile.equals(((ProfileKey)o).get());
+            } else if (o instanceof LookupKey) {
+                return ((LookupKey)o).hash == hash && profile.equals(((LookupKey)o).profile);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Strong key of a looked up profile
+     */
+    private static final class LookupKey {
+        private final Map<String, Object> profile;
+        private final int                 hash;
+
+        LookupKey(Map<String, Object> profile, int hash) {
+            this.profile = profile;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ProfileKey) {
+                return o.equals(this);
+            }
+
+            return o instanceof LookupKey && ((LookupKey)o).hash == hash && profile.equals(((LookupKey)o).profile);
+        }
+    }
+
+    /**
+     * Copy on write view of a shared profile
+     */
+    private static final class ProfileView extends AbstractMap<String, Object> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Map<String, Object> profile;
+        private boolean             copied;
+
+        ProfileView(Map<String, Object> profile) {
+            this.profile = profile;
+        }
+
+        private Map<String, Object> writable() {
+            if (!copied) {
+                profile = new HashMap<String, Object>(profile);
+                copied = true;
+            }
+
+            return profile;
+        }
+
+        @Override
+        public int size() {
+            return profile.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return profile.isEmpty();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return profile.containsKey(key);
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            return profile.containsValue(value);
+        }
+
+        @Override
+        public Object get(Object key) {
+            return profile.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return writable().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return writable().remove(key);
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Object> m) {
+            writable().putAll(m);
+        }
+
+        @Override
+        public void clear() {
+            writable().clear();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return profile.keySet();
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return profile.values();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return profile.entrySet();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this || profile.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return profile.hashCode();
+        }
+
+        private Object writeReplace() {
+            return new HashMap<String, Object>(profile);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the response bodies into bytes with pooled buffers. Gzip bodies are
+ * inflated with pooled inflaters instead of a new GZIPInputStream per
+ * response, the gzip header and trailer are checked here.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public final class ResponseReader {
+    private static final int        BUFFER_SIZE     = 8192;
+    private static final int        MAX_BUFFER_SIZE = 256 * 1024;
+    private static final int        MAX_BUFFERS     = 64;
+    private static final int        MAX_INFLATERS   = 16;
+    private static final BufferPool BUFFERS         = new BufferPool(BUFFER_SIZE, MAX_BUFFER_SIZE, MAX_BUFFERS);
+    private static final Queue<Inflater> INFLATERS  = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger   INFLATERS_POOLED = new AtomicInteger();
+
+    /* gzip format, RFC 1952 */
+    private static final int        GZIP_MAGIC      = 0x8b1f;
+    private static final int        GZIP_HEADER     = 10;
+    private static final int        GZIP_TRAILER    = 8;
+    private static final int        FHCRC           = 2;
+    private static final int        FEXTRA          = 4;
+    private static final int        FNAME           = 8;
+    private static final int        FCOMMENT        = 16;
+
+    private ResponseReader() {
+    }
+
+    /**
+     * Reads a whole body, the stream is not closed
+     *
+     * @param inputStream
+     * @param gzip true if the body is gzip encoded
+     * @return byte[] the decoded body
+     * @throws IOException
+     */
+
+    public static byte[] read(InputStream inputStream, boolean gzip) throws IOException {
+        byte[] raw = BUFFERS.acquire();
+        try {
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(raw, length, raw.length - length)) != -1) {
+                length += read;
+                if (length == raw.length) {
+                    raw = BUFFERS.grow(raw);
+                }
+            }
+
+            return gzip ? inflate(raw, length) : Arrays.copyOf(raw, length);
+        } finally {
+            BUFFERS.release(raw);
+        }
+    }
+
+    /**
+     * Decodes a gzip member
+     *
+     * @param data
+     * @param length bytes of data to decode
+     * @return byte[]
+     * @throws IOException if the data is not valid gzip
+     */
+
+    public static byte[] inflate(byte[] data, int length) throws IOException {
+        int offset = skipHeader(data, length);
+        if (length - offset < GZIP_TRAILER) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+
+        Inflater inflater = acquireInflater();
+        byte[] out = BUFFERS.acquire();
+        try {
+            inflater.setInput(data, offset, length - offset);
+            int total = 0;
+            while (!inflater.finished()) {
+                if (total == out.length) {
+                    out = BUFFERS.grow(out);
+                }
+                int inflated = inflater.inflate(out, total, out.length - total);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                total += inflated;
+            }
+
+            int trailer = length - inflater.getRemaining();
+            if (length - trailer < GZIP_TRAILER) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out, 0, total);
+            if (readInt(data, trailer) != (int) crc.getValue() || readInt(data, trailer + 4) != total) {
+                throw new ZipException("Corrupt GZIP trailer");
+            }
+
+            return Arrays.copyOf(out, total);
+        } catch (DataFormatException ex) {
+            throw new ZipException(ex.getMessage());
+        } finally {
+            BUFFERS.release(out);
+            releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Returns the offset of the deflate data
+     */
+    private static int skipHeader(byte[] data, int length) throws IOException {
+        if (length < GZIP_HEADER || readShort(data, 0) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (data[2] != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+
+        int flags = data[3] & 0xff;
+        int offset = GZIP_HEADER;
+        if ((flags & FEXTRA) != 0) {
+            checkLength(offset + 2, length);
+            offset += 2 + readShort(data, offset);
+        }
+        if ((flags & FNAME) != 0) {
+            offset = skipString(data, offset, length);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            offset = skipString(data, offset, length);
+        }
+        if ((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        checkLength(offset, length);
+
+        return offset;
+    }
+
+    private static int skipString(byte[] data, int offset, int length) throws IOException {
+        int end = offset;
+        while (end < length && data[end] != 0) {
+            end++;
+        }
+        checkLength(end + 1, length);
+
+        return end + 1;
+    }
+
+    private static void checkLength(int offset, int length) throws IOException {
+        if (offset > length) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+    }
+
+    private static Inflater acquireInflater() {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater != null) {
+            INFLATERS_POOLED.decrementAndGet();
+            return inflater;
+        }
+
+        // raw deflate data, the gzip wrapping is handled above
+        return new Inflater(true);
+    }
+
+    private static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (INFLATERS_POOLED.incrementAndGet() > MAX_INFLATERS) {
+            INFLATERS_POOLED.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        INFLATERS.offer(inflater);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Afilias Technologies Ltd
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a 
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.deviceatlas.cloud.deviceidentification.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled by work rather than by time: each deposit adds a
+ * fraction of a token, so the acquisitions stay within that fraction of the
+ * deposits (a 0.1 ratio allows 10% extra calls), plus a small burst.
+ *
+ * @author Afilias Technologies Ltd
+ */
+public class TokenBucket {
+    private static final long   UNIT        = 1000;
+    private final AtomicLong    tokens;
+    private final long          maxTokens;
+    private volatile long       deposit;
+
+    /**
+     * Creates a full bucket
+     *
+     * @param ratio tokens added by each deposit
+     * @param maxTokens burst size
+     */
+
+    public TokenBucket(double ratio, int maxTokens) {
+        this.maxTokens = maxTokens * UNIT;
+        this.tokens = new AtomicLong(this.maxTokens);
+        setRatio(ratio);
+    }
+
+    /**
+     * Sets the tokens added by each deposit
+     *
+     * @param ratio
+     */
+
+    public void setRatio(double ratio) {
+        this.deposit = Math.max(0, Math.round(ratio * UNIT));
+    }
+
+    /**
+     * Returns the tokens added by each deposit
+     *
+     * @return double
+     */
+
+    public double getRatio() {
+        return deposit / (double)UNIT;
+    }
+
+    /**
+     * Adds the tokens of one unit of work
+     */
+
+    public void deposit() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maxTokens, current + deposit)));
+    }
+
+    /**
+     * Takes a token if one is available
+     *
+     * @return true if the token was taken
+     */
+
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < UNIT) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - UNIT));
+
+        return true;
+    }
+}
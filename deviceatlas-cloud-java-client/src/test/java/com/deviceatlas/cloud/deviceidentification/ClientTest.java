@@ -179,7 +179,7 @@ public class ClientTest {
     private static void checkSettings() throws Exception {
         client.setServerRankingLifetime(0);
         client.getCacheService().setServerCache(client.getEndPointService().getOriginalEndPoints(), false);
-        client.clearCache();
+        client.purgeCache();
         client.setUseCache(true);
         client.getDeviceIdentificatorService().setSendExtraHeaders(false);
         EndPoint [] cachedEndPoints = client.getCacheService().getCachedServerList(ClientConstants.CACHE_NAME_SERVERS_AUTO.toString());
@@ -884,6 +884,10 @@ public class ClientTest {
 
         // L = auto-rank done on endPoints A = auto-ranked cached list M = manual cached list D = default list
 
+        // the ranking is done in the background, the default list is used meanwhile
+        client.getEndPointService().getEndPoints();
+        assertTrue("ranking done", client.getEndPointService().awaitRanking(60000));
+
         // there is bad endpoints in the original list, after ranking it must be not be in the list
         assertTrue("bad end-points abolished", client.getEndPointService().getOriginalEndPoints().length > client.getEndPointService().getEndPoints().length);
 
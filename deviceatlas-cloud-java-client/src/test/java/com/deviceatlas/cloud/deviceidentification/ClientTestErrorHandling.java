@@ -29,9 +29,23 @@ import com.deviceatlas.cloud.deviceidentification.client.Client;
 import com.deviceatlas.cloud.deviceidentification.client.ClientException;
 import com.deviceatlas.cloud.deviceidentification.client.ClientConstants;
 import com.deviceatlas.cloud.deviceidentification.client.IncorrectPropertyTypeException;
+import com.deviceatlas.cloud.deviceidentification.client.Result;
 import com.deviceatlas.cloud.deviceidentification.parser.JsonParser;
 import com.deviceatlas.cloud.deviceidentification.endpoint.EndPoint;
+import com.deviceatlas.cloud.deviceidentification.peer.PeerFetcher;
+import com.deviceatlas.cloud.deviceidentification.peer.PeerService;
+import com.deviceatlas.cloud.deviceidentification.service.CacheService;
+import com.deviceatlas.cloud.deviceidentification.service.DeviceIdentificatorService;
+import com.deviceatlas.cloud.deviceidentification.service.EndPointService;
+import com.deviceatlas.cloud.deviceidentification.transport.CloudRequest;
+import com.deviceatlas.cloud.deviceidentification.transport.HttpUrlConnectionTransport;
+import com.deviceatlas.cloud.deviceidentification.transport.InMemoryTransport;
 import com.deviceatlas.cloud.deviceidentification.utils.NetworkUtils;
+import com.deviceatlas.cloud.deviceidentification.utils.ProfileStore;
+import com.deviceatlas.cloud.deviceidentification.utils.ResponseReader;
+import com.deviceatlas.cloud.deviceidentification.utils.StringUtils;
+import com.deviceatlas.cloud.deviceidentification.utils.CircuitBreaker;
+import com.deviceatlas.cloud.deviceidentification.utils.Deadline;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.AfterClass;
@@ -42,17 +56,51 @@ import org.junit.rules.ExpectedException;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.FileCacheProvider;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.EhCacheCacheProvider;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.MemcachedCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.SharedMemoryCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.RespCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.MockRespServer;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.KeyCursor;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.EntryCodec;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.SimpleCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.NegativeLookupCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.GuardedCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.AdmissionCacheProvider;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.FrequencySketch;
+import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheProvider;
 import com.deviceatlas.cloud.deviceidentification.cacheprovider.CacheException;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.net.URL;
 import java.net.HttpURLConnection;
 
@@ -166,6 +214,74 @@ public class ClientTestErrorHandling {
         assertEquals("KEYS", 0, fp.getKeys().size());
         fp.shutdown();
 
+        FileCacheProvider cp = new FileCacheProvider();
+        cp.setDiskCap(0, 10);
+        for (int i = 0; i < 50; i++) {
+            cp.set(StringUtils.md5("cap" + i), "value");
+        }
+        for (int i = 0; i < 100 && (cp.getEvictions() == 0 || cp.getDiskEntries() > 10); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("EVICTIONS", cp.getEvictions() > 0);
+        assertTrue("DISK_CAP", cp.getDiskEntries() <= 10);
+        cp.clear();
+        cp.shutdown();
+
+        // write-behind: readable before it reaches the disk, then written on shutdown
+        FileCacheProvider bp = new FileCacheProvider();
+        bp.setWriteBehind(true, 1);
+        String[] keys = {StringUtils.md5("queued1"), StringUtils.md5("queued2"), StringUtils.md5("queued3")};
+        bp.getDirectoryLock().lock();
+        try {
+            // the writer thread cannot write while the directories are locked, the queue fills up
+            for (String key : keys) {
+                bp.set(key, "value-" + key);
+            }
+            assertFalse("WRITE_BEHIND", new File(bp.getCachePath(keys[0]).toString()).exists());
+            assertTrue("FULL_QUEUE", bp.getFullQueueWrites() > 0);
+            for (String key : keys) {
+                assertEquals("QUEUED_READ", "value-" + key, bp.get(key));
+            }
+        } finally {
+            bp.getDirectoryLock().unlock();
+        }
+        bp.shutdown();
+        FileCacheProvider lp = new FileCacheProvider();
+        for (String key : keys) {
+            assertTrue("WRITTEN", new File(bp.getCachePath(key).toString()).exists());
+            assertEquals("WRITTEN_READ", "value-" + key, lp.get(key));
+            lp.remove(key);
+        }
+        lp.shutdown();
+
+        // two processes sharing the directory see each other's rewrites
+        FileCacheProvider first = new FileCacheProvider();
+        FileCacheProvider second = new FileCacheProvider();
+        first.setWriteBehind(false, 1);
+        String sharedKey = StringUtils.md5("shared");
+        first.set(sharedKey, "value1");
+        assertEquals("SIBLING_READ", "value1", second.get(sharedKey));
+        Thread.sleep(20);
+        first.set(sharedKey, "value2");
+        assertEquals("SIBLING_REWRITE", "value2", second.get(sharedKey));
+        assertEquals("OWN_WRITE", "value2", first.get(sharedKey));
+        first.remove(sharedKey);
+        assertNull("SIBLING_REMOVE", second.get(sharedKey));
+        first.shutdown();
+        second.shutdown();
+
+        // the ranking provider writes at the root of the data cache directory, out of the evicted tree
+        FileCacheProvider rankingProvider = new FileCacheProvider(false);
+        String counterKey = "deviceatlas_cache_generation.test";
+        rankingProvider.set(counterKey, 1L);
+        assertTrue("SYNC_WRITE", new File(rankingProvider.getCachePath(counterKey).toString()).exists());
+        assertEquals("ROOT", rankingProvider.getCachePath(ClientConstants.CACHE_NAME_SERVERS_AUTO.toString()).getParent(),
+            rankingProvider.getCachePath(counterKey).getParent());
+        assertEquals("NO_EVICTOR", 0, rankingProvider.getDiskEntries());
+        assertEquals("COUNTER", Long.valueOf(1L), rankingProvider.get(counterKey));
+        rankingProvider.remove(counterKey);
+        rankingProvider.shutdown();
+
         EhCacheCacheProvider eh = new EhCacheCacheProvider();
         eh.setExpiry(10);
         eh.set("test", "value");
@@ -185,6 +301,238 @@ public class ClientTestErrorHandling {
         mp.clear();
         assertNotNull("KEYS", mp.getKeys());
         mp.shutdown();
+
+        SharedMemoryCacheProvider sp = new SharedMemoryCacheProvider();
+        SharedMemoryCacheProvider sp2 = new SharedMemoryCacheProvider();
+        sp.setExpiry(10);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("vendor", "Apple");
+        properties.put("isMobilePhone", true);
+        properties.put("yearReleased", 2015);
+        sp.set("test", properties);
+        assertEquals("TEST", properties, sp2.get("test"));
+        KeyCursor cursor = sp2.scanKeys("te", 0, 10);
+        assertTrue("SCAN", cursor.hasNext());
+        assertTrue("SCAN", cursor.next().contains("test"));
+        cursor.close();
+        assertNull("TEST", sp.get("test2"));
+        sp2.remove("test");
+        assertNull("TEST", sp.get("test"));
+        sp.clear();
+        assertEquals("KEYS", 0, sp.getKeys().size());
+        sp.shutdown();
+        sp2.shutdown();
+
+        MockRespServer rs = new MockRespServer();
+        RespCacheProvider rp = new RespCacheProvider("127.0.0.1", rs.getPort(), 10);
+        rp.set("test", properties);
+        assertEquals("TEST", properties, rp.get("test"));
+        assertEquals("EXPIRY", 10, rs.getExpiry("deviceatlas:test"));
+        assertNull("TEST", rp.get("test2"));
+        Map<String, Object> entries = new HashMap<String, Object>();
+        entries.put("test2", "value");
+        entries.put("other", "value");
+        rp.setAll(entries);
+        assertEquals("MGET", 3, rp.getAll(Arrays.asList("test", "test2", "other", "test3")).size());
+        KeyCursor scan = rp.scanKeys("test", 0, 1);
+        int scanned = 0;
+        while (scan.hasNext()) {
+            scanned += scan.next().size();
+        }
+        scan.close();
+        assertEquals("SCAN", 2, scanned);
+        assertEquals("KEYS", 3, rp.getKeys().size());
+        rp.remove("test");
+        assertNull("TEST", rp.get("test"));
+        // another application sharing the database keeps its keys
+        RespCacheProvider foreign = new RespCacheProvider("127.0.0.1", rs.getPort(), 10, "foreign:");
+        foreign.set("test", "value");
+        assertNull("PREFIXED", rp.get("test"));
+        rp.clear();
+        assertEquals("KEYS", 0, rp.getKeys().size());
+        assertEquals("FOREIGN_KEY", "value", foreign.get("test"));
+        assertEquals("FOREIGN_KEYS", 1, foreign.getKeys().size());
+        foreign.shutdown();
+        rp.shutdown();
+        rs.shutdown();
+
+        EntryCodec codec = new EntryCodec(0, EntryCodec.getDefaultDictionary());
+        assertEquals("CODEC", properties, codec.decode(codec.encode(properties)));
+        assertEquals("CODEC", properties, new EntryCodec().decode(new EntryCodec(0, null).encode(properties)));
+        assertEquals("CODEC_MAP", properties, codec.decodeMap(codec.encode(properties)));
+        Map<String, Object> ordered = new LinkedHashMap<String, Object>(properties);
+        assertEquals("CODEC_TYPE", LinkedHashMap.class, codec.decode(codec.encode(ordered)).getClass());
+        for (byte[] serialized : new byte[][] {codec.encode(new ArrayList<String>()), serialize(properties)}) {
+            try {
+                codec.decodeMap(serialized);
+                fail("Serialised entry decoded as a map");
+            } catch (CacheException ex) {
+                assertEquals("REFUSED", "Serialised cache entry refused", ex.getMessage());
+            }
+        }
+
+        NegativeLookupCacheProvider np = new NegativeLookupCacheProvider(new SimpleCacheProvider());
+        assertNull("TEST", np.get("test"));
+        assertEquals("SKIPPED", 1, np.getSkippedLookups());
+        np.set("test", "value");
+        assertEquals("TEST", "value", np.get("test"));
+        assertEquals("REMOTE", 1, np.getRemoteLookups());
+        np.clear();
+        assertNull("TEST", np.get("test"));
+        assertEquals("SKIPPED", 2, np.getSkippedLookups());
+        np.shutdown();
+
+        CacheProvider slow = mock(CacheProvider.class);
+        when(slow.<Object>get(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(500);
+                return "remote";
+            }
+        });
+        GuardedCacheProvider guard = new GuardedCacheProvider(slow, new SimpleCacheProvider(), 20, new CircuitBreaker(2, 60000));
+        guard.set("test", "value");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("FALLBACK", "value", guard.get("test"));
+        }
+        assertEquals("TIMEOUTS", 2, guard.getTimeouts());
+        assertEquals("BYPASSED", 1, guard.getBypassed());
+        assertEquals("STATE", CircuitBreaker.State.OPEN, guard.getState());
+        guard.shutdown();
+
+        // a remote hit fills the local copy only when it holds none
+        CacheProvider remote = mock(CacheProvider.class);
+        when(remote.<Object>get(anyString())).thenReturn("remote");
+        SimpleCacheProvider local = new SimpleCacheProvider();
+        local.set("held", "local");
+        GuardedCacheProvider filled = new GuardedCacheProvider(remote, local);
+        assertEquals("REMOTE_HIT", "remote", filled.get("held"));
+        assertEquals("HELD", "local", local.get("held"));
+        assertEquals("REMOTE_HIT", "remote", filled.get("missing"));
+        assertEquals("FILLED", "remote", local.get("missing"));
+        filled.shutdown();
+
+        // an interrupted caller gives the half-open probe back
+        GuardedCacheProvider probe = new GuardedCacheProvider(slow, null, 20, new CircuitBreaker(1, 50, 1));
+        assertNull("TIMEOUT", probe.get("test"));
+        Thread.sleep(100);
+        Thread.currentThread().interrupt();
+        assertNull("INTERRUPTED", probe.get("test"));
+        assertTrue("INTERRUPT_KEPT", Thread.interrupted());
+        assertNull("PROBE", probe.get("test"));
+        assertEquals("PROBE_RELEASED", 2, probe.getTimeouts());
+        assertEquals("NOT_BYPASSED", 0, probe.getBypassed());
+        probe.shutdown();
+
+        SimpleCacheProvider wp = new SimpleCacheProvider(4096);
+        for (int i = 0; i < 100; i++) {
+            wp.set("test" + i, properties);
+        }
+        assertTrue("BUDGET", wp.getWeightedSize() <= 4096);
+        assertEquals("LARGEST", 1, wp.getLargestEntries(1).size());
+        assertEquals("TEST", properties, wp.get("test99"));
+        wp.clear();
+        assertEquals("BUDGET", 0, wp.getWeightedSize());
+
+        // the least recently used entry is evicted, not the eldest
+        wp.set("lru1", properties);
+        long weight = wp.getWeightedSize();
+        SimpleCacheProvider lru = new SimpleCacheProvider(weight * 2 + weight / 2);
+        lru.set("lru1", properties);
+        lru.set("lru2", properties);
+        assertEquals("LRU_READ", properties, lru.get("lru1"));
+        lru.set("lru3", properties);
+        assertEquals("LRU_KEPT", properties, lru.get("lru1"));
+        assertNull("LRU_EVICTED", lru.get("lru2"));
+        wp.clear();
+
+        SimpleCacheProvider gp = new SimpleCacheProvider();
+        gp.set("test", "value");
+        CacheService cs = new CacheService(gp);
+        String key = cs.getNamespacedKey("test");
+        gp.set(key, "value");
+        cs.clearCache();
+        assertNotEquals("GENERATION", key, cs.getNamespacedKey("test"));
+        assertEquals("FOREIGN_KEY", "value", gp.get("test"));
+        cs.shutdown();
+    }
+
+    /**
+     * Test the cache generation survives the loss of its shared copy
+     */
+    @Test
+    public void testCacheGeneration() throws Exception {
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        cacheService.setGenerationRefreshInterval(0);
+        CacheProvider failing = mock(CacheProvider.class);
+        when(failing.get(anyString())).thenThrow(new CacheException("unavailable"));
+        CacheService failingService = new CacheService(failing);
+
+        try {
+            long generation = cacheService.getGeneration();
+            // evicted from the device data cache
+            cacheService.getCacheProvider().clear();
+            assertEquals("EVICTED", generation, cacheService.getGeneration());
+            // the copy kept on the host is read when the shared one cannot be
+            assertEquals("READ_FAILURE", generation, failingService.getGeneration());
+
+            cacheService.clearCache();
+            assertTrue("CLEARED", cacheService.getGeneration() > generation);
+            assertEquals("SHARED", cacheService.getGeneration(), new CacheService(cacheService.getCacheProvider()).getGeneration());
+        } finally {
+            cacheService.shutdown();
+            failingService.shutdown();
+        }
+    }
+
+    /**
+     * Tests the frequency sketch and the admission filter
+     */
+    @Test
+    public void testAdmission() throws Exception {
+        // same String.hashCode, counted apart
+        assertEquals("HASH_CODE", "Aa".hashCode(), "BB".hashCode());
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 3; i++) {
+            sketch.increment("Aa");
+        }
+        assertEquals("FREQUENCY", 3, sketch.frequency("Aa"));
+        assertEquals("NO_COLLISION", 0, sketch.frequency("BB"));
+
+        // the window is halved once per sample, whatever the number of threads
+        final FrequencySketch shared = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            shared.increment("hot");
+        }
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // with the 15 above, the 160 additions of a 16 keys sketch sample
+                    for (int i = 0; i < 145 / 8 + (thread < 145 % 8 ? 1 : 0); i++) {
+                        shared.increment("cold" + thread + "." + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("HALVED_ONCE", shared.frequency("hot") >= 7);
+
+        AdmissionCacheProvider provider = new AdmissionCacheProvider(new SimpleCacheProvider(), 2, 16);
+        assertNull("MISS", provider.get("key"));
+        provider.set("key", "value");
+        assertNull("REJECTED", provider.get("key"));
+        provider.set("key", "value");
+        assertEquals("ADMITTED", "value", provider.get("key"));
+        assertEquals("ADMITTED_COUNT", 1, provider.getAdmittedCount());
+        assertEquals("REJECTED_COUNT", 1, provider.getRejectedCount());
+        assertEquals("RATIO", 0.5d, provider.getAdmissionRatio(), 0.0001d);
+        provider.shutdown();
     }
 
     /**
@@ -198,6 +546,20 @@ public class ClientTestErrorHandling {
         assertNotNull(ps);
         ps = new JsonParser(badJson);
         assertNotNull(ps);
+
+        Map<String, Object> first = new JsonParser("{\"vendor\":\"Samsung\"}").getHashMap();
+        Map<String, Object> second = new JsonParser("{\"vendor\":\"Samsung\"}").getHashMap();
+        assertSame("INTERN", first.get("vendor"), second.get("vendor"));
+        assertSame("PROFILE", ProfileStore.getDefault().canonical(first), ProfileStore.getDefault().canonical(second));
+
+        // the callers change their view only
+        Map<String, Object> shared = ProfileStore.getDefault().canonical(first);
+        Map<String, Object> view = ProfileStore.mutableView(shared);
+        assertEquals("VIEW", shared, view);
+        view.put("vendor", "Apple");
+        assertEquals("VIEW_CHANGED", "Apple", view.get("vendor"));
+        assertEquals("SHARED_UNCHANGED", "Samsung", shared.get("vendor"));
+        assertSame("PROFILE", shared, ProfileStore.getDefault().canonical(second));
     }
 
     /**
@@ -212,12 +574,519 @@ public class ClientTestErrorHandling {
         nw.setConnectionData(url, connectionRet);
     }
 
+    /**
+     * Test the response bodies are read as bytes, gzip encoded or not
+     */
+    @Test
+    public void testResponseReader() throws Exception {
+        StringBuilder json = new StringBuilder("{\n\"properties\":{");
+        for (int i = 0; i < 2000; i++) {
+            json.append("\"p").append(i).append("\":\"\u00e9t\u00e9\",\n");
+        }
+        json.append("\"vendor\":\"Samsung\"}}\n");
+        byte[] body = json.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(body);
+        gzip.close();
+        byte[] compressed = gzipped.toByteArray();
+
+        for (int i = 0; i < 3; i++) {
+            // the newlines are kept and the pooled buffers are reused
+            assertArrayEquals("PLAIN", body, ResponseReader.read(new ByteArrayInputStream(body), false));
+            assertArrayEquals("GZIP", body, ResponseReader.read(new ByteArrayInputStream(compressed), true));
+        }
+
+        compressed[compressed.length - 5] ^= 1;
+        try {
+            ResponseReader.read(new ByteArrayInputStream(compressed), true);
+            fail("CORRUPT");
+        } catch (ZipException ex) {
+            assertEquals("CORRUPT", "Corrupt GZIP trailer", ex.getMessage());
+        }
+        try {
+            ResponseReader.read(new ByteArrayInputStream(body), true);
+            fail("NOT_GZIP");
+        } catch (ZipException ex) {
+            assertEquals("NOT_GZIP", "Not in GZIP format", ex.getMessage());
+        }
+    }
+
     @Test
     public void testException() throws Exception {
         IncorrectPropertyTypeException ex = new IncorrectPropertyTypeException("test");
         assertEquals("CAUSE", "test", ex.getMessage());
     }
 
+    /**
+     * Tests the peers on the loopback, the owner fetches for the others
+     */
+    @Test
+    public void testPeers() throws Exception {
+        List<String> peers = Arrays.asList("127.0.0.1:" + freePort(), "127.0.0.1:" + freePort());
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("vendor", "Samsung");
+        PeerFetcher fetcherA = mock(PeerFetcher.class);
+        PeerFetcher fetcherB = mock(PeerFetcher.class);
+        when(fetcherA.fetch(anyString(), anyString(), anyMap(), any(Deadline.class))).thenReturn(data);
+        when(fetcherB.fetch(anyString(), anyString(), anyMap(), any(Deadline.class))).thenReturn(data);
+        PeerService nodeA = new PeerService(peers.get(0), peers, fetcherA);
+        PeerService nodeB = new PeerService(peers.get(1), peers, fetcherB);
+        nodeA.start();
+        nodeB.start();
+
+        try {
+            String key = "key";
+            for (int i = 0; nodeA.isOwner(key); i++) {
+                key = "key" + i;
+            }
+            assertEquals("OWNER", nodeA.getOwner(key), nodeB.getOwner(key));
+            assertTrue("OWNER", nodeB.isOwner(key));
+
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("accept", "text/html");
+            assertEquals("PEER_DATA", data, nodeA.fetch(key, "ua", headers));
+            verify(fetcherB, times(1)).fetch(eq(key), eq("ua"), eq(headers), any(Deadline.class));
+            verify(fetcherA, never()).fetch(anyString(), anyString(), anyMap(), any(Deadline.class));
+            assertEquals("REMOTE", 1, nodeA.getRemoteFetches());
+
+            // a client which is not a node of the ring is closed unanswered
+            Socket stranger = new Socket();
+            try {
+                stranger.bind(new InetSocketAddress("127.0.0.2", 0));
+                stranger.connect(new InetSocketAddress("127.0.0.1", Integer.parseInt(peers.get(1).substring(peers.get(1).indexOf(':') + 1))));
+                stranger.setSoTimeout(2000);
+                assertEquals("REFUSED", -1, stranger.getInputStream().read());
+            } finally {
+                stranger.close();
+            }
+            assertEquals("REJECTED", 1, nodeB.getRejectedConnections());
+            assertEquals("SERVED", 1, nodeB.getServedRequests());
+
+            // the owner is given the time left, and the wait is bounded by it
+            final Map<String, Object> ownerData = data;
+            final AtomicLong ownerDelay = new AtomicLong(2000);
+            final AtomicInteger ownerDeadlines = new AtomicInteger();
+            when(fetcherB.fetch(anyString(), anyString(), anyMap(), any(Deadline.class))).thenAnswer(new Answer<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                    if (invocation.getArguments()[3] != null) {
+                        ownerDeadlines.incrementAndGet();
+                    }
+                    Thread.sleep(ownerDelay.get());
+                    return ownerData;
+                }
+            });
+            long start = System.currentTimeMillis();
+            assertNull("TIMEOUT", nodeA.fetch(key, "ua", headers, Deadline.after(300)));
+            assertTrue("DEADLINE", System.currentTimeMillis() - start < 1000);
+            assertEquals("OWNER_DEADLINE", 1, ownerDeadlines.get());
+            assertEquals("NO_FALLBACK", 0, nodeA.getFallbacks());
+            assertFalse("NOT_DOWN", nodeA.isDown(nodeA.getOwner(key)));
+
+            // a slow owner is asked once, then skipped for a while. Another
+            // key of the same owner, the owner may still be fetching the first one
+            String slowKey = "slow";
+            for (int i = 0; nodeA.isOwner(slowKey) || slowKey.equals(key); i++) {
+                slowKey = "slow" + i;
+            }
+            ownerDelay.set(0);
+            assertEquals("PEER_DATA", data, nodeA.fetch(slowKey, "ua", headers));
+            ownerDelay.set(2000);
+            nodeA.setTimeout(600);
+            start = System.currentTimeMillis();
+            assertEquals("FALLBACK_DATA", data, nodeA.fetch(slowKey, "ua", headers));
+            assertTrue("NO_RETRY", System.currentTimeMillis() - start < 1100);
+            assertTrue("DOWN", nodeA.isDown(nodeA.getOwner(slowKey)));
+            verify(fetcherA, times(1)).fetch(eq(slowKey), eq("ua"), eq(headers), any(Deadline.class));
+            assertEquals("FALLBACK", 1, nodeA.getFallbacks());
+
+            nodeB.shutdown();
+            start = System.currentTimeMillis();
+            assertEquals("FALLBACK_DATA", data, nodeA.fetch(slowKey, "ua", headers));
+            assertTrue("SKIPPED", System.currentTimeMillis() - start < 500);
+            verify(fetcherA, times(2)).fetch(eq(slowKey), eq("ua"), eq(headers), any(Deadline.class));
+            assertEquals("FALLBACK", 2, nodeA.getFallbacks());
+        } finally {
+            nodeA.shutdown();
+            nodeB.shutdown();
+        }
+    }
+
+    /**
+     * Tests an owner without properties for the key gives no source and is not cached
+     */
+    @Test
+    public void testPeersEmpty() throws Exception {
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        EndPointService endPointService = new EndPointService(cacheService);
+        DeviceIdentificatorService service = new DeviceIdentificatorService(endPointService);
+        PeerService peers = mock(PeerService.class);
+        when(peers.fetch(anyString(), anyString(), anyMap(), any(Deadline.class))).thenReturn(null);
+
+        try {
+            for (boolean owner : new boolean[] {true, false}) {
+                when(peers.isOwner(anyString())).thenReturn(owner);
+                service.setPeerService(peers);
+                Map<String, Object> results = new HashMap<String, Object>();
+                service.setCacheData(results, "ua", null, new HashMap<String, String>());
+                assertEquals("NO_SOURCE", ClientConstants.SOURCE_NONE.toString(), results.get(ClientConstants.KEY_SOURCE.toString()));
+                assertNull("NO_PROPERTIES", results.get(ClientConstants.KEY_PROPERTIES.toString()));
+            }
+        } finally {
+            endPointService.shutdown();
+            cacheService.shutdown();
+        }
+    }
+
+    /**
+     * Test a slow end-point is hedged by the next one
+     */
+    @Test
+    public void testHedgedRequests() throws Exception {
+        HttpServer slow = startCloud(2000, 200, new AtomicInteger());
+        HttpServer fast = startCloud(0, 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        // keep the failover order out of the cache, the slow end-point stays first
+        cacheService.setServerRankingLifetime(0);
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        service.setAutoServerRanking(false);
+        service.setHedgedRequests(true);
+        service.setHedgeDelay(100);
+
+        try {
+            service.setEndPoints(new EndPoint[] {
+                new EndPoint("http://127.0.0.1", Integer.toString(slow.getAddress().getPort())),
+                new EndPoint("http://127.0.0.1", Integer.toString(fast.getAddress().getPort()))
+            });
+            long start = System.currentTimeMillis();
+            Map properties = service.getCloudService("ua", new HashMap<String, String>());
+            assertEquals("HEDGED_DATA", "Samsung", properties.get("vendor"));
+            assertTrue("HEDGED_TIME", System.currentTimeMillis() - start < 1500);
+            assertEquals("HEDGES", 1, service.getHedges());
+            assertTrue("WINNER", service.getCloudUrl().contains(":" + fast.getAddress().getPort()));
+
+            // no budget left once the burst is used
+            service.setHedgeBudget(0);
+            EndPoint slowEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(slow.getAddress().getPort()));
+            for (int i = 0; i < 10; i++) {
+                // the calls lost to a hedge are slow calls, keep the slow end-point breaker closed
+                service.getEndPointBreaker(slowEndPoint).reset();
+                service.getCloudService("ua", new HashMap<String, String>());
+            }
+            assertEquals("BUDGET", 10, service.getHedges());
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            slow.stop(0);
+            fast.stop(0);
+        }
+    }
+
+    /**
+     * Test a failing end-point is skipped once its circuit breaker is open
+     */
+    @Test
+    public void testEndPointBreaker() throws Exception {
+        AtomicInteger failingCalls = new AtomicInteger();
+        HttpServer failing = startCloud(0, 500, failingCalls);
+        HttpServer working = startCloud(0, 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        service.setAutoServerRanking(false);
+        EndPoint failingEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(failing.getAddress().getPort()));
+        service.setEndPoints(new EndPoint[] {
+            failingEndPoint,
+            new EndPoint("http://127.0.0.1", Integer.toString(working.getAddress().getPort()))
+        });
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                Map properties = service.getCloudService("ua", new HashMap<String, String>());
+                assertEquals("FAILOVER_DATA", "Samsung", properties.get("vendor"));
+            }
+            assertEquals("BREAKER_OPEN", CircuitBreaker.State.OPEN, service.getEndPointBreaker(failingEndPoint).getState());
+            assertEquals("FAILING_CALLS", 3, failingCalls.get());
+            assertEquals("SKIPS", 2, service.getBreakerSkips());
+            // the failover does not reorder the cached list
+            assertNull("NO_CACHED_LIST", cacheService.getCacheServersManualRanking());
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            failing.stop(0);
+            working.stop(0);
+        }
+    }
+
+    /**
+     * Test the ranked list follows the latency of the real requests
+     */
+    @Test
+    public void testEndPointScores() throws Exception {
+        AtomicLong firstDelay = new AtomicLong(0);
+        HttpServer first = startCloud(firstDelay, 200, new AtomicInteger());
+        HttpServer second = startCloud(new AtomicLong(100), 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        cacheService.setServerRankingLifetime(0);
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        EndPoint firstEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(first.getAddress().getPort()));
+        EndPoint secondEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(second.getAddress().getPort()));
+        service.setEndPoints(new EndPoint[] {secondEndPoint, firstEndPoint});
+
+        try {
+            EndPoint[] ranked = service.rankServers();
+            assertEquals("RANKED", firstEndPoint.port, ranked[0].port);
+            assertFalse("NO_REORDER", service.reorderEndPoints());
+
+            // the first end-point degrades, the requests keep going to it until the list is re-sorted
+            firstDelay.set(600);
+            boolean reordered = false;
+            for (int i = 0; i < 10 && !reordered; i++) {
+                service.getCloudService("ua", new HashMap<String, String>());
+                reordered = service.reorderEndPoints();
+            }
+            assertTrue("REORDERED", reordered);
+            assertEquals("REORDERED", secondEndPoint.port, service.getEndPoints()[0].port);
+            assertEquals("STATUS", "A", service.getRankingStatus());
+            assertTrue("SCORE", service.getEndPointStats(firstEndPoint).getLatency() > service.getEndPointStats(secondEndPoint).getLatency());
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            first.stop(0);
+            second.stop(0);
+        }
+    }
+
+    /**
+     * Test a detection returns no properties once its time budget is used up
+     */
+    @Test
+    public void testDetectionTimeout() throws Exception {
+        HttpServer first = startCloud(2000, 200, new AtomicInteger());
+        HttpServer second = startCloud(2000, 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        cacheService.setServerRankingLifetime(0);
+        cacheService.setUseCache(false);
+        EndPointService service = new EndPointService(cacheService);
+        service.setAutoServerRanking(false);
+        service.setEndPoints(new EndPoint[] {
+            new EndPoint("http://127.0.0.1", Integer.toString(first.getAddress().getPort())),
+            new EndPoint("http://127.0.0.1", Integer.toString(second.getAddress().getPort()))
+        });
+        DeviceIdentificatorService identificator = new DeviceIdentificatorService(service);
+        identificator.setLicenceKey("licence");
+
+        try {
+            long start = System.currentTimeMillis();
+            Result result = identificator.getResultByUserAgent("ua", 300);
+            assertTrue("DEADLINE", System.currentTimeMillis() - start < 1000);
+            assertEquals("SOURCE_NONE", ClientConstants.SOURCE_NONE.toString(), result.getSource());
+            assertNull("NO_PROPERTIES", result.getProperties());
+
+            identificator.setDetectionTimeout(3000);
+            result = identificator.getResultByUserAgent("ua");
+            assertEquals("SOURCE_CLOUD", ClientConstants.SOURCE_CLOUD.toString(), result.getSource());
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            first.stop(0);
+            second.stop(0);
+        }
+    }
+
+    /**
+     * Test the calls cut short by the budget of the caller do not count
+     * against the end-point
+     */
+    @Test
+    public void testDeadlineOutcome() throws Exception {
+        HttpServer server = startCloud(200, 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        service.setAutoServerRanking(false);
+        EndPoint endPoint = new EndPoint("http://127.0.0.1", Integer.toString(server.getAddress().getPort()));
+        service.setEndPoints(new EndPoint[] {endPoint});
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertNull("CUT_SHORT", service.getCloudService("ua", new HashMap<String, String>(), Deadline.after(100)));
+            }
+            assertEquals("BREAKER_CLOSED", CircuitBreaker.State.CLOSED, service.getEndPointBreaker(endPoint).getState());
+            assertEquals("NO_ERRORS", 0.0d, service.getEndPointStats(endPoint).getErrorRate(), 0.0d);
+
+            Map properties = service.getCloudService("ua", new HashMap<String, String>(), Deadline.after(2000));
+            assertEquals("DATA", "Samsung", properties.get("vendor"));
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            server.stop(0);
+        }
+    }
+
+    private static HttpServer startCloud(long delay, int status, AtomicInteger calls) throws Exception {
+        return startCloud(new AtomicLong(delay), status, calls);
+    }
+
+    private static HttpServer startCloud(final AtomicLong delay, final int status, final AtomicInteger calls) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(delay.get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "{\"properties\":{\"vendor\":\"Samsung\"}}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        return server;
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] serialize(Object entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(entry);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Test the cloud calls go through the transport that is set
+     */
+    @Test
+    public void testTransport() throws Exception {
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        service.setAutoServerRanking(false);
+        service.setCloudServiceTimeout(1);
+        EndPoint slowEndPoint = new EndPoint("http://slow.example", "80");
+        EndPoint failingEndPoint = new EndPoint("http://failing.example", "80");
+        EndPoint workingEndPoint = new EndPoint("http://working.example", "80");
+        service.setEndPoints(new EndPoint[] {slowEndPoint, failingEndPoint, workingEndPoint});
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.setDelay(slowEndPoint, 5000);
+        transport.setResponse(failingEndPoint, 500, "Internal Server Error");
+        transport.setResponse(workingEndPoint, 200, "{\"properties\":{\"vendor\":\"Samsung\"}}");
+        service.setTransport(transport);
+
+        try {
+            assertSame("TRANSPORT", transport, service.getTransport());
+            Map properties = service.getCloudService("ua", new HashMap<String, String>());
+            assertEquals("FAILOVER_DATA", "Samsung", properties.get("vendor"));
+
+            List<CloudRequest> requests = transport.getRequests();
+            assertEquals("REQUESTS", 3, requests.size());
+            assertTrue("URL", requests.get(2).getUrl().startsWith(workingEndPoint.getUrl()));
+            assertEquals("TIMEOUT", 1000, requests.get(0).getReadTimeout());
+
+            // back to the HttpURLConnection transport
+            service.setTransport(null);
+            assertTrue("DEFAULT", service.getTransport() instanceof HttpUrlConnectionTransport);
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+        }
+    }
+
+    /**
+     * Test connections are opened in advance to the top end-points
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        AtomicInteger firstCalls = new AtomicInteger();
+        HttpServer first = startCloud(300, 200, firstCalls);
+        HttpServer second = startCloud(0, 200, new AtomicInteger());
+        CacheService cacheService = new CacheService(new SimpleCacheProvider());
+        cacheService.setServerRankingLifetime(0);
+        EndPointService service = new EndPointService(cacheService);
+        service.setLicenceKey("licence");
+        service.setAutoServerRanking(false);
+        service.setWarmConnections(3);
+        service.setWarmEndPoints(1);
+        EndPoint firstEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(first.getAddress().getPort()));
+        EndPoint secondEndPoint = new EndPoint("http://127.0.0.1", Integer.toString(second.getAddress().getPort()));
+        service.setEndPoints(new EndPoint[] {firstEndPoint, secondEndPoint});
+
+        try {
+            service.warmUp();
+            assertTrue("WARMED", awaitWarmups(service, 3));
+            assertEquals("FIRST_CALLS", 3, firstCalls.get());
+            assertEquals("LOOKUPS", 1, service.getEndPointResolver().getLookups());
+            assertTrue("ADDRESS", service.getEndPointResolver().resolve(firstEndPoint)[0].isLoopbackAddress());
+            assertEquals("LOOKUPS", 2, service.getEndPointResolver().getLookups());
+
+            // the background lookups follow the new interval
+            service.setEndPointAddressRefresh(1000);
+            for (int i = 0; i < 60 && service.getEndPointResolver().getLookups() < 2; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals("REFRESH", 1000, service.getEndPointAddressRefresh());
+            assertTrue("REFRESHED", service.getEndPointResolver().getLookups() >= 2);
+
+            // the ranking puts the faster end-point first, it is warmed up in turn
+            service.setAutoServerRanking(true);
+            EndPoint[] ranked = service.rankServers();
+            assertEquals("RANKED", secondEndPoint.port, ranked[0].port);
+            assertTrue("WARMED_RANKED", awaitWarmups(service, 6));
+
+            // an end-point which does not answer is not counted as warmed up
+            service.setAutoServerRanking(false);
+            Thread.sleep(300);
+            long warmed = service.getWarmups();
+            service.setEndPoints(new EndPoint[] {new EndPoint("http://127.0.0.1", Integer.toString(freePort()))});
+            service.warmUp();
+            Thread.sleep(500);
+            assertEquals("NOT_WARMED", warmed, service.getWarmups());
+        } finally {
+            service.shutdown();
+            cacheService.shutdown();
+            first.stop(0);
+            second.stop(0);
+        }
+    }
+
+    private boolean awaitWarmups(EndPointService service, long warmups) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getWarmups() < warmups) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+
+        return true;
+    }
+
     /**
      * Test network issue
      */
@@ -226,7 +1095,7 @@ public class ClientTestErrorHandling {
         if (!hasLicenceSet(ACTIVE_LICENCE)) {
             return;
         }
-        client.clearCache();
+        client.purgeCache();
         assertEquals("NO_KEYS", 0, client.getCacheService().getCacheProvider().getKeys().size());
         client.setUseCache(false);
         client.setLicenceKey(ACTIVE_LICENCE);